@@ -0,0 +1,56 @@
+package com.peregrine.admin.replication;
+
+
+/*-
+ * #%L
+ * admin base - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+/**
+ * Runs replications as Sling Jobs so that large replications do not block a request
+ */
+public interface ReplicationJobs {
+
+    String TOPIC = "com/peregrine/admin/REPLICATE";
+
+    /**
+     * Queues the replication of a resource. If the same user already queued the same replication
+     * and it is not yet started no new job is queued. The job runs with the Peregrine Service User
+     * impersonating the given user, so it only replicates what the user can read.
+     * @param userId Id of the user requesting the replication
+     * @param name Name of the Replication or null for the default one
+     * @param path Path of the resource to be replicated
+     * @param deep If true the children of the resource are replicated as well
+     * @param deactivate If true the resource is deactivated instead
+     * @param resources Paths of additional resources to be replicated, can be null
+     * @return The progress of the queued or already queued job, null if it could not be queued
+     */
+    ReplicationProgress submit(String userId, String name, String path, boolean deep, boolean deactivate, String[] resources);
+
+    /**
+     * @param jobId Id of the replication job
+     * @return The progress of the job or null if it is not known
+     */
+    ReplicationProgress getProgress(String jobId);
+
+}
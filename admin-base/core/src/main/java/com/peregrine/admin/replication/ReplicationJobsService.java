@@ -0,0 +1,269 @@
+package com.peregrine.admin.replication;
+
+
+/*-
+ * #%L
+ * admin base - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import com.peregrine.admin.replication.ReplicationProgress.Stage;
+import com.peregrine.admin.resource.AdminResourceHandler;
+import com.peregrine.replication.Replication;
+import com.peregrine.replication.Replication.ReplicationException;
+import com.peregrine.replication.ReplicationsContainerWithDefault;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
+import org.apache.sling.event.jobs.consumer.JobConsumer;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static com.peregrine.admin.util.AdminConstants.PEREGRINE_SERVICE_NAME;
+import static com.peregrine.commons.util.PerUtil.EQUALS;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Queues replications as Sling Jobs and runs them with the Peregrine Service User impersonating
+ * the requesting user, so that a job sees and records the same as a replication within the request.
+ * This requires the Service User to be allowed to impersonate the users that replicate.
+ * The progress of the jobs is kept in memory, for the most recent ones after they finished as well.
+ */
+@Component(
+    service = { ReplicationJobs.class, JobConsumer.class },
+    immediate = true,
+    property = JobConsumer.PROPERTY_TOPICS + EQUALS + ReplicationJobs.TOPIC
+)
+public final class ReplicationJobsService implements ReplicationJobs, JobConsumer {
+
+    public static final String PN_USER_ID = "userId";
+    public static final String PN_NAME = "name";
+    public static final String PN_PATH = "path";
+    public static final String PN_DEEP = "deep";
+    public static final String PN_DEACTIVATE = "deactivate";
+    public static final String PN_RESOURCES = "resources";
+    public static final String PN_KEY = "key";
+
+    private static final String RESOURCE_NOT_FOUND = "Resource not found: '%s'";
+    private static final String REPLICATION_NOT_FOUND = "Replication not found for name: '%s'";
+    private static final String LOGIN_FAILED = "Failed to obtain the Resource Resolver for user: '%s'";
+    private static final String USER_MISSING = "Replication Job has no requesting user";
+    private static final int SLICE_SIZE = 100;
+    private static final int MAX_KEPT_PROGRESSES = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Reference
+    @SuppressWarnings("unused")
+    private JobManager jobManager;
+
+    @Reference
+    @SuppressWarnings("unused")
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @Reference
+    @SuppressWarnings("unused")
+    private ReplicationsContainerWithDefault replications;
+
+    @Reference
+    @SuppressWarnings("unused")
+    private AdminResourceHandler resourceManagement;
+
+    private final Map<String, ReplicationProgress> progresses = Collections.synchronizedMap(
+            new LinkedHashMap<String, ReplicationProgress>() {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, ReplicationProgress> eldest) {
+                    return size() > MAX_KEPT_PROGRESSES;
+                }
+            });
+    private final Map<String, ReplicationProgress> queued = new ConcurrentHashMap<>();
+
+    @Override
+    public synchronized ReplicationProgress submit(
+            final String userId,
+            final String name,
+            final String path,
+            final boolean deep,
+            final boolean deactivate,
+            final String[] resources
+    ) {
+        final String key = toKey(userId, name, path, deep, deactivate, resources);
+        final ReplicationProgress pending = queued.get(key);
+        if (nonNull(pending)) {
+            if (pending.getStage() == Stage.QUEUED && nonNull(jobManager.getJobById(pending.getJobId()))) {
+                logger.debug("Replication of '{}' is already queued as job: '{}'", path, pending.getJobId());
+                return pending;
+            }
+
+            // Removed from the queue without being processed
+            queued.remove(key, pending);
+        }
+
+        // Jobs queued before a restart are only known to the Job Manager
+        final Collection<Job> jobs = jobManager.findJobs(JobManager.QueryType.QUEUED, TOPIC, 1,
+                Collections.singletonMap(PN_KEY, key));
+        if (nonNull(jobs) && !jobs.isEmpty()) {
+            return getProgress(jobs.iterator().next());
+        }
+
+        final Map<String, Object> properties = new HashMap<>();
+        if (nonNull(userId)) {
+            properties.put(PN_USER_ID, userId);
+        }
+
+        if (nonNull(name)) {
+            properties.put(PN_NAME, name);
+        }
+
+        properties.put(PN_PATH, path);
+        properties.put(PN_DEEP, deep);
+        properties.put(PN_DEACTIVATE, deactivate);
+        if (nonNull(resources)) {
+            properties.put(PN_RESOURCES, resources);
+        }
+
+        properties.put(PN_KEY, key);
+        final Job job = jobManager.addJob(TOPIC, properties);
+        if (isNull(job)) {
+            return null;
+        }
+
+        final ReplicationProgress answer = getProgress(job);
+        queued.put(key, answer);
+        return answer;
+    }
+
+    /** @return A key identifying the same replication request **/
+    private static String toKey(
+            final String userId,
+            final String name,
+            final String path,
+            final boolean deep,
+            final boolean deactivate,
+            final String[] resources
+    ) {
+        final String sortedResources = isNull(resources) ? "" : Arrays.stream(resources)
+                .filter(Objects::nonNull)
+                .sorted()
+                .collect(Collectors.joining(","));
+        return String.join("|", Objects.toString(userId, ""), Objects.toString(name, ""), path, Boolean.toString(deep), Boolean.toString(deactivate), sortedResources);
+    }
+
+    private ReplicationProgress getProgress(final Job job) {
+        return progresses.computeIfAbsent(job.getId(), id -> new ReplicationProgress(
+                id,
+                job.getProperty(PN_USER_ID, String.class),
+                job.getProperty(PN_NAME, String.class),
+                job.getProperty(PN_PATH, String.class)
+        ));
+    }
+
+    @Override
+    public ReplicationProgress getProgress(final String jobId) {
+        final ReplicationProgress answer = progresses.get(jobId);
+        if (nonNull(answer)) {
+            return answer;
+        }
+
+        final Job job = jobManager.getJobById(jobId);
+        return isNull(job) ? null : getProgress(job);
+    }
+
+    @Override
+    public JobResult process(final Job job) {
+        final ReplicationProgress progress = getProgress(job);
+        final String key = job.getProperty(PN_KEY, String.class);
+        if (nonNull(key)) {
+            queued.remove(key, progress);
+        }
+
+        progress.setStage(Stage.COLLECTING);
+        final String path = job.getProperty(PN_PATH, String.class);
+        final String userId = job.getProperty(PN_USER_ID, String.class);
+        logger.debug("Replication Job: '{}' for '{}' requested by: '{}'", job.getId(), path, userId);
+        if (isNull(userId)) {
+            return fail(progress, USER_MISSING);
+        }
+
+        try (final ResourceResolver resourceResolver = login(userId)) {
+            final Resource resource = resourceResolver.getResource(path);
+            if (isNull(resource)) {
+                return fail(progress, String.format(RESOURCE_NOT_FOUND, path));
+            }
+
+            final String name = job.getProperty(PN_NAME, String.class);
+            final Replication replication = replications.getOrDefault(name);
+            if (isNull(replication)) {
+                return fail(progress, String.format(REPLICATION_NOT_FOUND, name));
+            }
+
+            final ReplicationTask task = new ReplicationTask(replication, resourceResolver, resourceManagement, progress);
+            if (job.getProperty(PN_DEACTIVATE, false)) {
+                task.deactivate(resource);
+            } else {
+                final boolean deep = job.getProperty(PN_DEEP, false);
+                task.replicateInSlices(task.prepare(task.collect(resource, deep, job.getProperty(PN_RESOURCES, String[].class))), SLICE_SIZE);
+            }
+        } catch (final LoginException e) {
+            final String message = String.format(LOGIN_FAILED, userId);
+            logger.error(message, e);
+            return fail(progress, message);
+        } catch (final ReplicationException | RuntimeException e) {
+            logger.warn("Replication Job: '{}' for '{}' failed", job.getId(), path, e);
+            return fail(progress, e.getMessage());
+        }
+
+        return JobResult.OK;
+    }
+
+    /** @return Resource Resolver of the Peregrine Service User impersonating the given user **/
+    private ResourceResolver login(final String userId) throws LoginException {
+        final Map<String, Object> authInfo = new HashMap<>();
+        authInfo.put(ResourceResolverFactory.SUBSERVICE, PEREGRINE_SERVICE_NAME);
+        authInfo.put(ResourceResolverFactory.USER_IMPERSONATION, userId);
+        return resourceResolverFactory.getServiceResourceResolver(authInfo);
+    }
+
+    private static JobResult fail(final ReplicationProgress progress, final String message) {
+        progress.setMessage(message);
+        progress.setStage(Stage.FAILED);
+        // Replications are not retried as parts of it might already be replicated
+        return JobResult.CANCEL;
+    }
+
+}
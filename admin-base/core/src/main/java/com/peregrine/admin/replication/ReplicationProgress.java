@@ -0,0 +1,121 @@
+package com.peregrine.admin.replication;
+
+
+/*-
+ * #%L
+ * admin base - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of a replication run, it is updated by the run and can be read from any thread
+ */
+public final class ReplicationProgress {
+
+    public enum Stage {
+        QUEUED, COLLECTING, PREPARING, VERSIONING, REPLICATING, DEACTIVATING, FINISHED, FAILED
+    }
+
+    private final String jobId;
+    private final String userId;
+    private final String name;
+    private final String path;
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile Stage stage = Stage.QUEUED;
+    private volatile String message;
+
+    public ReplicationProgress(final String jobId, final String userId, final String name, final String path) {
+        this.jobId = jobId;
+        this.userId = userId;
+        this.name = name;
+        this.path = path;
+    }
+
+    /** Creates the progress of a run that is not tracked as a job **/
+    public ReplicationProgress() {
+        this(null, null, null, null);
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    /** @return Id of the user that requested the replication, null if it is not known **/
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public void setStage(final Stage stage) {
+        this.stage = stage;
+    }
+
+    /** @return Number of resources to be replicated, 0 until they are collected **/
+    public int getTotal() {
+        return total.get();
+    }
+
+    public void setTotal(final int total) {
+        this.total.set(total);
+    }
+
+    public int getDone() {
+        return done.get();
+    }
+
+    public void addDone(final int count) {
+        done.addAndGet(count);
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public void addFailed(final int count) {
+        failed.addAndGet(count);
+    }
+
+    /** @return Message of the last failure or null if there was none **/
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(final String message) {
+        this.message = message;
+    }
+
+}
@@ -0,0 +1,186 @@
+package com.peregrine.admin.replication;
+
+
+/*-
+ * #%L
+ * admin base - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import com.peregrine.admin.replication.ReplicationProgress.Stage;
+import com.peregrine.admin.resource.AdminResourceHandler;
+import com.peregrine.commons.util.PerConstants;
+import com.peregrine.commons.util.PerUtil;
+import com.peregrine.replication.PerReplicable;
+import com.peregrine.replication.Replication;
+import com.peregrine.replication.Replication.ReplicationException;
+import com.peregrine.replication.ReplicationUtil;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.peregrine.commons.util.PerUtil.listMissingResources;
+
+/**
+ * The steps of activating or deactivating a resource with a Replication which are
+ * done in a request or in a replication job. Each step updates the given progress.
+ */
+public final class ReplicationTask {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Replication replication;
+    private final ResourceResolver resourceResolver;
+    private final AdminResourceHandler resourceManagement;
+    private final ReplicationProgress progress;
+
+    public ReplicationTask(
+            final Replication replication,
+            final ResourceResolver resourceResolver,
+            final AdminResourceHandler resourceManagement,
+            final ReplicationProgress progress
+    ) {
+        this.replication = replication;
+        this.resourceResolver = resourceResolver;
+        this.resourceManagement = resourceManagement;
+        this.progress = progress;
+    }
+
+    public static Stream<Resource> streamReplicableResources(final Collection<Resource> resources) {
+        return resources.stream()
+                .map(r -> r.adaptTo(PerReplicable.class))
+                .filter(Objects::nonNull)
+                .map(PerReplicable::getMainResource)
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * @param resource Resource to be activated
+     * @param deep If true the children of the resources are activated as well
+     * @param paths Paths of additional resources to be activated
+     * @return The resources of the same tenant that are to be activated
+     */
+    public List<Resource> collect(final Resource resource, final boolean deep, final String[] paths) {
+        progress.setStage(Stage.COLLECTING);
+        final PerUtil.ResourceChecker tenantChecker = new ReplicationUtil.TenantOwnedResourceChecker(resource);
+        final List<Resource> answer = listMissingResources(resource, tenantChecker, deep, new LinkedList<>());
+        for (final Resource r : Optional.ofNullable(paths)
+                .map(Arrays::stream)
+                .orElseGet(Stream::empty)
+                .map(resourceResolver::getResource)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList())) {
+            listMissingResources(r, tenantChecker, deep, answer);
+        }
+
+        return answer;
+    }
+
+    /**
+     * Prepares the resources for the replication and creates the published versions
+     * @return The resources to be replicated
+     */
+    public List<Resource> prepare(final List<Resource> resources) throws ReplicationException {
+        progress.setStage(Stage.PREPARING);
+        final List<Resource> answer = replication.prepare(resources);
+        progress.setTotal(answer.size());
+        progress.setStage(Stage.VERSIONING);
+        final List<String> paths = streamReplicableResources(answer)
+                .map(Resource::getPath)
+                .collect(Collectors.toList());
+        resourceManagement.createVersions(resourceResolver, paths, PerConstants.PUBLISHED_LABEL)
+                .forEach((p, reason) -> logger.trace("Unable to create a version for path: {}, reason: {}", p, reason));
+        return answer;
+    }
+
+    /**
+     * Replicates all the resources at once
+     * @return The replicated resources
+     * @throws ReplicationException If the replication failed
+     */
+    public List<Resource> replicate(final List<Resource> resources) throws ReplicationException {
+        progress.setStage(Stage.REPLICATING);
+        final List<Resource> answer = replication.replicate(resources);
+        progress.addDone(answer.size());
+        progress.addFailed(Math.max(0, resources.size() - answer.size()));
+        progress.setStage(Stage.FINISHED);
+        return answer;
+    }
+
+    /**
+     * Replicates the resources in slices so that the progress is updated after each slice.
+     * The failure of a slice is counted and recorded but does not stop the other slices.
+     * @return The replicated resources
+     */
+    public List<Resource> replicateInSlices(final List<Resource> resources, final int sliceSize) {
+        progress.setStage(Stage.REPLICATING);
+        final List<Resource> answer = new ArrayList<>();
+        for (int start = 0; start < resources.size(); start += sliceSize) {
+            final List<Resource> slice = resources.subList(start, Math.min(resources.size(), start + sliceSize));
+            try {
+                final List<Resource> replicated = replication.replicate(slice);
+                answer.addAll(replicated);
+                progress.addDone(replicated.size());
+                progress.addFailed(Math.max(0, slice.size() - replicated.size()));
+            } catch (final ReplicationException e) {
+                logger.warn("Replication of {} resources starting with '{}' failed", slice.size(), slice.get(0).getPath(), e);
+                progress.addFailed(slice.size());
+                progress.setMessage(e.getMessage());
+            }
+        }
+
+        progress.setStage(answer.isEmpty() && !resources.isEmpty() ? Stage.FAILED : Stage.FINISHED);
+        return answer;
+    }
+
+    /**
+     * Deactivates the given resource and removes the published label of its versions
+     * @return The deactivated resources
+     * @throws ReplicationException If the deactivation failed
+     */
+    public List<Resource> deactivate(final Resource resource) throws ReplicationException {
+        progress.setStage(Stage.DEACTIVATING);
+        final List<Resource> answer = replication.deactivate(resource);
+        progress.setTotal(answer.size());
+        final List<String> paths = streamReplicableResources(answer)
+                .map(Resource::getPath)
+                .collect(Collectors.toList());
+        resourceManagement.deleteVersionLabels(resourceResolver, paths, PerConstants.PUBLISHED_LABEL)
+                .forEach((p, reason) -> logger.trace("Unable to remove the published label of path: {}, reason: {}", p, reason));
+
+        progress.addDone(answer.size());
+        progress.setStage(Stage.FINISHED);
+        return answer;
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.peregrine.admin.resource;
 
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import javax.jcr.Node;
@@ -122,6 +123,16 @@ public interface AdminResourceHandler {
      */
     Version createVersion(ResourceResolver resourceResolver, String path) throws ManagementException;
 
+    /**
+     * Creates a version of each of the given resources. Resources that are not versionable yet are made
+     * versionable with a single save for all of them and checked-in resources are skipped.
+     * @param resourceResolver Resource Resolver to manage resources and cannot be null
+     * @param paths Absolute Paths of the resources to be versioned
+     * @param labels Labels to apply to each of the versions. They are moved over from older versions.
+     * @return The paths that could not be versioned mapped to the reason, empty if all succeeded
+     */
+    Map<String, String> createVersions(ResourceResolver resourceResolver, Collection<String> paths, String... labels);
+
     /**
      * Get a version iterator for given resource
      * @param resourceResolver Resource Resolver to manage resources and cannot be null
@@ -158,6 +169,16 @@ public interface AdminResourceHandler {
 
     boolean deleteVersionLabel(Resource resource, String label);
 
+    /**
+     * Removes a label from the version histories of the given resources. Resources that do not
+     * have a version with this label are skipped.
+     * @param resourceResolver Resource Resolver to manage resources and cannot be null
+     * @param paths Absolute Paths of the versioned resources
+     * @param label Label to be removed
+     * @return The paths whose label could not be removed mapped to the reason, empty if all succeeded
+     */
+    Map<String, String> deleteVersionLabels(ResourceResolver resourceResolver, Collection<String> paths, String label);
+
     /**
      * Checks whether a resource is checked-out (editabled), or checked-in (frozen)
      * @param resourceResolver Resource Resolver to manage resources and cannot be null
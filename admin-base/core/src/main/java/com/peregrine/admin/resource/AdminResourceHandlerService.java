@@ -706,6 +706,107 @@ public class AdminResourceHandlerService
         return true;
     }
 
+    @Override
+    public Map<String, String> createVersions(final ResourceResolver resourceResolver, final Collection<String> paths, final String... labels) {
+        final Map<String, String> failures = new LinkedHashMap<>();
+        final Session session = resourceResolver.adaptTo(Session.class);
+        final List<String> versionables = new ArrayList<>(paths.size());
+        final List<String> madeVersionable = new ArrayList<>();
+        for (final String path : paths) {
+            final Node node = getNode(resourceResolver, path);
+            if (isNull(node)) {
+                failures.put(path, "Could not find resource for versioning");
+                continue;
+            }
+
+            try {
+                if (!node.isNodeType(JcrConstants.MIX_VERSIONABLE)) {
+                    node.addMixin(JcrConstants.MIX_VERSIONABLE);
+                    madeVersionable.add(path);
+                }
+
+                versionables.add(path);
+            } catch (final RepositoryException e) {
+                logger.debug("Could not make {} versionable", path, e);
+                failures.put(path, e.getMessage());
+            }
+        }
+
+        if (!madeVersionable.isEmpty()) {
+            try {
+                resourceResolver.commit();
+            } catch (final PersistenceException e) {
+                resourceResolver.revert();
+                logger.error("Could not make {} nodes versionable", madeVersionable.size(), e);
+                for (final String path : madeVersionable) {
+                    failures.put(path, "Could not make node versionable");
+                }
+
+                versionables.removeAll(madeVersionable);
+            }
+        }
+
+        // Check-in and labeling are workspace operations which are persisted right away
+        try {
+            final VersionManager vm = session.getWorkspace().getVersionManager();
+            for (final String path : versionables) {
+                try {
+                    if (!vm.isCheckedOut(path)) {
+                        continue;
+                    }
+
+                    final Version v = vm.checkin(path);
+                    vm.checkout(path);
+                    if (nonNull(labels) && labels.length > 0) {
+                        final VersionHistory vh = vm.getVersionHistory(path);
+                        for (final String label : labels) {
+                            vh.addVersionLabel(v.getName(), label, true);
+                        }
+                    }
+                } catch (final RepositoryException e) {
+                    logger.debug("Could not create a version of {}", path, e);
+                    failures.put(path, e.getMessage());
+                }
+            }
+        } catch (final RepositoryException e) {
+            logger.error("Could not obtain the Version Manager", e);
+            for (final String path : versionables) {
+                failures.put(path, e.getMessage());
+            }
+        }
+
+        logger.debug("Versioned {} of {} resources", paths.size() - failures.size(), paths.size());
+        return failures;
+    }
+
+    @Override
+    public Map<String, String> deleteVersionLabels(final ResourceResolver resourceResolver, final Collection<String> paths, final String label) {
+        final Map<String, String> failures = new LinkedHashMap<>();
+        try {
+            final VersionManager vm = resourceResolver.adaptTo(Session.class).getWorkspace().getVersionManager();
+            for (final String path : paths) {
+                try {
+                    final VersionHistory vh = vm.getVersionHistory(path);
+                    if (nonNull(vh) && vh.hasVersionLabel(label)) {
+                        vh.removeVersionLabel(label);
+                    }
+                } catch (final UnsupportedRepositoryOperationException e) {
+                    // not versionable and therefore not labeled
+                } catch (final RepositoryException e) {
+                    logger.debug("Could not remove the label {} of {}", label, path, e);
+                    failures.put(path, e.getMessage());
+                }
+            }
+        } catch (final RepositoryException e) {
+            logger.error("Could not obtain the Version Manager", e);
+            for (final String path : paths) {
+                failures.put(path, e.getMessage());
+            }
+        }
+
+        return failures;
+    }
+
     @Override
     public boolean isCheckedOut(ResourceResolver resourceResolver, String path) throws ManagementException {
         try {
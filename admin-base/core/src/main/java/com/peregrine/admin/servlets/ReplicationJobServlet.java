@@ -0,0 +1,111 @@
+package com.peregrine.admin.servlets;
+
+
+/*-
+ * #%L
+ * admin base - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import com.peregrine.admin.replication.ReplicationJobs;
+import com.peregrine.admin.replication.ReplicationProgress;
+import com.peregrine.commons.servlets.AbstractBaseServlet;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import javax.servlet.Servlet;
+import java.io.IOException;
+import java.util.Objects;
+
+import static com.peregrine.admin.servlets.AdminPaths.RESOURCE_TYPE_REPLICATION_JOB;
+import static com.peregrine.admin.servlets.ReplicationServlet.JOB_ID;
+import static com.peregrine.admin.servlets.ReplicationServlet.STAGE;
+import static com.peregrine.commons.util.PerConstants.NAME;
+import static com.peregrine.commons.util.PerConstants.PATH;
+import static com.peregrine.commons.util.PerUtil.EQUALS;
+import static com.peregrine.commons.util.PerUtil.GET;
+import static com.peregrine.commons.util.PerUtil.PER_PREFIX;
+import static com.peregrine.commons.util.PerUtil.PER_VENDOR;
+import static java.util.Objects.isNull;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
+import static org.apache.sling.api.servlets.ServletResolverConstants.SLING_SERVLET_METHODS;
+import static org.apache.sling.api.servlets.ServletResolverConstants.SLING_SERVLET_RESOURCE_TYPES;
+import static org.osgi.framework.Constants.SERVICE_DESCRIPTION;
+import static org.osgi.framework.Constants.SERVICE_VENDOR;
+
+/**
+ * Provides the progress of a replication job queued by an async replication
+ * to the user who requested it
+ *
+ * The API Definition can be found in the Swagger Editor configuration:
+ *    ui.apps/src/main/content/jcr_root/perapi/definitions/admin.yaml
+ *
+ * It is invoked like this:
+ *      curl "http://localhost:8080/perapi/admin/replicationJob.json?jobId=<job id>" -H  "accept: application/json"
+ */
+@Component(
+    service = Servlet.class,
+    property = {
+        SERVICE_DESCRIPTION + EQUALS + PER_PREFIX + "Replication Job Servlet",
+        SERVICE_VENDOR + EQUALS + PER_VENDOR,
+        SLING_SERVLET_METHODS + EQUALS + GET,
+        SLING_SERVLET_RESOURCE_TYPES + EQUALS + RESOURCE_TYPE_REPLICATION_JOB
+    }
+)
+@SuppressWarnings("serial")
+public final class ReplicationJobServlet extends AbstractBaseServlet {
+
+    public static final String JOB_NOT_FOUND = "Replication Job not found";
+    public static final String TOTAL = "total";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+    public static final String MESSAGE = "message";
+
+    @Reference
+    private ReplicationJobs replicationJobs;
+
+    @Override
+    protected Response handleRequest(final Request request) throws IOException {
+        final String jobId = request.getParameter(JOB_ID);
+        final ReplicationProgress progress = isNull(jobId) ? null : replicationJobs.getProgress(jobId);
+        // Only the user who requested the replication may follow its progress
+        if (isNull(progress) || !Objects.equals(progress.getUserId(), request.getResourceResolver().getUserID())) {
+            return new ErrorResponse()
+                    .setHttpErrorCode(SC_NOT_FOUND)
+                    .setErrorMessage(JOB_NOT_FOUND)
+                    .setRequestPath(jobId);
+        }
+
+        final JsonResponse answer = new JsonResponse();
+        answer.writeAttribute(JOB_ID, progress.getJobId());
+        answer.writeAttribute(NAME, progress.getName());
+        answer.writeAttribute(PATH, progress.getPath());
+        answer.writeAttribute(STAGE, progress.getStage().name());
+        answer.writeAttribute(TOTAL, progress.getTotal());
+        answer.writeAttribute(DONE, progress.getDone());
+        answer.writeAttribute(FAILED, progress.getFailed());
+        answer.writeAttribute(MESSAGE, progress.getMessage());
+        answer.writeClose();
+        return answer;
+    }
+
+}
@@ -25,12 +25,12 @@ package com.peregrine.admin.servlets;
  * #L%
  */
 
+import com.peregrine.admin.replication.ReplicationJobs;
+import com.peregrine.admin.replication.ReplicationProgress;
+import com.peregrine.admin.replication.ReplicationTask;
 import com.peregrine.admin.resource.AdminResourceHandler;
-import com.peregrine.commons.util.PerConstants;
-import com.peregrine.commons.util.PerUtil;
 import com.peregrine.replication.Replication;
 import com.peregrine.replication.Replication.ReplicationException;
-import com.peregrine.replication.ReplicationUtil;
 import com.peregrine.replication.ReplicationsContainerWithDefault;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -40,21 +40,17 @@ import org.osgi.service.component.annotations.Reference;
 
 import javax.servlet.Servlet;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static com.peregrine.admin.servlets.AdminPaths.RESOURCE_TYPE_DO_REPLICATION;
 import static com.peregrine.commons.util.PerUtil.EQUALS;
 import static com.peregrine.commons.util.PerUtil.PER_PREFIX;
 import static com.peregrine.commons.util.PerUtil.PER_VENDOR;
 import static com.peregrine.commons.util.PerUtil.POST;
-import static com.peregrine.commons.util.PerUtil.listMissingResources;
+import static com.peregrine.commons.util.PerConstants.NAME;
 import static java.lang.Boolean.parseBoolean;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 import static org.apache.sling.api.servlets.ServletResolverConstants.SLING_SERVLET_METHODS;
 import static org.apache.sling.api.servlets.ServletResolverConstants.SLING_SERVLET_RESOURCE_TYPES;
 import static org.osgi.framework.Constants.SERVICE_DESCRIPTION;
@@ -84,6 +80,11 @@ public final class ReplicationServlet extends ReplicationServletBase {
 
     public static final String DEACTIVATE = "deactivate";
     public static final String RESOURCES = "resources";
+    public static final String ASYNC = "async";
+    public static final String JOB_ID = "jobId";
+    public static final String STAGE = "stage";
+    public static final String REPLICATION_JOB_NOT_QUEUED = "Replication Job could not be queued";
+    public static final String RESOURCE_NOT_FOUND = "Resource not found: '%s'";
 
     @Reference
     private ReplicationsContainerWithDefault replications;
@@ -91,6 +92,9 @@ public final class ReplicationServlet extends ReplicationServletBase {
     @Reference
     private AdminResourceHandler resourceManagement;
 
+    @Reference
+    private ReplicationJobs replicationJobs;
+
     protected ReplicationsContainerWithDefault getReplications() {
         return replications;
     }
@@ -102,48 +106,58 @@ public final class ReplicationServlet extends ReplicationServletBase {
             final Resource resource,
             final ResourceResolver resourceResolver
     ) throws IOException, ReplicationException {
-        if (parseBoolean(request.getParameter(DEACTIVATE))) {
-            return performDeactivation(replication, resource);
+        final boolean deactivate = parseBoolean(request.getParameter(DEACTIVATE));
+        final boolean deep = parseBoolean(request.getParameter("deep"));
+        if (parseBoolean(request.getParameter(ASYNC))) {
+            return submitReplicationJob(request, resource, resourceResolver, deep, deactivate);
         }
 
-        final boolean deep = parseBoolean(request.getParameter("deep"));
-        final PerUtil.ResourceChecker tenantChecker = new ReplicationUtil.TenantOwnedResourceChecker(resource);
-        List<Resource> toBeReplicated = listMissingResources(resource, tenantChecker, deep, new LinkedList<>());
-        for (final Resource r : Optional.of(RESOURCES)
-                .map(request::getParameterValues)
-                .map(Arrays::stream)
-                .orElseGet(Stream::empty)
-                .map(resourceResolver::getResource)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList())) {
-            listMissingResources(r, tenantChecker, deep, toBeReplicated);
+        final ReplicationTask task = new ReplicationTask(replication, resourceResolver, resourceManagement, new ReplicationProgress());
+        if (deactivate) {
+            return prepareResponse(resource, task.deactivate(resource));
         }
 
-        toBeReplicated = replication.prepare(toBeReplicated);
-        streamReplicableResources(toBeReplicated)
-                .map(Resource::getPath)
-                .forEach(p -> {
-                    try {
-                        resourceManagement.createVersion(resourceResolver, p, PerConstants.PUBLISHED_LABEL);
-                    } catch (final AdminResourceHandler.ManagementException e) {
-                        logger.trace("Unable to create a version for path: {} ", p, e);
-                    }
-                });
-        return prepareResponse(resource, replication.replicate(toBeReplicated));
+        final List<Resource> toBeReplicated = task.prepare(task.collect(resource, deep, request.getParameterValues(RESOURCES)));
+        return prepareResponse(resource, task.replicate(toBeReplicated));
     }
 
     @NotNull
-    private Response performDeactivation(
-            final Replication replication,
-            final Resource resource
-    ) throws ReplicationException, IOException {
-        final var replicatedStuff = replication.deactivate(resource);
-        for (final Resource r : streamReplicableResources(replicatedStuff)
-                .collect(Collectors.toList())) {
-            resourceManagement.deleteVersionLabel(r, PerConstants.PUBLISHED_LABEL);
+    private Response submitReplicationJob(
+            final Request request,
+            final Resource resource,
+            final ResourceResolver resourceResolver,
+            final boolean deep,
+            final boolean deactivate
+    ) throws IOException {
+        // Resources the user cannot read are refused right away instead of failing the job later
+        final String[] resources = request.getParameterValues(RESOURCES);
+        if (nonNull(resources)) {
+            for (final String path : resources) {
+                if (isNull(path) || isNull(resourceResolver.getResource(path))) {
+                    return badRequest(String.format(RESOURCE_NOT_FOUND, path));
+                }
+            }
+        }
+
+        final ReplicationProgress progress = replicationJobs.submit(
+                resourceResolver.getUserID(),
+                request.getParameter(NAME),
+                resource.getPath(),
+                deep,
+                deactivate,
+                resources
+        );
+        if (isNull(progress)) {
+            return badRequest(REPLICATION_JOB_NOT_QUEUED);
         }
 
-        return prepareResponse(resource, replicatedStuff);
+        final JsonResponse answer = new JsonResponse();
+        answer.writeAttribute("sourceName", resource.getName());
+        answer.writeAttribute("sourcePath", resource.getPath());
+        answer.writeAttribute(JOB_ID, progress.getJobId());
+        answer.writeAttribute(STAGE, progress.getStage().name());
+        answer.writeClose();
+        return answer;
     }
 
 }
\ No newline at end of file
@@ -25,7 +25,7 @@ package com.peregrine.admin.servlets;
  * #L%
  */
 
-import com.peregrine.replication.PerReplicable;
+import com.peregrine.admin.replication.ReplicationTask;
 import com.peregrine.commons.servlets.AbstractBaseServlet;
 import com.peregrine.replication.Replication;
 import com.peregrine.replication.Replication.ReplicationException;
@@ -36,7 +36,6 @@ import org.apache.sling.api.resource.ResourceResolver;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
-import java.util.Objects;
 import java.util.stream.Stream;
 
 import static com.peregrine.commons.util.PerConstants.NAME;
@@ -101,11 +100,7 @@ public abstract class ReplicationServletBase extends AbstractBaseServlet {
     }
 
     protected static Stream<Resource> streamReplicableResources(final Collection<Resource> resources) {
-        return resources.stream()
-                .map(r -> r.adaptTo(PerReplicable.class))
-                .filter(Objects::nonNull)
-                .map(PerReplicable::getMainResource)
-                .filter(Objects::nonNull);
+        return ReplicationTask.streamReplicableResources(resources);
     }
 
     protected static Response prepareResponse(final Resource resource, final List<Resource> replicatedStuff) throws IOException {
@@ -48,6 +48,7 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static com.peregrine.admin.servlets.AdminPaths.RESOURCE_TYPE_TENANT_SETUP_REPLICATION;
 
@@ -135,15 +136,11 @@ public final class TenantSetupReplicationServlet extends ReplicationServletBase
 
         final String dateLabel = site.getName() + "_" + dateLabelFormat.format(new Date(System.currentTimeMillis()));
         toBeReplicated = replication.prepare(toBeReplicated);
-        streamReplicableResources(toBeReplicated)
+        final List<String> versionPaths = streamReplicableResources(toBeReplicated)
                 .map(Resource::getPath)
-                .forEach(p -> {
-                    try {
-                        resourceManagement.createVersion(resourceResolver, p, dateLabel, PerConstants.PUBLISHED_LABEL);
-                    } catch (final AdminResourceHandler.ManagementException e) {
-                        logger.trace("Unable to create a version for path: {} ", p, e);
-                    }
-                });
+                .collect(Collectors.toList());
+        resourceManagement.createVersions(resourceResolver, versionPaths, dateLabel, PerConstants.PUBLISHED_LABEL)
+                .forEach((p, reason) -> logger.trace("Unable to create a version for path: {}, reason: {}", p, reason));
         final var replicatedStuff = replication.replicate(toBeReplicated);
         siteMapFilesCache.build(path + SLASH + PAGES);
         return prepareResponse(site, replicatedStuff);
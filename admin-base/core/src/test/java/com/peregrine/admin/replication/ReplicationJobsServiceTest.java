@@ -0,0 +1,120 @@
+package com.peregrine.admin.replication;
+
+import com.peregrine.SlingResourcesTest;
+import com.peregrine.admin.replication.ReplicationProgress.Stage;
+import com.peregrine.admin.resource.AdminResourceHandler;
+import com.peregrine.replication.Replication;
+import com.peregrine.replication.ReplicationsContainerWithDefault;
+import junitx.util.PrivateAccessor;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.JobManager;
+import org.apache.sling.event.jobs.consumer.JobConsumer.JobResult;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static com.peregrine.admin.replication.ReplicationJobsService.PN_DEACTIVATE;
+import static com.peregrine.admin.replication.ReplicationJobsService.PN_PATH;
+import static com.peregrine.admin.replication.ReplicationJobsService.PN_USER_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public final class ReplicationJobsServiceTest extends SlingResourcesTest {
+
+    private static final String JOB_ID = "job-1";
+
+    private final JobManager jobManager = mock(JobManager.class);
+    private final ReplicationsContainerWithDefault replications = mock(ReplicationsContainerWithDefault.class);
+    private final Replication replication = mock(Replication.class);
+    private final AdminResourceHandler resourceManagement = mock(AdminResourceHandler.class);
+    private final Job job = mock(Job.class);
+
+    private final ReplicationJobsService model = new ReplicationJobsService();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws NoSuchFieldException, Replication.ReplicationException {
+        PrivateAccessor.setField(model, "jobManager", jobManager);
+        PrivateAccessor.setField(model, "resourceResolverFactory", repo.getResolverFactory());
+        PrivateAccessor.setField(model, "replications", replications);
+        PrivateAccessor.setField(model, "resourceManagement", resourceManagement);
+        when(replications.getOrDefault(any())).thenReturn(replication);
+        when(replication.deactivate(page)).thenReturn(Collections.singletonList(jcrContent));
+        when(job.getId()).thenReturn(JOB_ID);
+        final String path = page.getPath();
+        when(job.getProperty(PN_PATH, String.class)).thenReturn(path);
+        when(job.getProperty(PN_USER_ID, String.class)).thenReturn("admin");
+        when(jobManager.addJob(eq(ReplicationJobs.TOPIC), any(Map.class))).thenReturn(job);
+        when(jobManager.getJobById(JOB_ID)).thenReturn(job);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void submit_reusesQueuedJob() {
+        final ReplicationProgress progress = model.submit("admin", null, page.getPath(), false, true, null);
+        assertEquals(JOB_ID, progress.getJobId());
+        assertEquals("admin", progress.getUserId());
+        assertEquals(Stage.QUEUED, progress.getStage());
+        assertSame(progress, model.submit("admin", null, page.getPath(), false, true, null));
+        assertSame(progress, model.getProgress(JOB_ID));
+        verify(jobManager, times(1)).addJob(eq(ReplicationJobs.TOPIC), any(Map.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void submit_keepsUsersApart() {
+        model.submit("admin", null, page.getPath(), false, true, null);
+        model.submit("editor", null, page.getPath(), false, true, null);
+        verify(jobManager, times(2)).addJob(eq(ReplicationJobs.TOPIC), any(Map.class));
+    }
+
+    @Test
+    public void process_deactivate() {
+        when(job.getProperty(PN_DEACTIVATE, false)).thenReturn(true);
+        assertEquals(JobResult.OK, model.process(job));
+        final ReplicationProgress progress = model.getProgress(JOB_ID);
+        assertEquals(Stage.FINISHED, progress.getStage());
+        assertEquals(1, progress.getTotal());
+        assertEquals(1, progress.getDone());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void process_impersonatesRequester() throws LoginException {
+        when(job.getProperty(PN_DEACTIVATE, false)).thenReturn(true);
+        assertEquals(JobResult.OK, model.process(job));
+        final ArgumentCaptor<Map> authInfo = ArgumentCaptor.forClass(Map.class);
+        verify(repo.getResolverFactory(), atLeastOnce()).getServiceResourceResolver(authInfo.capture());
+        assertEquals("admin", authInfo.getValue().get(ResourceResolverFactory.USER_IMPERSONATION));
+    }
+
+    @Test
+    public void process_failsWithoutRequester() {
+        when(job.getProperty(PN_USER_ID, String.class)).thenReturn(null);
+        assertEquals(JobResult.CANCEL, model.process(job));
+        assertEquals(Stage.FAILED, model.getProgress(JOB_ID).getStage());
+        verifyZeroInteractions(replication);
+    }
+
+    @Test
+    public void process_failsForMissingResource() {
+        final String path = page.getPath() + "/missing";
+        when(job.getProperty(PN_PATH, String.class)).thenReturn(path);
+        assertEquals(JobResult.CANCEL, model.process(job));
+        assertEquals(Stage.FAILED, model.getProgress(JOB_ID).getStage());
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.peregrine.admin.servlets;
+
+import com.peregrine.SlingServletTest;
+import com.peregrine.admin.replication.ReplicationJobs;
+import com.peregrine.admin.replication.ReplicationProgress;
+import com.peregrine.commons.servlets.AbstractBaseServlet;
+import junitx.util.PrivateAccessor;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.peregrine.admin.servlets.ReplicationJobServlet.JOB_NOT_FOUND;
+import static com.peregrine.admin.servlets.ReplicationServlet.JOB_ID;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class ReplicationJobServletTest extends SlingServletTest {
+
+    private final ReplicationJobServlet servlet = new ReplicationJobServlet();
+    private final ReplicationJobs replicationJobs = mock(ReplicationJobs.class);
+    private final ReplicationProgress progress = new ReplicationProgress("job-1", "admin", null, "/content/page");
+
+    @Before
+    public void setUp() throws NoSuchFieldException {
+        PrivateAccessor.setField(servlet, "replicationJobs", replicationJobs);
+        when(replicationJobs.getProgress("job-1")).thenReturn(progress);
+        request.putParameter(JOB_ID, "job-1");
+    }
+
+    private String handleRequest() throws IOException {
+        return servlet.handleRequest(new AbstractBaseServlet.Request(request, response)).getContent();
+    }
+
+    @Test
+    public void handleRequest_answersRequester() throws IOException {
+        when(resourceResolver.getUserID()).thenReturn("admin");
+        final String answer = handleRequest();
+        assertTrue(answer.contains(progress.getPath()));
+        assertFalse(answer.contains(JOB_NOT_FOUND));
+    }
+
+    @Test
+    public void handleRequest_hidesOtherUsersJobs() throws IOException {
+        when(resourceResolver.getUserID()).thenReturn("editor");
+        final String answer = handleRequest();
+        assertTrue(answer.contains(JOB_NOT_FOUND));
+        assertFalse(answer.contains(progress.getPath()));
+    }
+
+}
@@ -1,16 +1,31 @@
 package com.peregrine.admin.servlets;
 
+import com.peregrine.admin.replication.ReplicationJobs;
+import com.peregrine.admin.replication.ReplicationProgress;
 import com.peregrine.replication.Replication;
 import org.junit.Test;
 
 import java.io.IOException;
 
+import static com.peregrine.admin.servlets.ReplicationServlet.ASYNC;
 import static com.peregrine.admin.servlets.ReplicationServlet.DEACTIVATE;
+import static com.peregrine.admin.servlets.ReplicationServlet.RESOURCES;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
 
 public final class ReplicationServletTest extends ReplicationServletTestBase {
 
+    private final ReplicationJobs replicationJobs = mock(ReplicationJobs.class);
+
     public ReplicationServletTest() throws NoSuchFieldException, Replication.ReplicationException {
         super(new ReplicationServlet());
+        setField("replicationJobs", replicationJobs);
     }
 
     @Test
@@ -24,4 +39,29 @@ public final class ReplicationServletTest extends ReplicationServletTestBase {
         performReplicationResponseContains(jcrContent);
     }
 
+    @Test
+    public void performActivation_async() throws IOException {
+        final ReplicationProgress progress = new ReplicationProgress("job-1", null, null, page.getPath());
+        when(replicationJobs.submit(anyString(), anyString(), anyString(), anyBoolean(), anyBoolean(), any(String[].class)))
+                .thenReturn(progress);
+        request.putParameter(ASYNC, true);
+        performReplicationResponseContains("job-1", ReplicationProgress.Stage.QUEUED.name());
+        verify(replicationJobs).submit(anyString(), anyString(), eq(progress.getPath()), anyBoolean(), eq(false), any(String[].class));
+    }
+
+    @Test
+    public void performActivation_asyncChecksResources() throws IOException {
+        final String missing = page.getPath() + "/missing";
+        request.putParameter(ASYNC, true);
+        request.putParameter(RESOURCES, new String[] { resource.getPath(), missing });
+        performReplicationResponseContains(missing);
+        verifyZeroInteractions(replicationJobs);
+    }
+
+    @Test
+    public void performActivation_sync() throws IOException {
+        performReplicationResponseContains(jcrContent);
+        verifyZeroInteractions(replicationJobs);
+    }
+
 }
@@ -35,6 +35,7 @@ import static com.peregrine.pagerender.vue.models.PageRenderVueConstants.PR_VUE_
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.peregrine.commons.util.PerConstants;
+import com.peregrine.nodetypes.merge.TemplateChainIndex;
 import com.peregrine.nodetypes.models.IComponent;
 import java.util.ArrayList;
 import java.util.List;
@@ -90,6 +91,12 @@ public class PageModel extends Container {
     @Inject
     private ModelFactory modelFactory;
 
+    @Inject
+    @Optional
+    private TemplateChainIndex templateChainIndex;
+
+    private PageModel templatePageModel;
+
     @Inject
     @Optional
     private String[] prefetchDNS;
@@ -254,10 +261,21 @@ public class PageModel extends Container {
     }
 
     private PageModel getTemplatePageModel() {
-        String template = getTemplate();
-        if(template == null) return null;
-        Resource templateResource = getResource().getResourceResolver().getResource(getTemplate() + SLASH + JCR_CONTENT);
-        return (PageModel) modelFactory.getModelFromResource(templateResource);
+        if(templatePageModel == null) {
+            String template = null;
+            if(templateChainIndex != null) {
+                template = templateChainIndex.getTemplatePath(getResource().getParent());
+            }
+            if(template == null) {
+                // fall back to a template inherited from the parent pages
+                template = getTemplate();
+            }
+            if(template == null) return null;
+            Resource templateResource = getResource().getResourceResolver().getResource(template + SLASH + JCR_CONTENT);
+            if(templateResource == null) return null;
+            templatePageModel = (PageModel) modelFactory.getModelFromResource(templateResource);
+        }
+        return templatePageModel;
     }
 
     private Object getInheritedProperty(String propertyName) {
@@ -48,7 +48,7 @@ public interface PerPage
     public boolean hasChild(String name);
     /** @return Parent Page of this page if it is a page otherwise null **/
     public PerPage getParent();
-    /** @return Template Page of this page if there is a template and is a page otherwise null **/
+    /** @return Template Page of this page (its template property or, for a page inside a templates folder, its parent page) if there is a template and is a page otherwise null **/
     public PerPage getTemplate();
 
     /** @return
@@ -28,6 +28,8 @@ package com.peregrine.adaption.impl;
 import com.peregrine.adaption.Filter;
 import com.peregrine.adaption.PerPage;
 import com.peregrine.adaption.PerPageManager;
+import com.peregrine.nodetypes.merge.TemplateChainIndex;
+import com.peregrine.nodetypes.merge.TemplateChainIndexService;
 import org.apache.sling.api.resource.Resource;
 
 import java.util.ArrayList;
@@ -36,7 +38,6 @@ import java.util.List;
 import static com.peregrine.commons.util.PerConstants.JCR_CONTENT;
 import static com.peregrine.commons.util.PerConstants.JCR_TITLE;
 import static com.peregrine.commons.util.PerConstants.PAGE_PRIMARY_TYPE;
-import static com.peregrine.commons.util.PerConstants.TEMPLATE;
 import static com.peregrine.commons.util.PerUtil.isPrimaryType;
 
 /**
@@ -49,10 +50,17 @@ public class PerPageImpl extends PerBaseImpl implements PerPage {
 
     /** Reference to the Page Manager **/
     private PerPageManager pageManager;
+    /** Template Chain Index if available otherwise null **/
+    private final TemplateChainIndex templateChainIndex;
 
     public PerPageImpl(Resource resource) {
+        this(resource, null);
+    }
+
+    public PerPageImpl(Resource resource, TemplateChainIndex templateChainIndex) {
         super(resource);
         this.pageManager = new PerPageManagerImpl(resource);
+        this.templateChainIndex = templateChainIndex;
     }
 
     @Override
@@ -123,7 +131,9 @@ public class PerPageImpl extends PerBaseImpl implements PerPage {
     @Override
     public PerPage getTemplate() {
         PerPage answer = null;
-        String templatePath = getContentProperty(TEMPLATE, String.class);
+        String templatePath = templateChainIndex != null ?
+            templateChainIndex.getTemplatePath(getResource()) :
+            TemplateChainIndexService.findTemplatePath(getResource());
         if (templatePath != null) {
             answer = pageManager.getPage(templatePath);
         }
@@ -196,7 +206,7 @@ public class PerPageImpl extends PerBaseImpl implements PerPage {
             }
             if (found) {
                 if (isPrimaryType(child, PAGE_PRIMARY_TYPE)) {
-                    answer = new PerPageImpl(child);
+                    answer = new PerPageImpl(child, templateChainIndex);
                     break;
                 }
             } else {
@@ -244,12 +254,12 @@ public class PerPageImpl extends PerBaseImpl implements PerPage {
             while(child != null) {
                 child = getLastChild(child);
                 if(child != null) {
-                    answer = new PerPageImpl(child);
+                    answer = new PerPageImpl(child, templateChainIndex);
                 }
             }
             return answer;
         } else {
-            return new PerPageImpl(resource.getParent());
+            return new PerPageImpl(resource.getParent(), templateChainIndex);
         }
         // if(answer == null) {
         //     Resource parent = resource.getParent();
@@ -302,7 +312,7 @@ public class PerPageImpl extends PerBaseImpl implements PerPage {
                 last = child;
             }
         }
-        return last != null ? new PerPageImpl(last) : null;
+        return last != null ? new PerPageImpl(last, templateChainIndex) : null;
     }
 
     /**
@@ -30,6 +30,7 @@ import com.peregrine.adaption.PerPage;
 import com.peregrine.adaption.PerPageManager;
 import com.peregrine.replication.PerReplicable;
 import com.peregrine.commons.util.PerUtil;
+import com.peregrine.nodetypes.merge.TemplateChainIndex;
 import com.peregrine.replication.impl.PerReplicableImpl;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.adapter.AdapterFactory;
@@ -37,6 +38,9 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.osgi.framework.Constants;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -74,6 +78,10 @@ public class PeregrineAdapterFactory
 {
     private static final Logger log = LoggerFactory.getLogger(PeregrineAdapterFactory.class);
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    @SuppressWarnings("unused")
+    private volatile TemplateChainIndex templateChainIndex;
+
     @Override
     public <AdapterType> AdapterType getAdapter(Object adaptable,
                                                 Class<AdapterType> type) {
@@ -107,7 +115,7 @@ public class PeregrineAdapterFactory
         final String primaryType = PerUtil.getPrimaryType(resource);
         if(PerPage.class.equals(type)) {
             if(PAGE_PRIMARY_TYPE.equals(primaryType)) {
-                return (AdapterType) new PerPageImpl(resource);
+                return (AdapterType) new PerPageImpl(resource, templateChainIndex);
             }
 
             // Traverse up the tree. If we find a jcr:content of type per:PageContent and its parent is per:Page
@@ -180,7 +188,7 @@ public class PeregrineAdapterFactory
         }
 
         if (isPrimaryType(resource, PAGE_CONTENT_TYPE) && isPrimaryType(parent, PAGE_PRIMARY_TYPE)) {
-            return new PerPageImpl(parent);
+            return new PerPageImpl(parent, templateChainIndex);
         }
 
         // Found jcr:content but either wrong type or no parent -> done
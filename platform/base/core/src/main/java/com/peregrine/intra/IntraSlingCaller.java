@@ -3,12 +3,35 @@ package com.peregrine.intra;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Map;
 
 public interface IntraSlingCaller {
     public CallerContext createContext();
     public byte[] call(CallerContext callerContext) throws CallException;
 
+    /**
+     * Calls the resource and writes the response body straight into the given stream
+     * instead of buffering it. The body of a response with another status than 200 is never
+     * written into the stream but if the call fails later the stream might contain a partial response.
+     * @param callerContext Context of the call
+     * @param outputStream Target of the response body which is not closed by this method
+     * @throws CallException If the call failed or did not return with status 200
+     */
+    public void call(CallerContext callerContext, OutputStream outputStream) throws CallException;
+
+    /**
+     * Calls the resource and writes the response body into the given channel
+     * @param callerContext Context of the call
+     * @param channel Target of the response body which is not closed by this method
+     * @throws CallException If the call failed or did not return with status 200
+     */
+    public default void call(CallerContext callerContext, WritableByteChannel channel) throws CallException {
+        call(callerContext, Channels.newOutputStream(channel));
+    }
+
     interface CallerContext {
         public Resource getResource();
         public CallerContext setResource(Resource resource);
@@ -13,6 +13,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Map;
@@ -20,6 +21,7 @@ import java.util.Map;
 import static com.peregrine.commons.util.PerUtil.EQUALS;
 import static com.peregrine.commons.util.PerUtil.PER_PREFIX;
 import static com.peregrine.commons.util.PerUtil.PER_VENDOR;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.apache.sling.api.servlets.HttpConstants.METHOD_GET;
 import static org.osgi.framework.Constants.SERVICE_DESCRIPTION;
 import static org.osgi.framework.Constants.SERVICE_VENDOR;
@@ -52,6 +54,17 @@ public class IntraSlingCallerService
 
     @Override
     public byte[] call(CallerContext callerContext) throws CallException {
+        MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        process(callerContext, resp);
+        return resp.getOutput();
+    }
+
+    @Override
+    public void call(CallerContext callerContext, OutputStream outputStream) throws CallException {
+        process(callerContext, new OutputStreamSlingHttpServletResponse(outputStream));
+    }
+
+    private void process(CallerContext callerContext, MockSlingHttpServletResponse resp) throws CallException {
         try {
             logger.trace("Intra Sling Caller Context: '{}'", callerContext);
             MockSlingHttpServletRequest req = new MockSlingHttpServletRequest(callerContext.getResourceResolver());
@@ -63,21 +76,19 @@ public class IntraSlingCallerService
             pathInfo.setExtension(callerContext.getExtension());
             pathInfo.setSuffix(callerContext.getSuffix());
             req.setParameterMap(callerContext.getParameterMap());
-            MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
             resp.setCharacterEncoding("utf-8");
             requestProcessor.processRequest(req, resp, callerContext.getResourceResolver());
+            resp.flushBuffer();
             logger.trace("Response Status: '{}'", resp.getStatus());
             //AS TODO: do we need to support redirects (301 / 302)
             if(resp.getStatus() != 200) {
-                String content = resp.getOutput().toString();
+                String content = new String(resp.getOutput(), UTF_8);
                 logger.error("Request of: '{}' failed (status: {}). Output : '{}'", req.getRequestURI(), resp.getStatus(), content);
                 throw new CallException(String.format(CALLING_REQUEST_FAILED, req.getRequestURI(), resp.getStatus()));
-            } else {
-                return resp.getOutput();
             }
         } catch(UnsupportedEncodingException e) {
             throw new CallException(UNSUPPORTED_ENCODING_WHILE_CREATING_THE_CALLER_RESPONSE, e);
-        } catch(ServletException | IOException e) {
+        } catch(ServletException | IOException | IllegalStateException e) {
             throw new CallException(FAILED_TO_CALL_RESOURCE + callerContext, e);
         }
     }
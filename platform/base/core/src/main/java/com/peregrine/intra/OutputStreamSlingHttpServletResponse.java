@@ -0,0 +1,124 @@
+package com.peregrine.intra;
+
+import org.apache.sling.servlethelpers.MockSlingHttpServletResponse;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+
+import static javax.servlet.http.HttpServletResponse.SC_OK;
+
+/**
+ * Response that writes its body straight into the given Output Stream
+ * instead of buffering it. The body cannot be reset once it was written.
+ * The status is checked when the first byte is written: a body of any
+ * other status than 200 (an error page) is kept here instead of being
+ * written into the target.
+ */
+class OutputStreamSlingHttpServletResponse
+    extends MockSlingHttpServletResponse
+{
+    private final ByteArrayOutputStream errorBody = new ByteArrayOutputStream();
+    private final ServletOutputStream outputStream;
+    private PrintWriter writer;
+    private OutputStream sink;
+
+    OutputStreamSlingHttpServletResponse(final OutputStream target) {
+        outputStream = new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                getSink(target).write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                getSink(target).write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (sink != null) {
+                    sink.flush();
+                }
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private OutputStream getSink(final OutputStream target) {
+        if (sink == null) {
+            sink = getStatus() == SC_OK ? target : errorBody;
+        }
+        return sink;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        if (writer == null) {
+            try {
+                writer = new PrintWriter(new OutputStreamWriter(outputStream, getCharacterEncoding()));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() {
+        if (writer != null) {
+            writer.flush();
+        }
+        try {
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return sink != null;
+    }
+
+    @Override
+    public void reset() {
+        if (isCommitted()) {
+            throw new IllegalStateException("Response is already committed");
+        }
+        super.reset();
+    }
+
+    @Override
+    public void resetBuffer() {
+        if (isCommitted()) {
+            throw new IllegalStateException("Response is already committed");
+        }
+        super.resetBuffer();
+    }
+
+    /** @return Body of a failed response or an empty array as the body went into the Output Stream **/
+    @Override
+    public byte[] getOutput() {
+        return errorBody.toByteArray();
+    }
+}
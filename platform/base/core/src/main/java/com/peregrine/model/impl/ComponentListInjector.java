@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.peregrine.model.impl;
+
+import com.peregrine.model.api.AdaptationStatistics;
+import com.peregrine.nodetypes.merge.FragmentCache;
+import com.peregrine.nodetypes.merge.PageMerge;
+import com.peregrine.nodetypes.merge.RenderContext;
+import com.peregrine.nodetypes.models.CachedFragment;
+import com.peregrine.nodetypes.models.IComponent;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.models.factory.ExportException;
+import org.apache.sling.models.factory.MissingExporterException;
+import org.apache.sling.models.factory.ModelFactory;
+import org.apache.sling.models.spi.DisposalCallbackRegistry;
+import org.apache.sling.models.spi.Injector;
+import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.peregrine.commons.util.PerConstants.JACKSON;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Injects lists of child components (like the children of a Container) and memoizes
+ * every adapted component in the current render request so that each component
+ * is only instantiated once per request even if the page is exported several times.
+ *
+ * Components configured in the Fragment Cache are taken from there instead.
+ *
+ * Outside of a page merge this injector steps back and leaves the injection
+ * to the default child resource injector.
+ */
+@Component(
+    service = { Injector.class, AdaptationStatistics.class },
+    property = Constants.SERVICE_RANKING + "=" + "2500"
+)
+public final class ComponentListInjector implements Injector, AdaptationStatistics {
+
+    private static final String MEMO_ATTRIBUTE = ComponentListInjector.class.getName() + ".memo";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    @SuppressWarnings("unused")
+    private volatile FragmentCache fragmentCache;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    @SuppressWarnings("unused")
+    private volatile ModelFactory modelFactory;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Override
+    public String getName() {
+        return "componentlist";
+    }
+
+    @Override
+    public Object getValue(
+            final Object adaptable,
+            final String name,
+            final Type type,
+            final AnnotatedElement element,
+            final DisposalCallbackRegistry callbackRegistry
+    ) {
+        if (!(adaptable instanceof Resource) || !isComponentList(type)) {
+            return null;
+        }
+
+        final Resource resource = (Resource) adaptable;
+        final SlingHttpServletRequest request = getRenderRequest(resource);
+        if (isNull(request)) {
+            return null;
+        }
+
+        final Map<String, IComponent> memo = getMemo(request);
+
+        final Resource parent = resource.getChild(name);
+        if (isNull(parent)) {
+            return null;
+        }
+
+        final List<IComponent> answer = new ArrayList<>();
+        for (final Resource child : parent.getChildren()) {
+            final IComponent component = adapt(memo, child, request);
+            if (isNull(component)) {
+                // Let the default injector decide how to handle a child that is no component
+                return null;
+            }
+
+            answer.add(component);
+        }
+
+        return answer;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private IComponent adapt(final Map<String, IComponent> memo, final Resource resource, final SlingHttpServletRequest request) {
+        final String path = resource.getPath();
+        IComponent answer = memo.get(path);
+        if (isNull(answer)) {
+            misses.incrementAndGet();
+            answer = adaptFragment(resource, request);
+            if (nonNull(answer)) {
+                memo.put(path, answer);
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+
+        return answer;
+    }
+
+    /**
+     * Adapts the given resource and takes the exported model from the Fragment Cache
+     * if the resource is a cached fragment
+     */
+    private IComponent adaptFragment(final Resource resource, final SlingHttpServletRequest request) {
+        final FragmentCache cache = fragmentCache;
+        final ModelFactory factory = modelFactory;
+        if (isNull(cache) || isNull(factory) || !cache.isFragment(resource)) {
+            return resource.adaptTo(IComponent.class);
+        }
+
+        Map fragment = cache.get(resource, request);
+        if (isNull(fragment)) {
+            final IComponent component = resource.adaptTo(IComponent.class);
+            if (isNull(component)) {
+                return null;
+            }
+
+            try {
+                fragment = factory.exportModel(component, JACKSON, Map.class, Collections.emptyMap());
+            } catch (final ExportException | MissingExporterException e) {
+                log.warn("Failed to export fragment: '{}' -> not cached", resource.getPath(), e);
+                return component;
+            }
+
+            cache.put(resource, request, fragment);
+        }
+
+        return new CachedFragment(resource, fragment);
+    }
+
+    private static boolean isComponentList(final Type type) {
+        if (!(type instanceof ParameterizedType)) {
+            return false;
+        }
+
+        final ParameterizedType parameterizedType = (ParameterizedType) type;
+        final Type rawType = parameterizedType.getRawType();
+        final Type[] arguments = parameterizedType.getActualTypeArguments();
+        return (rawType == List.class || rawType == Collection.class)
+            && arguments.length == 1 && arguments[0] == IComponent.class;
+    }
+
+    /**
+     * Obtains the request currently rendered. Only a render context of an ongoing page merge
+     * is used as a context set up by an earlier request on this thread is never removed.
+     * The request has to belong to the resolver of the resource as well.
+     * @return Request rendering the resource or null if not inside a page merge
+     */
+    private static SlingHttpServletRequest getRenderRequest(final Resource resource) {
+        final RenderContext renderContext = PageMerge.getRenderContext();
+        if (isNull(renderContext) || !renderContext.isMerging()) {
+            return null;
+        }
+
+        final SlingHttpServletRequest request = renderContext.getRequest();
+        if (isNull(request) || request.getResourceResolver() != resource.getResourceResolver()) {
+            return null;
+        }
+
+        return request;
+    }
+
+    /** @return Memo of components by path of the given request **/
+    @SuppressWarnings("unchecked")
+    private static Map<String, IComponent> getMemo(final SlingHttpServletRequest request) {
+        Map<String, IComponent> answer = (Map<String, IComponent>) request.getAttribute(MEMO_ATTRIBUTE);
+        if (isNull(answer)) {
+            answer = new HashMap<>();
+            request.setAttribute(MEMO_ATTRIBUTE, answer);
+        }
+
+        return answer;
+    }
+}
@@ -0,0 +1,60 @@
+package com.peregrine.nodetypes.merge;
+
+/*-
+ * #%L
+ * peregrine default node types - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+
+import java.util.Map;
+
+/**
+ * Keeps the exported model map of shared components (like headers and footers)
+ * so that they are not rebuilt for every page of a site
+ */
+public interface FragmentCache {
+
+    /**
+     * @param component Component resource
+     * @return True if the resource type of the component is cached as a fragment
+     */
+    boolean isFragment(Resource component);
+
+    /**
+     * Obtains the exported model of the given component rendered in the given request
+     * @param component Component resource
+     * @param request Request that renders the component
+     * @return Unmodifiable exported model map or null if it is not cached
+     */
+    Map get(Resource component, SlingHttpServletRequest request);
+
+    /**
+     * Places the exported model of the given component into the cache
+     * @param component Component resource
+     * @param request Request that rendered the component
+     * @param fragment Exported model map of the component
+     */
+    void put(Resource component, SlingHttpServletRequest request, Map fragment);
+}
@@ -0,0 +1,286 @@
+package com.peregrine.nodetypes.merge;
+
+/*-
+ * #%L
+ * peregrine default node types - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import com.peregrine.versions.VersioningResourceResolver;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.peregrine.commons.util.PerConstants.PAGES;
+import static com.peregrine.commons.util.PerConstants.SLASH;
+import static com.peregrine.commons.util.PerUtil.EQUALS;
+import static com.peregrine.commons.util.PerUtil.PER_PREFIX;
+import static com.peregrine.commons.util.PerUtil.PER_VENDOR;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.substringAfter;
+import static org.apache.commons.lang3.StringUtils.substringBefore;
+import static org.osgi.framework.Constants.SERVICE_DESCRIPTION;
+import static org.osgi.framework.Constants.SERVICE_VENDOR;
+
+/**
+ * Caches the exported model of components whose resource type is configured as fragment.
+ * An entry is kept per component path, request selectors, tenant and user. Fragments flagged
+ * as page dependent (like a breadcrumb) are kept per requested page as well. Requests of
+ * versioned content bypass the cache as moving a version label is not observed.
+ *
+ * A change below a cached component drops its fragments. As navigation components
+ * read the pages of their site any change below the pages of a tenant drops all
+ * fragments of that tenant.
+ */
+@Component(
+    service = { FragmentCache.class, ResourceChangeListener.class },
+    immediate = true,
+    property = {
+        SERVICE_DESCRIPTION + EQUALS + PER_PREFIX + "Fragment Cache",
+        SERVICE_VENDOR + EQUALS + PER_VENDOR
+    }
+)
+@Designate(ocd = FragmentCacheService.Configuration.class)
+public class FragmentCacheService
+    implements FragmentCache, ResourceChangeListener
+{
+    public static final String PAGE_DEPENDENT = "page";
+    private static final String CONTENT_ROOT = "/content/";
+    private static final char SEPARATOR = '|';
+
+    @ObjectClassDefinition(
+        name = "Peregrine: Fragment Cache",
+        description = "Caches the exported model of shared components like headers and footers"
+    )
+    @interface Configuration {
+        @AttributeDefinition(
+            name = "Enabled",
+            description = "If enabled the exported models of the fragment resource types are cached",
+            defaultValue = "false"
+        )
+        boolean enabled() default false;
+        @AttributeDefinition(
+            name = "Fragment Resource Types",
+            description = "List of component resource types cached as fragment in the format of <resource type>[=" +
+                PAGE_DEPENDENT + "]. Add '=" + PAGE_DEPENDENT + "' if the component renders content of the requested page"
+        )
+        String[] resourceTypes() default {
+            "themeclean/components/header",
+            "themeclean/components/footer",
+            "themeclean/components/breadcrumb=" + PAGE_DEPENDENT
+        };
+        @AttributeDefinition(
+            name = "Max Entries",
+            description = "Maximum number of fragments kept in the cache. The cache is cleared when it is full",
+            defaultValue = "10000"
+        )
+        int maxEntries() default 10_000;
+        @AttributeDefinition(
+            name = "Paths Observed",
+            description = "Comes from org.apache.sling.api.resource.observation.ResourceChangeListener"
+        )
+        String[] resource_paths() default "/content";
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Map<String, Fragment> fragments = new ConcurrentHashMap<>();
+    private volatile Map<String, Boolean> resourceTypes = Collections.emptyMap();
+    private volatile boolean enabled;
+    private volatile int maxEntries;
+
+    @Activate
+    @SuppressWarnings("unused")
+    void activate(Configuration configuration) { setup(configuration); }
+    @Modified
+    @SuppressWarnings("unused")
+    void modified(Configuration configuration) { setup(configuration); }
+
+    private void setup(Configuration configuration) {
+        final Map<String, Boolean> types = new HashMap<>();
+        if (nonNull(configuration.resourceTypes())) {
+            for (final String entry : configuration.resourceTypes()) {
+                if (isBlank(entry)) {
+                    continue;
+                }
+
+                final String type = substringBefore(entry, "=").trim();
+                types.put(type, PAGE_DEPENDENT.equals(substringAfter(entry, "=").trim()));
+            }
+        }
+
+        resourceTypes = types;
+        enabled = configuration.enabled();
+        maxEntries = Math.max(configuration.maxEntries(), 1);
+        fragments.clear();
+        log.debug("Fragment Cache enabled: '{}', resource types: '{}', max entries: '{}'", enabled, types, maxEntries);
+    }
+
+    @Override
+    public boolean isFragment(final Resource component) {
+        return enabled && nonNull(component) && resourceTypes.containsKey(component.getResourceType());
+    }
+
+    @Override
+    public Map get(final Resource component, final SlingHttpServletRequest request) {
+        if (!isFragment(component) || isNull(request)) {
+            return null;
+        }
+
+        final String key = key(component, request);
+        final Fragment fragment = isNull(key) ? null : fragments.get(key);
+        return isNull(fragment) ? null : fragment.model;
+    }
+
+    @Override
+    public void put(final Resource component, final SlingHttpServletRequest request, final Map fragment) {
+        if (!isFragment(component) || isNull(request) || isNull(fragment)) {
+            return;
+        }
+
+        final String key = key(component, request);
+        if (isNull(key)) {
+            return;
+        }
+
+        if (fragments.size() >= maxEntries) {
+            log.debug("Fragment Cache is full -> clear it");
+            fragments.clear();
+        }
+
+        final String tenant = getTenant(request.getResource().getPath());
+        fragments.put(key, new Fragment(component.getPath(), tenant, fragment));
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes) {
+        final Set<String> changedPaths = new HashSet<>();
+        final Set<String> changedAncestors = new HashSet<>();
+        final Set<String> pageTenants = new HashSet<>();
+        for (final ResourceChange change : changes) {
+            final String path = change.getPath();
+            final String tenant = getTenant(path);
+            final boolean pageChange = nonNull(tenant) && path.startsWith(CONTENT_ROOT + tenant + SLASH + PAGES);
+            log.trace("Fragment Change: '{}', page change: '{}'", path, pageChange);
+            if (pageChange) {
+                pageTenants.add(tenant);
+            }
+
+            changedPaths.add(path);
+            for (String current = path; !current.isEmpty(); current = getParentPath(current)) {
+                changedAncestors.add(current);
+            }
+        }
+
+        if (!changedPaths.isEmpty()) {
+            fragments.values().removeIf(fragment ->
+                pageTenants.contains(fragment.tenant) || fragment.isAffectedBy(changedPaths, changedAncestors));
+        }
+    }
+
+    private String key(final Resource component, final SlingHttpServletRequest request) {
+        final ResourceResolver resourceResolver = request.getResourceResolver();
+        final String versionKey = isNull(resourceResolver) ? null : VersioningResourceResolver.getVersionKey(resourceResolver);
+        if (isNull(versionKey) || !versionKey.isEmpty()) {
+            return null;
+        }
+
+        final String requestPath = request.getResource().getPath();
+        final StringBuilder answer = new StringBuilder(component.getPath())
+            .append(SEPARATOR).append(request.getRequestPathInfo().getSelectorString())
+            .append(SEPARATOR).append(getTenant(requestPath))
+            .append(SEPARATOR).append(resourceResolver.getUserID());
+        if (Boolean.TRUE.equals(resourceTypes.get(component.getResourceType()))) {
+            answer.append(SEPARATOR).append(requestPath);
+        }
+
+        return answer.toString();
+    }
+
+    /** @return Name of the tenant of the given path or null if the path is not inside of /content **/
+    private static String getTenant(final String path) {
+        if (isNull(path) || !path.startsWith(CONTENT_ROOT)) {
+            return null;
+        }
+
+        final String tenant = substringBefore(path.substring(CONTENT_ROOT.length()), SLASH);
+        return isBlank(tenant) ? null : tenant;
+    }
+
+    private static String getParentPath(final String path) {
+        return path.substring(0, Math.max(path.lastIndexOf(SLASH), 0));
+    }
+
+    private static final class Fragment {
+
+        private final String path;
+        private final String tenant;
+        private final Map model;
+
+        @SuppressWarnings("unchecked")
+        private Fragment(final String path, final String tenant, final Map model) {
+            this.path = path;
+            this.tenant = tenant;
+            this.model = Collections.unmodifiableMap(new LinkedHashMap(model));
+        }
+
+        /**
+         * @param changedPaths Changed paths
+         * @param changedAncestors Changed paths and all their ancestors
+         * @return True if a changed path is the component, inside of it or one of its ancestors
+         */
+        private boolean isAffectedBy(final Set<String> changedPaths, final Set<String> changedAncestors) {
+            if (changedAncestors.contains(path)) {
+                return true;
+            }
+
+            for (String current = getParentPath(path); !current.isEmpty(); current = getParentPath(current)) {
+                if (changedPaths.contains(current)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+}
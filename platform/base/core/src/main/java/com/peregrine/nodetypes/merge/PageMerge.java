@@ -25,6 +25,7 @@ package com.peregrine.nodetypes.merge;
  * #L%
  */
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
@@ -38,10 +39,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.script.Bindings;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -52,9 +57,8 @@ import static com.peregrine.commons.util.PerConstants.COMPONENT;
 import static com.peregrine.commons.util.PerConstants.JACKSON;
 import static com.peregrine.commons.util.PerConstants.JCR_CONTENT;
 import static com.peregrine.commons.util.PerConstants.NT_UNSTRUCTURED;
-import static com.peregrine.commons.util.PerConstants.PAGE_PRIMARY_TYPE;
 import static com.peregrine.commons.util.PerConstants.PATH;
-import static java.util.regex.Pattern.compile;
+import static org.apache.sling.api.scripting.SlingBindings.OUT;
 import static org.apache.sling.api.scripting.SlingBindings.RESOLVER;
 import static org.apache.sling.api.scripting.SlingBindings.RESOURCE;
 
@@ -67,6 +71,7 @@ public class PageMerge implements Use {
     private final Logger log = LoggerFactory.getLogger(PageMerge.class);
 
     private static ThreadLocal<RenderContext> renderContext = new ThreadLocal<>();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
 
     public static final String FROM_TEMPLATE = "fromTemplate";
     public static final String CHILDREN = "children";
@@ -74,23 +79,34 @@ public class PageMerge implements Use {
     public static final String SLING = "sling";
     public static final String TEMPLATE = "template";
     public static final String MODEL_FACTORY = "modelFactory";
+    public static final String TEMPLATE_MERGE_CACHE = "templateMergeCache";
+    public static final String TEMPLATE_CHAIN_INDEX = "templateChainIndex";
     public static final String REGEX_TEMPLATES = "(?<=\\/content\\/)([a-zA-Z0-9\\\\s\\\\_-])*(?=\\/templates)";
 
     private ModelFactory modelFactory;
+    private TemplateMergeCache templateMergeCache;
+    private TemplateChainIndex templateChainIndex;
     private ResourceResolver resolver;
     private SlingHttpServletRequest request;
     private Resource resource;
+    private PrintWriter out;
+    private final Map<String, Resource> resourceCache = new HashMap<>();
+    private List<String> templateAncestry;
     public static RenderContext getRenderContext() {
         return renderContext.get();
     }
 
     public String getMerged() {
-        log.debug("merge on {}", request.getResource().getPath());
-        Resource res = request.getResource();
-        if(res.getName().equals(JCR_CONTENT)) {
-            res = res.getParent();
-        }
-        return toJSON(getMerged(res));
+        return toJSON(getMergedRequestPage(), false);
+    }
+
+    /**
+     * Writes the merged page straight to the script output instead of
+     * building the JSon String first
+     * @return Empty String as the content is already written
+     */
+    public String getMergedToOut() {
+        return writeToOut(false);
     }
 
     public List<Resource> getMergedResources(){
@@ -111,49 +127,103 @@ public class PageMerge implements Use {
     }
 
     private void getChildren(Map map, List resources) {
-        String templatePath = getTemplatePath();
-        String relativePath = (String) map.get("path");
-        String basePath = resource.getPath();
-
-        if (Objects.nonNull(resolver.getResource(basePath+relativePath))){
-            // if resource is from the template and the resource is not a type of container
-            // then the base path should point to the template
-            resources.add(resolver.getResource(basePath+relativePath));
-
-        } else if (Objects.nonNull(resolver.getResource(templatePath+relativePath))){
-            // if resource is from the template and the resource is type of container
-            // then the base path should point to the page
-            resources.add(resolver.getResource(templatePath+relativePath));
-        } else {
-            // otherwise try to add content resource inherited from parent templates
-            Resource templateContent = this.resolver.getResource(basePath+relativePath);
-            Resource templateResource = this.resolver.getResource(templatePath);
-            while (Objects.isNull(templateContent) && Objects.nonNull(templateResource)){
-                // while loop logic. Enter if templateContent is null, but templateResource is non null.
-                // then try to resolve the templateContent from template parents content
-                // exit while loop when templateContent is resolved or templateResource becomes null
-                templateResource = templateResource.getParent();
-                if (Objects.nonNull(templateResource)) {
-                    templateContent = resolver.getResource(templateResource.getPath()+relativePath);
+        String relativePath = (String) map.get(PATH);
+        // resources of the page itself win over the ones of the template (and its parents)
+        Resource child = getResource(resource.getPath() + relativePath);
+        if (Objects.isNull(child)) {
+            for (String templatePath : getTemplateAncestry()) {
+                child = getResource(templatePath + relativePath);
+                if (Objects.nonNull(child)) {
+                    break;
                 }
             }
-            if (Objects.nonNull(templateContent)){
-                resources.add(templateContent);
+        }
+        if (Objects.nonNull(child)){
+            resources.add(child);
+        }
+    }
+
+    /**
+     * Resolves the resource with the given path only once per render. Missing
+     * resources are remembered as well.
+     */
+    private Resource getResource(String path) {
+        if (resourceCache.containsKey(path)) {
+            return resourceCache.get(path);
+        }
+        Resource answer = resolver.getResource(path);
+        resourceCache.put(path, answer);
+        return answer;
+    }
+
+    /** @return Paths of the page's template followed by the paths of all its parents **/
+    private List<String> getTemplateAncestry() {
+        if (Objects.isNull(templateAncestry)) {
+            templateAncestry = new ArrayList<>();
+            String templatePath = getTemplatePath();
+            if (Objects.nonNull(templatePath)) {
+                templateAncestry.add(templatePath);
+                Resource templateResource = getResource(templatePath);
+                Resource parent = Objects.isNull(templateResource) ? null : templateResource.getParent();
+                while (Objects.nonNull(parent)) {
+                    templateAncestry.add(parent.getPath());
+                    parent = parent.getParent();
+                }
             }
         }
+        return templateAncestry;
     }
 
     public String getMergedForScript() {
+        return toJSON(getMergedRequestPage(), true);
+    }
+
+    /**
+     * Writes the merged page straight to the script output with the
+     * characters escaped that could end the enclosing script tag
+     * @return Empty String as the content is already written
+     */
+    public String getMergedForScriptToOut() {
+        return writeToOut(true);
+    }
+
+    private Map getMergedRequestPage() {
         log.debug("merge on {}", request.getResource().getPath());
         Resource res = request.getResource();
         if(res.getName().equals(JCR_CONTENT)) {
             res = res.getParent();
         }
-        String merged = toJSON(getMerged(res));
-        return merged.replaceAll("</script>", "<\\\\/script>");
+        return getMerged(res);
+    }
+
+    private String writeToOut(boolean scriptSafe) {
+        if(out == null) {
+            return toJSON(getMergedRequestPage(), scriptSafe);
+        }
+        try {
+            writeJSON(getMergedRequestPage(), out, scriptSafe);
+        } catch (IOException e) {
+            log.error("not able to write merged page", e);
+        }
+        return "";
     }
 
     public Map getMerged(Resource resource) {
+        // the render context is only marked as merging while the models are exported
+        final RenderContext previous = renderContext.get();
+        renderContext.set(new RenderContext(request, true));
+        try {
+            return mergeResource(resource);
+        } finally {
+            if (Objects.isNull(previous)) {
+                renderContext.remove();
+            } else {
+                renderContext.set(previous);
+            }
+        }
+    }
+
+    private Map mergeResource(Resource resource) {
         log.debug("getMerge({})", resource.getPath());
         try {
             Resource content = resource.getChild(JCR_CONTENT);
@@ -162,15 +232,10 @@ public class PageMerge implements Use {
                 .exportModelForResource(content, JACKSON, Map.class, Collections.emptyMap());
             String templatePath = (String) page.get(TEMPLATE);
             if(templatePath == null) {
-                if(compile(REGEX_TEMPLATES).matcher(resource.getParent().getPath()).find()) {
-                    if(resource.getParent().getResourceType().equals(PAGE_PRIMARY_TYPE)) {
-                        templatePath = resource.getParent().getPath();
-                    }
-                }
+                templatePath = findTemplatePath(resource);
             }
             if(templatePath != null) {
-                Map template = getMerged(this.resolver.getResource(templatePath));
-                flagFromTemplate(template);
+                Map template = getMergedTemplate(getResource(templatePath));
                 return merge(template, page);
             }
             return page;
@@ -182,6 +247,22 @@ public class PageMerge implements Use {
         return Collections.<String, String> emptyMap();
     }
 
+    private Map getMergedTemplate(Resource templateResource) {
+        if(templateMergeCache != null) {
+            Map template = templateMergeCache.get(templateResource);
+            if(template != null) {
+                log.debug("use cached template {}", templateResource.getPath());
+                return template;
+            }
+        }
+        Map template = mergeResource(templateResource);
+        flagFromTemplate(template);
+        if(templateMergeCache != null) {
+            templateMergeCache.put(templateResource, template);
+        }
+        return template;
+    }
+
     private void flagFromTemplate(Map template) {
         template.put(FROM_TEMPLATE, Boolean.TRUE);
         for(Object key: template.keySet()) {
@@ -199,8 +280,14 @@ public class PageMerge implements Use {
     }
 
     private String getTemplatePath(){
-        Resource jcrContent = this.resource.getChild(JCR_CONTENT);
-        return jcrContent.getValueMap().get(TEMPLATE, String.class);
+        return findTemplatePath(this.resource);
+    }
+
+    private String findTemplatePath(Resource page) {
+        if(templateChainIndex != null) {
+            return templateChainIndex.getTemplatePath(page);
+        }
+        return TemplateChainIndexService.findTemplatePath(page);
     }
 
     private Map merge(Map template, Map page) {
@@ -251,31 +338,121 @@ public class PageMerge implements Use {
         }
     }
 
-    private String toJSON(Map template) {
+    private String toJSON(Map template, boolean scriptSafe) {
         StringWriter writer = new StringWriter();
-        ObjectMapper mapper = new ObjectMapper();
         try {
-            mapper.writeValue(writer, template);
-            writer.close();
+            writeJSON(template, writer, scriptSafe);
         } catch (IOException e) {
             log.error("not able to create string writer", e);
         }
         return writer.toString();
     }
 
+    private void writeJSON(Map template, Writer writer, boolean scriptSafe) throws IOException {
+        ScriptSafeWriter scriptSafeWriter = scriptSafe ? new ScriptSafeWriter(writer) : null;
+        try (JsonGenerator json = MAPPER.getFactory().createGenerator(scriptSafe ? scriptSafeWriter : writer)) {
+            // The target writer belongs to the caller (script output)
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            json.writeObject(template);
+        }
+        if(scriptSafe) {
+            scriptSafeWriter.finish();
+        }
+    }
+
+    /**
+     * Replaces '</script>' by '<\/script>' while the JSon is written so that it cannot end the
+     * enclosing script tag. A '<' only occurs inside of JSon Strings, so this gives the same
+     * output as replacing it in the whole JSon String.
+     */
+    private static class ScriptSafeWriter extends FilterWriter {
+        private static final String END_TAG = "</script>";
+        private static final String ESCAPED_END_TAG = "<\\/script>";
+
+        // number of characters of the end tag that are matched and held back
+        private int matched;
+
+        private ScriptSafeWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if(c == END_TAG.charAt(matched)) {
+                if(++matched == END_TAG.length()) {
+                    out.write(ESCAPED_END_TAG);
+                    matched = 0;
+                }
+                return;
+            }
+            if(matched > 0) {
+                out.write(END_TAG, 0, matched);
+                matched = 0;
+                // '<' only appears at the start of the end tag
+                if(c == END_TAG.charAt(0)) {
+                    matched = 1;
+                    return;
+                }
+            }
+            out.write(c);
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            int start = offset;
+            int end = offset + length;
+            for(int i = offset; i < end; i++) {
+                // text outside of a possible end tag is written as a whole
+                if(matched > 0 || buffer[i] == END_TAG.charAt(0)) {
+                    out.write(buffer, start, i - start);
+                    write(buffer[i]);
+                    start = i + 1;
+                }
+            }
+            out.write(buffer, start, end - start);
+        }
+
+        @Override
+        public void write(String text, int offset, int length) throws IOException {
+            int start = offset;
+            int end = offset + length;
+            for(int i = offset; i < end; i++) {
+                if(matched > 0 || text.charAt(i) == END_TAG.charAt(0)) {
+                    out.write(text, start, i - start);
+                    write(text.charAt(i));
+                    start = i + 1;
+                }
+            }
+            out.write(text, start, end - start);
+        }
+
+        /** Writes the characters held back for a partial match of the end tag **/
+        private void finish() throws IOException {
+            if(matched > 0) {
+                out.write(END_TAG, 0, matched);
+                matched = 0;
+            }
+        }
+    }
+
     @Override
     public void init(final Bindings bindings) {
         request = (SlingHttpServletRequest) bindings.get(REQUEST);
         resource = (Resource) bindings.get(RESOURCE);
+        out = (PrintWriter) bindings.get(OUT);
         renderContext.set(new RenderContext(request));
         resolver = (ResourceResolver) bindings.get(RESOLVER);
         SlingScriptHelper sling = (SlingScriptHelper) bindings.get(SLING);
         if (Objects.nonNull(sling)) {
             // the typical path
             modelFactory = sling.getService(ModelFactory.class);
+            templateMergeCache = sling.getService(TemplateMergeCache.class);
+            templateChainIndex = sling.getService(TemplateChainIndex.class);
         } else if ( Objects.nonNull(bindings.get(MODEL_FACTORY))) {
             // for unit testing
             modelFactory = (ModelFactory) bindings.get(MODEL_FACTORY);
+            templateMergeCache = (TemplateMergeCache) bindings.get(TEMPLATE_MERGE_CACHE);
+            templateChainIndex = (TemplateChainIndex) bindings.get(TEMPLATE_CHAIN_INDEX);
         }
     }
 }
@@ -33,9 +33,20 @@ import org.apache.sling.api.SlingHttpServletRequest;
 public class RenderContext {
 
     private final SlingHttpServletRequest request;
+    private final boolean merging;
 
     public RenderContext(SlingHttpServletRequest request) {
+        this(request, false);
+    }
+
+    RenderContext(SlingHttpServletRequest request, boolean merging) {
         this.request = request;
+        this.merging = merging;
+    }
+
+    /** @return true while the page of the request is merged, false for a context left over from the script setup **/
+    public boolean isMerging() {
+        return merging;
     }
 
     public SlingHttpServletRequest getRequest() {
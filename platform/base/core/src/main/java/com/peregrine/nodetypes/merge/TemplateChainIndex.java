@@ -0,0 +1,54 @@
+package com.peregrine.nodetypes.merge;
+
+/*-
+ * #%L
+ * peregrine default node types - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.sling.api.resource.Resource;
+
+import java.util.List;
+
+/**
+ * Index of the template inheritance of pages so that the chain
+ * page -> template -> parent templates does not need to be discovered
+ * on every access
+ */
+public interface TemplateChainIndex {
+
+    /**
+     * Obtains the direct template of a page. This is the template property of the
+     * page's content or, for a page inside a templates folder, its parent template
+     * @param page Page resource
+     * @return Path of the template or null if the page has no template
+     */
+    String getTemplatePath(Resource page);
+
+    /**
+     * Obtains the template chain of a page
+     * @param page Page resource
+     * @return Paths of the template of the given page followed by the template of that
+     *         template and so on. The list is empty if the page has no template.
+     */
+    List<String> getTemplateChain(Resource page);
+}
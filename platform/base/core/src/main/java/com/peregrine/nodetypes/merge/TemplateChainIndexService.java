@@ -0,0 +1,227 @@
+package com.peregrine.nodetypes.merge;
+
+/*-
+ * #%L
+ * peregrine default node types - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import com.peregrine.versions.VersioningResourceResolver;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import static com.peregrine.commons.util.PerConstants.JCR_CONTENT;
+import static com.peregrine.commons.util.PerConstants.PAGE_PRIMARY_TYPE;
+import static com.peregrine.commons.util.PerConstants.SLASH;
+import static com.peregrine.commons.util.PerUtil.EQUALS;
+import static com.peregrine.commons.util.PerUtil.PER_PREFIX;
+import static com.peregrine.commons.util.PerUtil.PER_VENDOR;
+import static com.peregrine.nodetypes.merge.PageMerge.REGEX_TEMPLATES;
+import static com.peregrine.nodetypes.merge.PageMerge.TEMPLATE;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static org.apache.sling.api.resource.observation.ResourceChange.ChangeType.CHANGED;
+import static org.osgi.framework.Constants.SERVICE_DESCRIPTION;
+import static org.osgi.framework.Constants.SERVICE_VENDOR;
+
+/**
+ * Keeps the direct template of every page that was looked up in memory, per version label
+ * of the resolver (i.e. the current content and the published versions are kept apart).
+ * Entries are dropped when the page (or its content) changes so that the
+ * next lookup reads the page again, and the least recently used pages are dropped
+ * when the index is full.
+ */
+@Component(
+    service = { TemplateChainIndex.class, ResourceChangeListener.class },
+    immediate = true,
+    property = {
+        SERVICE_DESCRIPTION + EQUALS + PER_PREFIX + "Template Chain Index",
+        SERVICE_VENDOR + EQUALS + PER_VENDOR
+    }
+)
+@Designate(ocd = TemplateChainIndexService.Configuration.class)
+public class TemplateChainIndexService
+    implements TemplateChainIndex, ResourceChangeListener
+{
+    private static final String NO_TEMPLATE = "";
+    private static final String SLASH_JCR_CONTENT = SLASH + JCR_CONTENT;
+    private static final Pattern TEMPLATES_PATTERN = Pattern.compile(REGEX_TEMPLATES);
+
+    @ObjectClassDefinition(
+        name = "Peregrine: Template Chain Index",
+        description = "Keeps the template of the pages in memory"
+    )
+    @interface Configuration {
+        @AttributeDefinition(
+            name = "Max Entries",
+            description = "Maximum number of pages kept in the index, the least recently used ones are dropped beyond that",
+            defaultValue = "100000"
+        )
+        int maxEntries() default 100_000;
+        @AttributeDefinition(
+            name = "Paths Observed",
+            description = "Comes from org.apache.sling.api.resource.observation.ResourceChangeListener"
+        )
+        String[] resource_paths() default "/content";
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /** Page Path to its Template Path or NO_TEMPLATE by the Version Key of the resolver, in the order of access **/
+    private final Map<String, Map<String, String>> templates = Collections.synchronizedMap(
+        new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Map<String, String>> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    private volatile int maxEntries;
+
+    @Activate
+    @SuppressWarnings("unused")
+    void activate(Configuration configuration) { setup(configuration); }
+    @Modified
+    @SuppressWarnings("unused")
+    void modified(Configuration configuration) { setup(configuration); }
+
+    private void setup(Configuration configuration) {
+        maxEntries = Math.max(configuration.maxEntries(), 1);
+        templates.clear();
+        log.debug("Template Chain Index keeps up to '{}' pages", maxEntries);
+    }
+
+    @Override
+    public String getTemplatePath(final Resource page) {
+        if (isNull(page)) {
+            return null;
+        }
+
+        final String versionKey = VersioningResourceResolver.getVersionKey(page.getResourceResolver());
+        if (isNull(versionKey)) {
+            // Versions that are not known by a label cannot be kept apart from the others
+            return findTemplatePath(page);
+        }
+
+        final Map<String, String> byVersion = templates.computeIfAbsent(page.getPath(), p -> new ConcurrentHashMap<>());
+        String answer = byVersion.get(versionKey);
+        if (isNull(answer)) {
+            answer = findTemplatePath(page);
+            byVersion.put(versionKey, isNull(answer) ? NO_TEMPLATE : answer);
+            return answer;
+        }
+
+        return NO_TEMPLATE.equals(answer) ? null : answer;
+    }
+
+    @Override
+    public List<String> getTemplateChain(final Resource page) {
+        final List<String> answer = new ArrayList<>();
+        final Set<String> visited = new HashSet<>();
+        visited.add(page.getPath());
+        String templatePath = getTemplatePath(page);
+        while (nonNull(templatePath) && visited.add(templatePath)) {
+            answer.add(templatePath);
+            final Resource template = page.getResourceResolver().getResource(templatePath);
+            templatePath = getTemplatePath(template);
+        }
+
+        return answer;
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes) {
+        final Set<String> subtrees = new HashSet<>();
+        for (final ResourceChange change : changes) {
+            final String path = change.getPath();
+            final int index = path.indexOf(SLASH_JCR_CONTENT);
+            if (index >= 0) {
+                // Content changes only affect the page itself
+                templates.remove(path.substring(0, index));
+            } else if (change.getType() == CHANGED) {
+                templates.remove(path);
+            } else {
+                // Pages added or removed change the templates of sub templates below them
+                subtrees.add(path);
+            }
+        }
+
+        if (subtrees.isEmpty()) {
+            return;
+        }
+
+        synchronized (templates) {
+            templates.keySet().removeIf(key -> isInSubtrees(key, subtrees));
+        }
+    }
+
+    private static boolean isInSubtrees(final String path, final Set<String> subtrees) {
+        for (String current = path; !current.isEmpty(); current = current.substring(0, Math.max(current.lastIndexOf(SLASH), 0))) {
+            if (subtrees.contains(current)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Looks up the direct template of a page in the repository. This is the template
+     * property of the page's content and if there is none, for a page inside a templates
+     * folder, its parent page.
+     * @param page Page resource
+     * @return Path of the template or null if there is none
+     */
+    public static String findTemplatePath(final Resource page) {
+        final Resource content = page.getChild(JCR_CONTENT);
+        final String template = isNull(content) ? null : content.getValueMap().get(TEMPLATE, String.class);
+        if (nonNull(template)) {
+            return template;
+        }
+
+        final Resource parent = page.getParent();
+        if (nonNull(parent) && TEMPLATES_PATTERN.matcher(parent.getPath()).find()
+                && PAGE_PRIMARY_TYPE.equals(parent.getResourceType())) {
+            return parent.getPath();
+        }
+
+        return null;
+    }
+}
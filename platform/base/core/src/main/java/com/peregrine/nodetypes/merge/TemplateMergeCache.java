@@ -0,0 +1,58 @@
+package com.peregrine.nodetypes.merge;
+
+/*-
+ * #%L
+ * peregrine default node types - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.sling.api.resource.Resource;
+
+import java.util.Map;
+
+/**
+ * Keeps the merged and template flagged model map of a template so that
+ * the template chain does not have to be exported again for every page render
+ */
+public interface TemplateMergeCache {
+
+    /**
+     * Obtains the merged model of the given template if it is cached and still up to date
+     * @param template Template page resource
+     * @return Copy of the cached merged template map that can be modified by the caller
+     *         or null if the template is not cached or the cache entry is stale
+     */
+    Map get(Resource template);
+
+    /**
+     * Places the merged model of the given template into the cache
+     * @param template Template page resource
+     * @param merged Merged and template flagged model map. A copy of it is stored.
+     */
+    void put(Resource template, Map merged);
+
+    /**
+     * Removes all cached templates that are the given path or are located below it
+     * @param path Path of the changed resource
+     */
+    void evict(String path);
+}
@@ -0,0 +1,227 @@
+package com.peregrine.nodetypes.merge;
+
+/*-
+ * #%L
+ * peregrine default node types - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import com.peregrine.commons.Page;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.peregrine.commons.util.PerConstants.SLASH;
+import static com.peregrine.commons.util.PerUtil.EQUALS;
+import static com.peregrine.commons.util.PerUtil.PER_PREFIX;
+import static com.peregrine.commons.util.PerUtil.PER_VENDOR;
+import static java.util.Objects.isNull;
+import static org.osgi.framework.Constants.SERVICE_DESCRIPTION;
+import static org.osgi.framework.Constants.SERVICE_VENDOR;
+
+/**
+ * Caches the merged template maps of Page Merge in memory. An entry is keyed by
+ * the template path and only served while the template's last modified stamp
+ * is unchanged. Any change below a templates folder evicts all cached templates
+ * of that folder so that sub templates are merged again as well.
+ */
+@Component(
+    service = { TemplateMergeCache.class, ResourceChangeListener.class },
+    immediate = true,
+    property = {
+        SERVICE_DESCRIPTION + EQUALS + PER_PREFIX + "Template Merge Cache",
+        SERVICE_VENDOR + EQUALS + PER_VENDOR
+    }
+)
+@Designate(ocd = TemplateMergeCacheService.Configuration.class)
+public class TemplateMergeCacheService
+    implements TemplateMergeCache, ResourceChangeListener
+{
+    public static final String TEMPLATES = "templates";
+    private static final String SLASH_TEMPLATES = SLASH + TEMPLATES;
+
+    @ObjectClassDefinition(
+        name = "Peregrine: Template Merge Cache",
+        description = "Caches the merged templates used by Page Merge to render pages"
+    )
+    @interface Configuration {
+        @AttributeDefinition(
+            name = "Enabled",
+            description = "If enabled the merged templates are cached. Keep disabled if components placed on templates " +
+                "render content of the requested page (like a breadcrumb)",
+            defaultValue = "false"
+        )
+        boolean enabled() default false;
+        @AttributeDefinition(
+            name = "Max Entries",
+            description = "Maximum number of templates kept in the cache. The least recently used are dropped first",
+            defaultValue = "500"
+        )
+        int maxEntries() default 500;
+        @AttributeDefinition(
+            name = "Paths Observed",
+            description = "Comes from org.apache.sling.api.resource.observation.ResourceChangeListener"
+        )
+        String[] resource_paths() default "glob:/content/*/templates/**";
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean enabled;
+    private int maxEntries;
+
+    @Activate
+    @SuppressWarnings("unused")
+    void activate(Configuration configuration) { setup(configuration); }
+    @Modified
+    @SuppressWarnings("unused")
+    void modified(Configuration configuration) { setup(configuration); }
+
+    private void setup(Configuration configuration) {
+        synchronized (lock) {
+            enabled = configuration.enabled();
+            maxEntries = Math.max(configuration.maxEntries(), 1);
+            entries.clear();
+        }
+        log.debug("Template Merge Cache enabled: '{}', max entries: '{}'", enabled, maxEntries);
+    }
+
+    @Override
+    public Map get(final Resource template) {
+        if (!enabled || isNull(template)) {
+            return null;
+        }
+
+        final CacheEntry entry;
+        synchronized (lock) {
+            entry = entries.get(template.getPath());
+        }
+
+        if (isNull(entry)) {
+            return null;
+        }
+
+        if (entry.lastModified != getLastModified(template)) {
+            log.trace("Template Merge Cache entry for '{}' is stale", template.getPath());
+            evict(template.getPath());
+            return null;
+        }
+
+        return copy(entry.merged);
+    }
+
+    @Override
+    public void put(final Resource template, final Map merged) {
+        if (!enabled || isNull(template) || isNull(merged)) {
+            return;
+        }
+
+        final CacheEntry entry = new CacheEntry(getLastModified(template), copy(merged));
+        synchronized (lock) {
+            entries.put(template.getPath(), entry);
+            final Iterator<String> iterator = entries.keySet().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void evict(final String path) {
+        final String prefix = path + SLASH;
+        synchronized (lock) {
+            entries.keySet().removeIf(key -> key.equals(path) || key.startsWith(prefix));
+        }
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes) {
+        for (final ResourceChange change : changes) {
+            final String path = change.getPath();
+            final int index = path.indexOf(SLASH_TEMPLATES);
+            log.trace("Template Change: '{}'", path);
+            evict(index < 0 ? path : path.substring(0, index + SLASH_TEMPLATES.length()));
+        }
+    }
+
+    private static long getLastModified(final Resource template) {
+        final Calendar lastModified = new Page(template).getLastModified();
+        return isNull(lastModified) ? -1 : lastModified.getTimeInMillis();
+    }
+
+    /** Copies the given map deeply as Page Merge modifies the maps and lists it merges into **/
+    private static Map copy(final Map source) {
+        final Map answer = new LinkedHashMap(source.size());
+        for (final Object key : source.keySet()) {
+            answer.put(key, copyValue(source.get(key)));
+        }
+
+        return answer;
+    }
+
+    private static Object copyValue(final Object value) {
+        if (value instanceof Map) {
+            return copy((Map) value);
+        }
+
+        if (value instanceof List) {
+            final List source = (List) value;
+            final ArrayList answer = new ArrayList(source.size());
+            for (final Object item : source) {
+                answer.add(copyValue(item));
+            }
+
+            return answer;
+        }
+
+        return value;
+    }
+
+    private static final class CacheEntry {
+
+        private final long lastModified;
+        private final Map merged;
+
+        private CacheEntry(final long lastModified, final Map merged) {
+            this.lastModified = lastModified;
+            this.merged = merged;
+        }
+    }
+}
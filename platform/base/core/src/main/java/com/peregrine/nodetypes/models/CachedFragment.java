@@ -0,0 +1,69 @@
+package com.peregrine.nodetypes.models;
+
+/*-
+ * #%L
+ * peregrine default node types - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonValue;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.sling.api.resource.Resource;
+
+/**
+ * Component taken from the Fragment Cache. It is exported as the
+ * cached model map of the component it replaces.
+ */
+public final class CachedFragment implements IComponent {
+
+    private final Resource resource;
+    private final Map model;
+
+    public CachedFragment(Resource resource, Map model) {
+        this.resource = resource;
+        this.model = model;
+    }
+
+    @Override
+    public Resource getResource() {
+        return resource;
+    }
+
+    @Override
+    public Resource getRootResource() {
+        return resource;
+    }
+
+    @Override
+    @JsonIgnore
+    public List<IComponent> getChildren() {
+        return Collections.emptyList();
+    }
+
+    @JsonValue
+    public Map getModel() {
+        return model;
+    }
+}
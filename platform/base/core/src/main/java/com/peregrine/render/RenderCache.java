@@ -0,0 +1,42 @@
+package com.peregrine.render;
+
+import org.apache.sling.api.resource.Resource;
+
+/**
+ * Caches the output of internal renderings. An entry is keyed by the path and extension
+ * of the rendering and the user it was rendered for. It is kept until the resource, its
+ * template chain or one of the resources it references changes.
+ */
+public interface RenderCache {
+
+    /**
+     * Creates the key of a rendering
+     * @param resource Resource to be rendered
+     * @param extension Extension of the rendering request
+     * @return Key of the rendering or null if the cache is disabled or the rendering must not be cached
+     */
+    String key(Resource resource, String extension);
+
+    /**
+     * @param key Key of the rendering
+     * @return The cached rendering or null if there is none
+     */
+    byte[] get(String key);
+
+    /**
+     * Stores the given rendering unless the content changed since the key was looked up
+     * @param key Key of the rendering
+     * @param resource Rendered resource whose template chain and references are the dependencies of the rendering
+     * @param content Rendered content
+     */
+    void put(String key, Resource resource, byte[] content);
+
+    /** Removes all cached renderings **/
+    void clear();
+
+    /** @return Number of requests that were served from the cache **/
+    long getHitCount();
+
+    /** @return Number of requests that had to be rendered **/
+    long getMissCount();
+}
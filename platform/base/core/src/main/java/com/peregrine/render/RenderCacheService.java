@@ -0,0 +1,480 @@
+package com.peregrine.render;
+
+import com.peregrine.nodetypes.merge.TemplateChainIndex;
+import com.peregrine.reference.ReferenceLister;
+import com.peregrine.versions.VersioningResourceResolver;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.peregrine.commons.util.PerConstants.APPS_ROOT;
+import static com.peregrine.commons.util.PerConstants.CONTENT_ROOT;
+import static com.peregrine.commons.util.PerConstants.SLASH;
+import static com.peregrine.commons.util.PerUtil.EQUALS;
+import static com.peregrine.commons.util.PerUtil.PER_PREFIX;
+import static com.peregrine.commons.util.PerUtil.PER_VENDOR;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static org.apache.commons.lang3.StringUtils.defaultString;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.sling.api.resource.observation.ResourceChange.ChangeType.REMOVED;
+import static org.osgi.framework.Constants.SERVICE_DESCRIPTION;
+import static org.osgi.framework.Constants.SERVICE_VENDOR;
+
+/**
+ * Keeps the output of internal renderings in memory and spills large renderings to disk.
+ *
+ * A rendering is kept per user until the rendered resource, its template chain or one of
+ * the resources it references (transitively) changes. These dependencies are collected
+ * once when a rendering is stored and indexed so that a change only drops the renderings
+ * depending on it. Changes below /apps clear the cache as they might change any rendering.
+ * Renderings of versioned content are not cached.
+ */
+@Component(
+    service = { RenderCache.class, ResourceChangeListener.class },
+    immediate = true,
+    property = {
+        SERVICE_DESCRIPTION + EQUALS + PER_PREFIX + "Render Cache",
+        SERVICE_VENDOR + EQUALS + PER_VENDOR
+    }
+)
+@Designate(ocd = RenderCacheService.Configuration.class)
+public class RenderCacheService
+    implements RenderCache, ResourceChangeListener
+{
+    private static final String CACHE_FOLDER_NAME = "render-cache";
+    private static final char SEPARATOR = '|';
+
+    @ObjectClassDefinition(
+        name = "Peregrine: Render Cache",
+        description = "Caches internal renderings as long as the rendered resource, its templates and references are unchanged"
+    )
+    @interface Configuration {
+        @AttributeDefinition(
+            name = "Enabled",
+            description = "If enabled the internal renderings are cached. Keep disabled if components render content " +
+                "that is neither referenced nor part of the template chain (like child page listings)",
+            defaultValue = "false"
+        )
+        boolean enabled() default false;
+        @AttributeDefinition(
+            name = "Max Memory",
+            description = "Maximum number of bytes kept in memory. The least recently used renderings are dropped first",
+            defaultValue = "67108864"
+        )
+        long maxMemory() default 64L * 1024 * 1024;
+        @AttributeDefinition(
+            name = "Spill Threshold",
+            description = "Renderings larger than this number of bytes are kept on disk instead of in memory",
+            defaultValue = "262144"
+        )
+        int spillThreshold() default 256 * 1024;
+        @AttributeDefinition(
+            name = "Max Disk",
+            description = "Maximum number of bytes kept on disk. The least recently used renderings are dropped first",
+            defaultValue = "1073741824"
+        )
+        long maxDisk() default 1024L * 1024 * 1024;
+        @AttributeDefinition(
+            name = "Cache Folder",
+            description = "Folder of the renderings spilled to disk. If empty the bundle's data folder is used"
+        )
+        String cacheFolder() default "";
+        @AttributeDefinition(
+            name = "Paths Observed",
+            description = "Comes from org.apache.sling.api.resource.observation.ResourceChangeListener"
+        )
+        String[] resource_paths() default { APPS_ROOT, CONTENT_ROOT };
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    @SuppressWarnings("unused")
+    private volatile TemplateChainIndex templateChainIndex;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    @SuppressWarnings("unused")
+    private volatile ReferenceLister referenceLister;
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /** Keys of the cached renderings by the paths they depend on **/
+    private final Map<String, Set<String>> dependents = new HashMap<>();
+    /** Generation of the content when a missing rendering was looked up by its key **/
+    private final Map<String, Long> pending = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private boolean enabled;
+    private long maxMemory;
+    private int spillThreshold;
+    private long maxDisk;
+    private File cacheFolder;
+    private long memorySize;
+    private long diskSize;
+    private volatile long generation;
+
+    @Activate
+    @SuppressWarnings("unused")
+    void activate(BundleContext context, Configuration configuration) { setup(context, configuration); }
+    @Modified
+    @SuppressWarnings("unused")
+    void modified(BundleContext context, Configuration configuration) { setup(context, configuration); }
+    @Deactivate
+    @SuppressWarnings("unused")
+    void deactivate() { clear(); }
+
+    private void setup(BundleContext context, Configuration configuration) {
+        synchronized (lock) {
+            clear();
+            enabled = configuration.enabled();
+            maxMemory = Math.max(configuration.maxMemory(), 0);
+            spillThreshold = Math.max(configuration.spillThreshold(), 0);
+            maxDisk = Math.max(configuration.maxDisk(), 0);
+            cacheFolder = isBlank(configuration.cacheFolder()) ?
+                context.getDataFile(CACHE_FOLDER_NAME) :
+                new File(configuration.cacheFolder());
+            if (nonNull(cacheFolder) && !cacheFolder.isDirectory() && !cacheFolder.mkdirs()) {
+                log.warn("Render Cache folder: '{}' could not be created -> renderings are not spilled to disk", cacheFolder);
+                cacheFolder = null;
+            }
+
+            // Renderings spilled before a restart are not known anymore
+            final File[] leftovers = isNull(cacheFolder) ? null : cacheFolder.listFiles(File::isFile);
+            if (nonNull(leftovers)) {
+                for (final File file : leftovers) {
+                    file.delete();
+                }
+            }
+        }
+        log.debug("Render Cache enabled: '{}', max memory: '{}', spill threshold: '{}', max disk: '{}', folder: '{}'",
+            enabled, maxMemory, spillThreshold, maxDisk, cacheFolder);
+    }
+
+    @Override
+    public String key(final Resource resource, final String extension) {
+        if (!enabled || isNull(resource)) {
+            return null;
+        }
+
+        final ResourceResolver resourceResolver = resource.getResourceResolver();
+        final String versionKey = isNull(resourceResolver) ? null : VersioningResourceResolver.getVersionKey(resourceResolver);
+        if (isNull(versionKey) || !versionKey.isEmpty()) {
+            // Moving a version label is not observed so renderings of versions are not cached
+            return null;
+        }
+
+        return resource.getPath() + SEPARATOR + extension + SEPARATOR + defaultString(resourceResolver.getUserID());
+    }
+
+    @Override
+    public byte[] get(final String key) {
+        if (!enabled || isNull(key)) {
+            return null;
+        }
+
+        final CacheEntry entry;
+        synchronized (lock) {
+            entry = entries.get(key);
+            if (isNull(entry)) {
+                pending.put(key, generation);
+            }
+        }
+
+        byte[] answer = null;
+        if (nonNull(entry)) {
+            answer = entry.read();
+            if (isNull(answer)) {
+                remove(key, entry);
+            }
+        }
+
+        if (nonNull(answer)) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+
+        return answer;
+    }
+
+    @Override
+    public void put(final String key, final Resource resource, final byte[] content) {
+        if (!enabled || isNull(key) || isNull(resource) || isNull(content)) {
+            return;
+        }
+
+        final Long since;
+        synchronized (lock) {
+            since = pending.get(key);
+        }
+
+        if (isNull(since) || since != generation) {
+            log.trace("Render Cache entry for '{}' is not stored as the content changed while rendering", key);
+            return;
+        }
+
+        final Set<String> dependencies = getDependencies(resource);
+        final CacheEntry entry;
+        if (content.length > spillThreshold) {
+            if (isNull(cacheFolder) || content.length > maxDisk) {
+                return;
+            }
+
+            final File file = new File(cacheFolder, UUID.randomUUID().toString());
+            try {
+                Files.write(file.toPath(), content);
+            } catch (final IOException e) {
+                log.warn("Failed to spill rendering of '{}' to disk", key, e);
+                file.delete();
+                return;
+            }
+
+            entry = new CacheEntry(key, dependencies, null, file, content.length);
+        } else if (content.length <= maxMemory) {
+            entry = new CacheEntry(key, dependencies, content.clone(), null, content.length);
+        } else {
+            return;
+        }
+
+        synchronized (lock) {
+            if (!since.equals(pending.remove(key)) || since != generation) {
+                // The content changed while the dependencies were collected
+                if (entry.isOnDisk()) {
+                    entry.file.delete();
+                }
+
+                return;
+            }
+
+            final CacheEntry previous = entries.put(key, entry);
+            if (nonNull(previous)) {
+                release(previous);
+            }
+
+            add(entry);
+            final Iterator<CacheEntry> iterator = entries.values().iterator();
+            while ((memorySize > maxMemory || diskSize > maxDisk) && iterator.hasNext()) {
+                final CacheEntry eldest = iterator.next();
+                if (eldest.isOnDisk() ? diskSize > maxDisk : memorySize > maxMemory) {
+                    iterator.remove();
+                    release(eldest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the paths a rendering depends on: the rendered resource, its template chain and
+     * all the resources it references (transitively). This is only done when a rendering is stored.
+     */
+    private Set<String> getDependencies(final Resource resource) {
+        final Set<String> answer = new HashSet<>();
+        answer.add(resource.getPath());
+        final TemplateChainIndex index = templateChainIndex;
+        if (nonNull(index)) {
+            answer.addAll(index.getTemplateChain(resource));
+        }
+
+        final ReferenceLister lister = referenceLister;
+        if (nonNull(lister)) {
+            for (final Resource reference : lister.getReferenceList(true, resource, false)) {
+                answer.add(reference.getPath());
+            }
+        }
+
+        return answer;
+    }
+
+    @Override
+    public void clear() {
+        synchronized (lock) {
+            for (final CacheEntry entry : entries.values()) {
+                release(entry);
+            }
+
+            entries.clear();
+            dependents.clear();
+            pending.clear();
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        final Set<String> changed = new HashSet<>();
+        final Set<String> removed = new HashSet<>();
+        for (final ResourceChange change : changes) {
+            final String path = change.getPath();
+            if (APPS_ROOT.equals(path) || path.startsWith(APPS_ROOT + SLASH)) {
+                log.trace("Render Cache cleared by change: '{}'", change);
+                clear();
+                synchronized (lock) {
+                    generation++;
+                }
+
+                return;
+            }
+
+            changed.add(path);
+            if (change.getType() == REMOVED) {
+                removed.add(path);
+            }
+        }
+
+        synchronized (lock) {
+            generation++;
+            pending.clear();
+            final Set<String> keys = new HashSet<>();
+            for (final String path : changed) {
+                // A change inside a dependency (like a property of its content) invalidates it as well
+                for (String current = path; !current.isEmpty(); current = current.substring(0, Math.max(current.lastIndexOf(SLASH), 0))) {
+                    final Set<String> dependentKeys = dependents.get(current);
+                    if (nonNull(dependentKeys)) {
+                        keys.addAll(dependentKeys);
+                    }
+                }
+            }
+
+            if (!removed.isEmpty()) {
+                for (final Map.Entry<String, Set<String>> dependent : dependents.entrySet()) {
+                    if (isBelow(dependent.getKey(), removed)) {
+                        keys.addAll(dependent.getValue());
+                    }
+                }
+            }
+
+            for (final String key : keys) {
+                final CacheEntry entry = entries.remove(key);
+                if (nonNull(entry)) {
+                    release(entry);
+                }
+            }
+
+            log.trace("Render Cache entries: '{}' dropped by changes: '{}'", keys, changes);
+        }
+    }
+
+    private static boolean isBelow(final String path, final Set<String> roots) {
+        for (final String root : roots) {
+            if (path.startsWith(root + SLASH)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void remove(final String key, final CacheEntry entry) {
+        synchronized (lock) {
+            if (entries.remove(key, entry)) {
+                release(entry);
+            }
+        }
+    }
+
+    /** Must be called inside the lock **/
+    private void add(final CacheEntry entry) {
+        for (final String dependency : entry.dependencies) {
+            dependents.computeIfAbsent(dependency, d -> new HashSet<>()).add(entry.key);
+        }
+
+        if (entry.isOnDisk()) {
+            diskSize += entry.size;
+        } else {
+            memorySize += entry.size;
+        }
+    }
+
+    /** Must be called inside the lock **/
+    private void release(final CacheEntry entry) {
+        for (final String dependency : entry.dependencies) {
+            final Set<String> keys = dependents.get(dependency);
+            if (nonNull(keys) && keys.remove(entry.key) && keys.isEmpty()) {
+                dependents.remove(dependency);
+            }
+        }
+
+        if (entry.isOnDisk()) {
+            diskSize -= entry.size;
+            entry.file.delete();
+        } else {
+            memorySize -= entry.size;
+        }
+    }
+
+    private final class CacheEntry {
+
+        private final String key;
+        private final Set<String> dependencies;
+        private final byte[] content;
+        private final File file;
+        private final int size;
+
+        private CacheEntry(final String key, final Set<String> dependencies, final byte[] content, final File file, final int size) {
+            this.key = key;
+            this.dependencies = dependencies;
+            this.content = content;
+            this.file = file;
+            this.size = size;
+        }
+
+        private boolean isOnDisk() {
+            return nonNull(file);
+        }
+
+        /** @return The content or null if the spilled file could not be read anymore **/
+        private byte[] read() {
+            if (!isOnDisk()) {
+                return content.clone();
+            }
+
+            try {
+                return Files.readAllBytes(file.toPath());
+            } catch (final IOException e) {
+                log.warn("Failed to read spilled rendering: '{}'", file, e);
+                return null;
+            }
+        }
+    }
+}
@@ -2,6 +2,14 @@ package com.peregrine.render;
 
 import org.apache.sling.api.resource.Resource;
 
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
 public interface RenderService {
 
     /**
@@ -22,6 +30,64 @@ public interface RenderService {
      */
     String renderInternally(Resource resource, String extension) throws RenderException;
 
+    /**
+     * Renders the given resource inside this sling instance straight into the given stream
+     * without buffering the rendered content
+     * @param resource Resource to be rendered
+     * @param extension Extension of the rendering request
+     * @param outputStream Target of the rendered content which is not closed by this method.
+     *                     If the rendering fails it might contain a partial rendering.
+     * @throws RenderException If the rendering failed
+     */
+    void renderInternally(Resource resource, String extension, OutputStream outputStream) throws RenderException;
+
+    /**
+     * Renders the given resource inside this sling instance straight into the given channel
+     * @param resource Resource to be rendered
+     * @param extension Extension of the rendering request
+     * @param channel Target of the rendered content which is not closed by this method
+     * @throws RenderException If the rendering failed
+     */
+    default void renderInternally(Resource resource, String extension, WritableByteChannel channel) throws RenderException {
+        renderInternally(resource, extension, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Renders all given resources with all the given extensions on a bounded pool of workers.
+     * Each worker renders with its own service resource resolver and so only sees persisted content.
+     * @param resources Resources to be rendered
+     * @param extensions Extensions each resource is rendered with
+     * @return One future per resource and extension in the order of the resources and extensions.
+     *         A failed rendering completes its future exceptionally with a RenderException
+     *         and does not affect any other rendering.
+     */
+    List<CompletableFuture<Rendering>> renderAll(Collection<Resource> resources, Set<String> extensions);
+
+    /** Result of a rendering done in a batch **/
+    final class Rendering {
+        private final String path;
+        private final String extension;
+        private final byte[] content;
+
+        public Rendering(String path, String extension, byte[] content) {
+            this.path = path;
+            this.extension = extension;
+            this.content = content;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+    }
+
     class RenderException
         extends Exception
     {
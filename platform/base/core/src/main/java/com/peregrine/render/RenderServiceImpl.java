@@ -1,38 +1,186 @@
 package com.peregrine.render;
 
 import com.peregrine.intra.IntraSlingCaller;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.peregrine.commons.util.PerConstants.DISTRIBUTION_SUB_SERVICE;
+import static com.peregrine.commons.util.PerUtil.loginService;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 
 /**
  * This class calls a resource internally and
- * returns the rendered response
+ * returns the rendered response. If a Render Cache
+ * is available and enabled unchanged renderings are
+ * served from there.
  */
 @Component(
     service = RenderService.class,
     immediate = true
 )
+@Designate(ocd = RenderServiceImpl.Configuration.class)
 public class RenderServiceImpl
     implements RenderService
 {
     private static final String FAILED_TO_RENDER_RESOURCE = "Failed to render resource: ";
+    private static final String FAILED_TO_WRITE_RENDERING = "Failed to write cached rendering of resource: ";
+    private static final String RESOURCE_NOT_FOUND = "Resource not found for batch rendering: '%s'";
+    private static final String FAILED_TO_LOGIN = "Failed to obtain the Service Resource Resolver for batch rendering";
+    private static final String RENDER_SERVICE_NOT_ACTIVE = "Render Service is not active";
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    @ObjectClassDefinition(
+        name = "Peregrine: Render Service",
+        description = "Renders resources internally"
+    )
+    @interface Configuration {
+        @AttributeDefinition(
+            name = "Batch Workers",
+            description = "Number of workers rendering a batch in parallel. 0 or less means the number of available processors",
+            defaultValue = "0"
+        )
+        int batchWorkers() default 0;
+        @AttributeDefinition(
+            name = "Batch Sub Service",
+            description = "Name of the Sub Service whose Resource Resolver is used by the batch workers",
+            defaultValue = DISTRIBUTION_SUB_SERVICE
+        )
+        String batchSubService() default DISTRIBUTION_SUB_SERVICE;
+        @AttributeDefinition(
+            name = "Stream Copy Limit",
+            description = "Maximum number of bytes of a streamed rendering that are copied for the Render Cache. " +
+                "Larger streamed renderings are not cached so that they are not kept in memory",
+            defaultValue = "262144"
+        )
+        int streamCopyLimit() default 256 * 1024;
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
 
     @Reference
     @SuppressWarnings("unused")
     private IntraSlingCaller intraSlingCaller;
 
+    @Reference
+    @SuppressWarnings("unused")
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    @SuppressWarnings("unused")
+    private volatile RenderCache renderCache;
+
+    private final ThreadLocal<ResourceResolver> workerResolver = new ThreadLocal<>();
+    private final Set<ResourceResolver> workerResolvers = ConcurrentHashMap.newKeySet();
+    private volatile ExecutorService executor;
+    private volatile String batchSubService;
+    private volatile int streamCopyLimit;
+
+    @Activate
+    @Modified
+    @SuppressWarnings("unused")
+    void activate(Configuration configuration) {
+        shutdown();
+        batchSubService = configuration.batchSubService();
+        streamCopyLimit = Math.max(configuration.streamCopyLimit(), 0);
+        final int workers = configuration.batchWorkers() > 0 ?
+            configuration.batchWorkers() :
+            Runtime.getRuntime().availableProcessors();
+        final AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(workers, runnable -> {
+            final Thread thread = new Thread(runnable, "peregrine-render-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.debug("Render Service batch workers: '{}', sub service: '{}', stream copy limit: '{}'",
+            workers, batchSubService, streamCopyLimit);
+    }
+
+    @Deactivate
+    @SuppressWarnings("unused")
+    void deactivate() {
+        shutdown();
+    }
+
+    private void shutdown() {
+        final ExecutorService current = executor;
+        executor = null;
+        if (isNull(current)) {
+            return;
+        }
+
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                current.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        for (final ResourceResolver resolver : workerResolvers) {
+            if (resolver.isLive()) {
+                resolver.close();
+            }
+        }
+
+        workerResolvers.clear();
+    }
+
     public byte[] renderRawInternally(Resource resource, String extension) throws RenderException {
+        final RenderCache cache = renderCache;
+        final String key = isNull(cache) ? null : cache.key(resource, extension);
+        if (nonNull(key)) {
+            final byte[] cached = cache.get(key);
+            if (nonNull(cached)) {
+                return cached;
+            }
+        }
+
+        final byte[] answer;
         try {
-            return intraSlingCaller.call(
-                    intraSlingCaller.createContext()
-                            .setResourceResolver(resource.getResourceResolver())
-                            .setPath(resource.getPath())
-                            .setExtension(extension)
-            );
+            answer = intraSlingCaller.call(createContext(resource, extension));
         } catch(IntraSlingCaller.CallException e) {
             throw new RenderException(FAILED_TO_RENDER_RESOURCE + e.getMessage(), e);
         }
+
+        if (nonNull(key)) {
+            cache.put(key, resource, answer);
+        }
+
+        return answer;
     }
 
     public String renderInternally(Resource resource, String extension) throws RenderException {
@@ -40,4 +188,136 @@ public class RenderServiceImpl
         return new String(response);
     }
 
+    public void renderInternally(Resource resource, String extension, OutputStream outputStream) throws RenderException {
+        final RenderCache cache = renderCache;
+        final String key = isNull(cache) ? null : cache.key(resource, extension);
+        try {
+            if (isNull(key)) {
+                intraSlingCaller.call(createContext(resource, extension), outputStream);
+                return;
+            }
+
+            final byte[] cached = cache.get(key);
+            if (nonNull(cached)) {
+                outputStream.write(cached);
+                return;
+            }
+
+            // Keep a copy of what is streamed so that it can be cached unless it gets too large
+            final LimitedCopy copy = new LimitedCopy(streamCopyLimit);
+            intraSlingCaller.call(createContext(resource, extension), new TeeOutputStream(outputStream, copy));
+            final byte[] content = copy.toByteArray();
+            if (nonNull(content)) {
+                cache.put(key, resource, content);
+            }
+        } catch(IntraSlingCaller.CallException e) {
+            throw new RenderException(FAILED_TO_RENDER_RESOURCE + e.getMessage(), e);
+        } catch(IOException e) {
+            throw new RenderException(FAILED_TO_WRITE_RENDERING + resource.getPath(), e);
+        }
+    }
+
+    private IntraSlingCaller.CallerContext createContext(Resource resource, String extension) {
+        return intraSlingCaller.createContext()
+                .setResourceResolver(resource.getResourceResolver())
+                .setPath(resource.getPath())
+                .setExtension(extension);
+    }
+
+    @Override
+    public List<CompletableFuture<Rendering>> renderAll(Collection<Resource> resources, Set<String> extensions) {
+        final ExecutorService current = executor;
+        final List<CompletableFuture<Rendering>> answer = new ArrayList<>(resources.size() * extensions.size());
+        for (final Resource resource : resources) {
+            final String path = resource.getPath();
+            for (final String extension : extensions) {
+                if (isNull(current)) {
+                    answer.add(CompletableFuture.failedFuture(new RenderException(RENDER_SERVICE_NOT_ACTIVE, null)));
+                    continue;
+                }
+
+                try {
+                    answer.add(CompletableFuture.supplyAsync(() -> renderOnWorker(path, extension), current));
+                } catch (RejectedExecutionException e) {
+                    answer.add(CompletableFuture.failedFuture(new RenderException(RENDER_SERVICE_NOT_ACTIVE, e)));
+                }
+            }
+        }
+
+        return answer;
+    }
+
+    private Rendering renderOnWorker(String path, String extension) {
+        try {
+            final ResourceResolver resolver = getWorkerResolver();
+            final Resource resource = resolver.getResource(path);
+            if (isNull(resource)) {
+                throw new RenderException(String.format(RESOURCE_NOT_FOUND, path), null);
+            }
+
+            return new Rendering(path, extension, renderRawInternally(resource, extension));
+        } catch (RenderException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Obtains the Resource Resolver of the current worker thread which is created on first use
+     * and refreshed afterwards so that it sees the latest persisted content
+     */
+    private ResourceResolver getWorkerResolver() throws RenderException {
+        ResourceResolver answer = workerResolver.get();
+        if (isNull(answer) || !answer.isLive()) {
+            try {
+                answer = loginService(resourceResolverFactory, batchSubService);
+            } catch (LoginException e) {
+                throw new RenderException(FAILED_TO_LOGIN, e);
+            }
+
+            workerResolver.set(answer);
+            workerResolvers.add(answer);
+        } else {
+            answer.refresh();
+        }
+
+        return answer;
+    }
+
+    /** Copy of a streamed rendering that is dropped as soon as it exceeds its limit **/
+    private static final class LimitedCopy extends OutputStream {
+
+        private final int limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private LimitedCopy(final int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(final int b) {
+            if (fits(1)) {
+                copy.write(b);
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            if (fits(len)) {
+                copy.write(b, off, len);
+            }
+        }
+
+        private boolean fits(final int length) {
+            if (nonNull(copy) && copy.size() + length > limit) {
+                copy = null;
+            }
+
+            return nonNull(copy);
+        }
+
+        /** @return The copied rendering or null if it exceeded the limit **/
+        private byte[] toByteArray() {
+            return isNull(copy) ? null : copy.toByteArray();
+        }
+    }
 }
@@ -0,0 +1,65 @@
+package com.peregrine.replication;
+
+/*-
+ * #%L
+ * admin base - Core
+ * %%
+ * Copyright (C) 2019 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+/**
+ * Counts the cache purges a cache invalidation replication queued, sent, retried and gave up.
+ */
+public interface PurgeStatistics {
+
+    /** @return Name of the Replication Service the statistics belong to **/
+    String getName();
+
+    /**
+     * @return Number of purges that were queued, including the ones coalesced with an already queued purge
+     */
+    long getRequestedPurges();
+
+    /**
+     * @return Number of purges the endpoint answered
+     */
+    long getSentPurges();
+
+    /**
+     * @return Number of retries of failed purges
+     */
+    long getRetriedPurges();
+
+    /**
+     * @return Number of purges that were given up after all retries failed
+     */
+    long getFailedPurges();
+
+    /**
+     * @return Number of purges waiting to be sent
+     */
+    int getPendingPurges();
+
+    /**
+     * @return Milliseconds between the first request and the sending of the most recently sent purge
+     */
+    long getLastPurgeLag();
+}
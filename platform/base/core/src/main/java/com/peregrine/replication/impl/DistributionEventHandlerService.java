@@ -15,6 +15,14 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import static com.peregrine.replication.ReplicationUtil.updateReplicationProperties;
+import static com.peregrine.replication.impl.DistributionReplicationService.CHUNK_AGENT_NAME;
+import static com.peregrine.replication.impl.DistributionReplicationService.CHUNK_ATTEMPTS;
+import static com.peregrine.replication.impl.DistributionReplicationService.CHUNK_COUNT;
+import static com.peregrine.replication.impl.DistributionReplicationService.CHUNK_DISTRIBUTED;
+import static com.peregrine.replication.impl.DistributionReplicationService.CHUNK_INDEX;
+import static com.peregrine.replication.impl.DistributionReplicationService.CHUNK_PATHS;
+import static com.peregrine.replication.impl.DistributionReplicationService.CHUNK_SUCCESSFUL;
+import static com.peregrine.replication.impl.DistributionReplicationService.CHUNK_TYPE;
 import static com.peregrine.commons.util.PerConstants.*;
 import static com.peregrine.commons.util.PerUtil.EQUALS;
 import static com.peregrine.commons.util.PerUtil.PER_PREFIX;
@@ -30,7 +38,8 @@ import static org.osgi.service.event.EventConstants.EVENT_TOPIC;
     property = {
         SERVICE_VENDOR + EQUALS + PER_PREFIX + "Replication Event Handler",
         EVENT_TOPIC + EQUALS + AGENT_PACKAGE_DISTRIBUTED,
-        EVENT_TOPIC + EQUALS + IMPORTER_PACKAGE_IMPORTED
+        EVENT_TOPIC + EQUALS + IMPORTER_PACKAGE_IMPORTED,
+        EVENT_TOPIC + EQUALS + CHUNK_DISTRIBUTED
     }
 )
 /**
@@ -59,6 +68,26 @@ public class DistributionEventHandlerService implements EventHandler {
         if (AGENT_PACKAGE_DISTRIBUTED.equals(topic) || IMPORTER_PACKAGE_IMPORTED.equals(topic)) {
             final DistributionEvent distributionEvent = new DistributionEvent(event);
             setReplicationProperties(distributionEvent);
+        } else if (CHUNK_DISTRIBUTED.equals(topic)) {
+            reportChunk(event);
+        }
+    }
+
+    /**
+     * Reports the progress of a replication that is distributed in chunks
+     */
+    private void reportChunk(Event event) {
+        final String[] paths = (String[]) event.getProperty(CHUNK_PATHS);
+        final int pathsCount = paths == null ? 0 : paths.length;
+        final int chunk = (Integer) event.getProperty(CHUNK_INDEX) + 1;
+        if (Boolean.TRUE.equals(event.getProperty(CHUNK_SUCCESSFUL))) {
+            log.info("Agent '{}' distributed {} chunk {} of {} with {} paths after {} attempt(s)",
+                    event.getProperty(CHUNK_AGENT_NAME), event.getProperty(CHUNK_TYPE), chunk,
+                    event.getProperty(CHUNK_COUNT), pathsCount, event.getProperty(CHUNK_ATTEMPTS));
+        } else {
+            log.warn("Agent '{}' failed to distribute {} chunk {} of {} with {} paths after {} attempt(s), paths: '{}'",
+                    event.getProperty(CHUNK_AGENT_NAME), event.getProperty(CHUNK_TYPE), chunk,
+                    event.getProperty(CHUNK_COUNT), pathsCount, event.getProperty(CHUNK_ATTEMPTS), Arrays.toString(paths));
         }
     }
 
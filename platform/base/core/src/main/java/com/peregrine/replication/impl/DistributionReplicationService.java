@@ -31,6 +31,7 @@ import com.peregrine.commons.util.PerUtil;
 import com.peregrine.reference.ReferenceLister;
 import com.peregrine.replication.Replication;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.distribution.DistributionRequestType;
@@ -41,17 +42,31 @@ import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import static com.peregrine.commons.util.PerConstants.JCR_DATA;
 import static com.peregrine.replication.ReplicationUtil.updateReplicationProperties;
 import static org.apache.sling.distribution.DistributionRequestState.ACCEPTED;
 import static org.apache.sling.distribution.DistributionRequestState.DISTRIBUTED;
@@ -75,6 +90,22 @@ public class DistributionReplicationService
     public static final String DISTRIBUTION_PENDING = "distribution pending";
     public static final String NO_DISTRIBUTOR_AVAILABLE = "No Distributor available -> configure Sling Distribution first";
     public static final String DISTRIBUTION_FAILED = "Distribution failed due to: '%s'";
+    public static final String CHUNK_DISTRIBUTION_FAILED = "Distribution of chunk %d of %d failed after %d attempts due to: '%s'";
+    public static final String DISTRIBUTION_INTERRUPTED = "Distribution was interrupted";
+
+    /** Topic of the events posted after each distributed chunk **/
+    public static final String CHUNK_DISTRIBUTED = "com/peregrine/replication/distribution/CHUNK_DISTRIBUTED";
+    public static final String CHUNK_AGENT_NAME = "agentName";
+    public static final String CHUNK_TYPE = "type";
+    public static final String CHUNK_INDEX = "chunk";
+    public static final String CHUNK_COUNT = "chunks";
+    public static final String CHUNK_PATHS = "paths";
+    public static final String CHUNK_ATTEMPTS = "attempts";
+    public static final String CHUNK_SUCCESSFUL = "successful";
+
+    /** Rough size of a node in a distribution package without its binary data **/
+    private static final long NODE_SIZE_ESTIMATE = 1024;
+    private static final long DELETER_TERMINATION_TIMEOUT_SECONDS = 60;
 
     @ObjectClassDefinition(
         name = "Peregrine: Remote Replication Service",
@@ -96,6 +127,30 @@ public class DistributionReplicationService
             description = "Name of the Forward Agent to use for the Replication."
         )
         String agentName();
+        @AttributeDefinition(
+            name = "Max Chunk Paths",
+            description = "Maximum number of paths distributed in a single package. 0 or less means no limit",
+            defaultValue = "500"
+        )
+        int maxChunkPaths() default 500;
+        @AttributeDefinition(
+            name = "Max Chunk Size",
+            description = "Maximum estimated size in bytes of a single package. A single path exceeding it gets a package of its own. 0 or less means no limit",
+            defaultValue = "52428800"
+        )
+        long maxChunkSize() default 52_428_800;
+        @AttributeDefinition(
+            name = "Chunk Retries",
+            description = "Number of times the distribution of a chunk is retried before the replication fails",
+            defaultValue = "2"
+        )
+        int chunkRetries() default 2;
+        @AttributeDefinition(
+            name = "Chunk Retry Delay",
+            description = "Milliseconds to wait before a chunk is retried",
+            defaultValue = "1000"
+        )
+        long chunkRetryDelay() default 1_000;
     }
     @Activate
     @SuppressWarnings("unused")
@@ -109,7 +164,15 @@ public class DistributionReplicationService
     @Reference
     Distributor distributor;
 
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    @SuppressWarnings("unused")
+    private volatile EventAdmin eventAdmin;
+
     private String agentName;
+    private int maxChunkPaths;
+    private long maxChunkSize;
+    private int chunkRetries;
+    private long chunkRetryDelay;
 
     private void setup(Configuration configuration) {
         init(configuration.name(), configuration.description());
@@ -118,6 +181,11 @@ public class DistributionReplicationService
         if(StringUtils.isEmpty(agentName)) {
             throw new IllegalArgumentException("Agent Name must be provided");
         }
+        maxChunkPaths = configuration.maxChunkPaths() > 0 ? configuration.maxChunkPaths() : Integer.MAX_VALUE;
+        maxChunkSize = configuration.maxChunkSize() > 0 ? configuration.maxChunkSize() : Long.MAX_VALUE;
+        chunkRetries = Math.max(0, configuration.chunkRetries());
+        chunkRetryDelay = Math.max(0, configuration.chunkRetryDelay());
+        log.trace("Max Chunk Paths: '{}', Max Chunk Size: '{}', Chunk Retries: '{}'", maxChunkPaths, maxChunkSize, chunkRetries);
     }
 
     @Reference
@@ -174,47 +242,21 @@ public class DistributionReplicationService
                 }
             }
             if(resourceResolver != null) {
-                String[] paths = new String[resourceList.size()];
-                int i = 0;
                 for(Resource resource : resourceList) {
-                    paths[i++] = resource.getPath();
                     // In order to make it possible to have the correct user set and 'Replicated By' we need to set it here and now
                     updateReplicationProperties(resource, DISTRIBUTION_PENDING, null);
                 }
 
                 if(distributor != null) {
+                    final List<String[]> chunks = splitIntoChunks(resourceList);
                     if (activate) {
-                        // first deactivate page content so deleted or moved content is cleared
-                        String[] jcrPaths = Arrays.stream(paths)
-                                .filter(path -> path.endsWith(PerConstants.JCR_CONTENT))
-                                .toArray(String[]::new);
-                        SimpleDistributionRequest sdrDeactivate = new SimpleDistributionRequest(
-                                DistributionRequestType.DELETE,
-                                jcrPaths);
-                        DistributionResponse deactivateResp = distributor.distribute(
-                            agentName,
-                            resourceResolver,
-                            sdrDeactivate
-                        );
-
-                        log.trace("Distributor Response: '{}'", deactivateResp);
-                        if(!deactivateResp.isSuccessful() || !(deactivateResp.getState() == ACCEPTED || deactivateResp.getState() != DISTRIBUTED)) {
-                            throw new ReplicationException(String.format(DISTRIBUTION_FAILED, deactivateResp));
+                        distributeActivation(resourceResolver, chunks);
+                    } else {
+                        for (int i = 0; i < chunks.size(); i++) {
+                            distributeChunk(resourceResolver, DistributionRequestType.DELETE, chunks.get(i), i, chunks.size());
                         }
                     }
 
-                    // then activate/deactivate the nodes
-                    DistributionResponse response = distributor.distribute(
-                            agentName,
-                            resourceResolver,
-                            new SimpleDistributionRequest(
-                                    activate ? DistributionRequestType.ADD : DistributionRequestType.DELETE,
-                                    paths));
-                    log.trace("Distributor Response: '{}'", response);
-                    if(!response.isSuccessful() || !(response.getState() == ACCEPTED || response.getState() != DISTRIBUTED)) {
-                        throw new ReplicationException(String.format(DISTRIBUTION_FAILED, response));
-                    }
-
                     answer.addAll(resourceList);
                 } else {
                     throw new ReplicationException(NO_DISTRIBUTOR_AVAILABLE);
@@ -224,4 +266,181 @@ public class DistributionReplicationService
         return answer;
     }
 
+    /**
+     * Splits the paths of the given resources into chunks limited by the number of paths and their estimated size
+     */
+    private List<String[]> splitIntoChunks(Collection<Resource> resourceList) {
+        final List<String[]> answer = new ArrayList<>();
+        final List<String> chunk = new ArrayList<>();
+        long chunkSize = 0;
+        for (final Resource resource : resourceList) {
+            final long size = estimateSize(resource);
+            if (!chunk.isEmpty() && (chunk.size() >= maxChunkPaths || chunkSize + size > maxChunkSize)) {
+                answer.add(chunk.toArray(new String[0]));
+                chunk.clear();
+                chunkSize = 0;
+            }
+
+            chunk.add(resource.getPath());
+            chunkSize += size;
+        }
+
+        if (!chunk.isEmpty()) {
+            answer.add(chunk.toArray(new String[0]));
+        }
+
+        return answer;
+    }
+
+    /** @return Estimated size of the given resource in a distribution package which is dominated by its binary data **/
+    private long estimateSize(Resource resource) {
+        final Node node = resource.adaptTo(Node.class);
+        try {
+            if (node != null && node.hasProperty(JCR_DATA)) {
+                return NODE_SIZE_ESTIMATE + Math.max(0, node.getProperty(JCR_DATA).getLength());
+            }
+        } catch (RepositoryException e) {
+            log.debug("Failed to obtain the size of the data of: '{}'", resource.getPath(), e);
+        }
+
+        return NODE_SIZE_ESTIMATE;
+    }
+
+    /**
+     * Distributes the chunks one after the other. The page content of each chunk is deleted first so that
+     * deleted or moved content is cleared. This deletion is done on a separate thread with its own
+     * Resource Resolver and so overlaps the addition of the previous chunk.
+     */
+    private void distributeActivation(ResourceResolver resourceResolver, List<String[]> chunks) throws ReplicationException {
+        final ResourceResolver deletionResolver;
+        try {
+            deletionResolver = resourceResolver.clone(null);
+        } catch (LoginException e) {
+            throw new ReplicationException(String.format(DISTRIBUTION_FAILED, e.getMessage()), e);
+        }
+
+        final ExecutorService deleter = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "peregrine-distribution-deleter-" + getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Future<Void> deletion = deleter.submit(() -> distributeContentDeletion(deletionResolver, chunks, 0));
+            for (int i = 0; i < chunks.size(); i++) {
+                await(deletion);
+                if (i + 1 < chunks.size()) {
+                    final int next = i + 1;
+                    deletion = deleter.submit(() -> distributeContentDeletion(deletionResolver, chunks, next));
+                }
+
+                distributeChunk(resourceResolver, DistributionRequestType.ADD, chunks.get(i), i, chunks.size());
+            }
+        } finally {
+            // A deletion that is still running uses the cloned Resource Resolver
+            deleter.shutdownNow();
+            if (awaitTermination(deleter)) {
+                deletionResolver.close();
+            } else {
+                log.warn("Content deletion did not end within {}s, its Resource Resolver is left open", DELETER_TERMINATION_TIMEOUT_SECONDS);
+            }
+        }
+    }
+
+    private static boolean awaitTermination(ExecutorService executor) {
+        try {
+            return executor.awaitTermination(DELETER_TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Void distributeContentDeletion(ResourceResolver resourceResolver, List<String[]> chunks, int index) throws ReplicationException {
+        String[] jcrPaths = Arrays.stream(chunks.get(index))
+                .filter(path -> path.endsWith(PerConstants.JCR_CONTENT))
+                .toArray(String[]::new);
+        if (jcrPaths.length > 0) {
+            distributeChunk(resourceResolver, DistributionRequestType.DELETE, jcrPaths, index, chunks.size());
+        }
+
+        return null;
+    }
+
+    private static void await(Future<Void> future) throws ReplicationException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ReplicationException(DISTRIBUTION_INTERRUPTED, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ReplicationException) {
+                throw (ReplicationException) e.getCause();
+            }
+
+            throw new ReplicationException(String.format(DISTRIBUTION_FAILED, e.getCause()), e.getCause());
+        }
+    }
+
+    /**
+     * Distributes a chunk and retries it if that fails
+     * @throws ReplicationException If the chunk could not be distributed with all retries
+     */
+    private void distributeChunk(ResourceResolver resourceResolver, DistributionRequestType type, String[] paths, int index, int count)
+            throws ReplicationException {
+        Object failure = null;
+        int attempt = 0;
+        while (attempt <= chunkRetries) {
+            if (attempt++ > 0) {
+                log.debug("Retry {} of chunk {} of {} due to: '{}'", type, index + 1, count, failure);
+                pauseBeforeRetry();
+            }
+
+            try {
+                DistributionResponse response = distributor.distribute(agentName, resourceResolver, new SimpleDistributionRequest(type, paths));
+                log.trace("Distributor Response: '{}'", response);
+                if (isDistributed(response)) {
+                    postChunkEvent(type, paths, index, count, attempt, true);
+                    return;
+                }
+
+                failure = response;
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+
+        postChunkEvent(type, paths, index, count, attempt, false);
+        throw new ReplicationException(String.format(CHUNK_DISTRIBUTION_FAILED, index + 1, count, attempt, failure));
+    }
+
+    private static boolean isDistributed(DistributionResponse response) {
+        return response.isSuccessful() && (response.getState() == ACCEPTED || response.getState() == DISTRIBUTED);
+    }
+
+    private void pauseBeforeRetry() throws ReplicationException {
+        try {
+            Thread.sleep(chunkRetryDelay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ReplicationException(DISTRIBUTION_INTERRUPTED, e);
+        }
+    }
+
+    private void postChunkEvent(DistributionRequestType type, String[] paths, int index, int count, int attempts, boolean successful) {
+        final EventAdmin currentEventAdmin = eventAdmin;
+        if (currentEventAdmin == null) {
+            return;
+        }
+
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put(CHUNK_AGENT_NAME, agentName);
+        properties.put(CHUNK_TYPE, type.name());
+        properties.put(CHUNK_INDEX, index);
+        properties.put(CHUNK_COUNT, count);
+        properties.put(CHUNK_PATHS, paths);
+        properties.put(CHUNK_ATTEMPTS, attempts);
+        properties.put(CHUNK_SUCCESSFUL, successful);
+        currentEventAdmin.postEvent(new Event(CHUNK_DISTRIBUTED, properties));
+    }
+
 }
@@ -32,6 +32,7 @@ import com.peregrine.commons.util.PerUtil;
 import com.peregrine.commons.util.PerUtil.ResourceChecker;
 import com.peregrine.render.RenderService;
 import com.peregrine.render.RenderService.RenderException;
+import com.peregrine.render.RenderService.Rendering;
 import com.peregrine.versions.VersioningResourceResolver;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.resource.Resource;
@@ -41,6 +42,13 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -59,6 +67,7 @@ import static com.peregrine.commons.util.PerConstants.SLASH;
 import static com.peregrine.commons.util.PerConstants.SLING_FOLDER;
 import static com.peregrine.commons.util.PerConstants.SLING_ORDERED_FOLDER;
 import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 import static java.util.Objects.requireNonNullElse;
 import static org.apache.commons.lang3.StringUtils.EMPTY;
 import static org.apache.commons.lang3.StringUtils.isBlank;
@@ -92,6 +101,11 @@ public abstract class FileReplicationServiceBase extends ReplicationServiceBase
     private static final String EXTENSION_NAME_MUST_BE_PROVIDED = "Extension Name must be provided";
     private static final String EXTENSION_TYPES_MUST_BE_PROVIDED = "Extension Types must be provided";
     private static final String RENDERING_OF_ASSET_FAILED = "Rendering of Asset failed";
+    private static final String REPLICATION_INTERRUPTED = "Replication was interrupted";
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private volatile ExecutorService writers;
+    private volatile int maxInFlight;
 
     private final RenditionConsumer assetRenditionCreator = (resource, renditionName) -> {
         if (isNotBlank(renditionName)) {
@@ -109,8 +123,7 @@ public abstract class FileReplicationServiceBase extends ReplicationServiceBase
         }
 
         final String extension = isBlank(renditionName) ? EMPTY : RENDITION_ACTION + SLASH + renditionName;
-        final byte[] content = getRenderService().renderRawInternally(wrappedResource, extension);
-        return storeRendering(resource, renditionName, content);
+        return storeRendering(wrappedResource, extension, resource.getParent(), renderingName(resource, renditionName));
     };
 
     @Override
@@ -188,9 +201,23 @@ public abstract class FileReplicationServiceBase extends ReplicationServiceBase
             return Collections.emptyList();
         }
 
-        final List<Resource> answer = new LinkedList<>();
+        final ExecutorService currentWriters = writers;
+        final List<Resource> answer = isNull(currentWriters) ?
+                replicateSequentially(filterReferences(resourceList)) :
+                replicateInPipeline(filterReferences(resourceList), currentWriters);
         Session session = resourceResolver.adaptTo(Session.class);
-        for(Resource item: filterReferences(resourceList)) {
+        try {
+            session.save();
+        } catch(RepositoryException e) {
+            log.warn("Failed to save changes replicate parents", e);
+        }
+
+        return answer;
+    }
+
+    private List<Resource> replicateSequentially(final List<Resource> items) throws ReplicationException {
+        final List<Resource> answer = new LinkedList<>();
+        for(Resource item: items) {
             handleParents(item.getParent());
             // Need to figure out the type and replicate accordingly
             String primaryType = PerUtil.getPrimaryType(item);
@@ -202,21 +229,186 @@ public abstract class FileReplicationServiceBase extends ReplicationServiceBase
             }
 
             answer.add(item);
-            if (isNotBlank(path)) {
-                final Resource contentResource = item.getChild(JCR_CONTENT);
-                markAsActivated(requireNonNullElse(contentResource, item), path);
+            markAsReplicated(item, path);
+        }
+
+        return answer;
+    }
+
+    /**
+     * Renders the resources on the bounded pool of the Render Service and writes the renderings
+     * on the writer pool while the calling thread, which owns the Resource Resolver, does all the
+     * JCR changes. At most maxInFlight renderings are rendered or written at any time.
+     * Assets are replicated on the calling thread as their published version is only visible to it.
+     * A resource whose renderings could not be written is left out of the answer and reported
+     * while the others are still replicated.
+     * Contrary to the sequential replication the pages are not rendered with the caller's Resource
+     * Resolver but with the service user of the Render Service: they are rendered with its permissions
+     * and changes the caller did not save yet (like the ones of prepare) are not visible.
+     */
+    private List<Resource> replicateInPipeline(final List<Resource> items, final ExecutorService writers)
+            throws ReplicationException {
+        for (final Resource item : items) {
+            handleParents(item.getParent());
+        }
+
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final Map<Resource, CompletableFuture<List<String>>> stored = new LinkedHashMap<>();
+        for (final Resource item : items) {
+            if (ASSET_PRIMARY_TYPE.equals(PerUtil.getPrimaryType(item))) {
+                final String path = processAssetRenditions(item, assetRenditionReplicator);
+                stored.put(item, CompletableFuture.completedFuture(isBlank(path) ? Collections.emptyList() : Collections.singletonList(path)));
+            } else {
+                stored.put(item, storeRenderings(item, inFlight, writers));
             }
         }
 
-        try {
-            session.save();
-        } catch(RepositoryException e) {
-            log.warn("Failed to save changes replicate parents", e);
+        final List<Resource> answer = new LinkedList<>();
+        final Map<String, Throwable> failures = new LinkedHashMap<>();
+        for (final Map.Entry<Resource, CompletableFuture<List<String>>> entry : stored.entrySet()) {
+            final Resource item = entry.getKey();
+            final List<String> paths;
+            try {
+                paths = entry.getValue().join();
+            } catch (final CompletionException e) {
+                failures.put(item.getPath(), requireNonNullElse(e.getCause(), e));
+                continue;
+            }
+
+            for (final String path : paths) {
+                markAsStored(item.getParent(), path);
+            }
+
+            answer.add(item);
+            markAsReplicated(item, paths.isEmpty() ? null : paths.get(0));
+        }
+
+        for (final Map.Entry<String, Throwable> failure : failures.entrySet()) {
+            log.warn("Replication of '{}' failed", failure.getKey(), failure.getValue());
+        }
+
+        if (!failures.isEmpty()) {
+            log.warn("Replicated {} of {} resources, failed: '{}'", answer.size(), items.size(), failures.keySet());
         }
 
         return answer;
     }
 
+    /**
+     * Hands the renderings of the given resource to the Render Service and their writing to the writers
+     * @return Future of the paths of the stored renderings in the order of the export extensions
+     */
+    private CompletableFuture<List<String>> storeRenderings(
+            final Resource resource,
+            final Semaphore inFlight,
+            final ExecutorService writers
+    ) throws ReplicationException {
+        log.trace("Replicate Resource: '{}'", resource.getPath());
+        final Set<String> extensions = getExportExtensions(resource).stream()
+                .map(ExportExtension::getFileExtension)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        if (extensions.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+
+        final String path = resource.getPath();
+        final String parentPath = resource.getParent().getPath();
+        final Map<String, String> names = new HashMap<>();
+        for (final String extension : extensions) {
+            names.put(extension, renderingName(resource, extension));
+        }
+
+        final int permits = Math.min(extensions.size(), maxInFlight);
+        try {
+            inFlight.acquire(permits);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ReplicationException(REPLICATION_INTERRUPTED, e);
+        }
+
+        final List<CompletableFuture<String>> written = new ArrayList<>();
+        try {
+            for (final CompletableFuture<Rendering> rendering : getRenderService().renderAll(Collections.singleton(resource), extensions)) {
+                written.add(rendering
+                        .handle((r, e) -> {
+                            if (nonNull(e)) {
+                                log.warn("Rendering of '{}' failed -> ignore it", path);
+                                log.debug("Rendering Failure", e);
+                            }
+
+                            return r;
+                        })
+                        .thenApplyAsync(r -> isNull(r) ? null : writeRendering(parentPath, names.get(r.getExtension()), r), writers));
+            }
+        } catch (final RuntimeException e) {
+            inFlight.release(permits);
+            throw e;
+        }
+
+        return CompletableFuture.allOf(written.toArray(new CompletableFuture[0]))
+                .whenComplete((v, e) -> inFlight.release(permits))
+                .thenApply(v -> written.stream()
+                        .map(CompletableFuture::join)
+                        .filter(StringUtils::isNotBlank)
+                        .collect(Collectors.toList()));
+    }
+
+    private String writeRendering(final String parentPath, final String name, final Rendering rendering) {
+        try {
+            return storeRendering(parentPath, name, rendering.getContent());
+        } catch (final ReplicationException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private void markAsReplicated(final Resource item, final String path) {
+        if (isNotBlank(path)) {
+            final Resource contentResource = item.getChild(JCR_CONTENT);
+            markAsActivated(requireNonNullElse(contentResource, item), path);
+        }
+    }
+
+    /**
+     * Starts the writers of the replication pipeline. Without them the resources are replicated
+     * one after the other on the calling thread with its Resource Resolver. The pipeline is opt-in
+     * as it renders with the service user of the Render Service, see replicateInPipeline.
+     * @param writerThreads Number of threads writing renderings to the target, 0 or less disables the pipeline
+     * @param maxInFlight Maximum number of renderings that are rendered or written at the same time
+     */
+    protected void startPipeline(final int writerThreads, final int maxInFlight) {
+        stopPipeline();
+        if (writerThreads <= 0) {
+            return;
+        }
+
+        this.maxInFlight = Math.max(1, maxInFlight);
+        final AtomicInteger counter = new AtomicInteger();
+        writers = Executors.newFixedThreadPool(writerThreads, runnable -> {
+            final Thread thread = new Thread(runnable, "peregrine-replication-writer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Stops the writers of the replication pipeline after they finished their pending writes **/
+    protected void stopPipeline() {
+        final ExecutorService current = writers;
+        writers = null;
+        if (isNull(current)) {
+            return;
+        }
+
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                current.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /** @return Sling Request Processor to render pages **/
     abstract RenderService getRenderService();
     /** @return Reference Lister to find referencing nodes **/
@@ -298,16 +490,35 @@ public abstract class FileReplicationServiceBase extends ReplicationServiceBase
     }
 
     /**
-     * Store the given Asset Rendering on the target
-     * @param resource Resource that is exported
-     * @param extension File Extension (without a leading dot)
-     * @param content Asset content of the rendering
+     * Renders the given resource and stores the rendering on the target
+     * @param resource Resource to be rendered
+     * @param extension Extension of the rendering request
+     * @param parent Resource that is the parent of the rendering on the target
+     * @param name File name of the rendering
      * @return Path to the Stored Rendition used for the Rendition Ref property
+     * @throws RenderException If the rendering failed
      * @throws ReplicationException if the writing of the content failed
      */
-    String storeRendering(Resource resource, String extension, byte[] content) throws ReplicationException {
-        return storeFile(resource.getParent(), renderingName(resource, extension), content);
-    }
+    abstract String storeRendering(Resource resource, String extension, Resource parent, String name)
+            throws RenderException, ReplicationException;
+
+    /**
+     * Stores an already rendered content on the target. This is called on the writer threads
+     * and so must not access the repository.
+     * @param parentPath Path of the resource that is the parent of the rendering on the target
+     * @param name File name of the rendering
+     * @param content Rendered content, an empty content means there is no replica
+     * @return Path to the Stored Rendition or null if nothing was stored
+     * @throws ReplicationException if the writing of the content failed
+     */
+    abstract String storeRendering(String parentPath, String name, byte[] content) throws ReplicationException;
+
+    /**
+     * Records a rendering stored by {@link #storeRendering(String, String, byte[])} in the repository
+     * @param parent Resource that is the parent of the rendering on the target
+     * @param path Path to the Stored Rendition
+     */
+    abstract void markAsStored(Resource parent, String path);
 
     /**
      * Removes a given resource from the target
@@ -321,21 +532,11 @@ public abstract class FileReplicationServiceBase extends ReplicationServiceBase
     private String replicatePerResource(Resource resource) throws ReplicationException {
         String result = null;
         log.trace("Replicate Resource: '{}'", resource.getPath());
-        final RenderService renderService = getRenderService();
         for (final ExportExtension exportExtension : getExportExtensions(resource)) {
             final String extension = exportExtension.getFileExtension();
             try {
-                final String path;
-                if (exportExtension.isRaw()) {
-                    log.trace("Before Rendering Raw Resource With Extension: '{}'", extension);
-                    final byte[] content = renderService.renderRawInternally(resource, extension);
-                    path = storeRendering(resource, extension, content);
-                } else {
-                    log.trace("Before Rendering String Resource With Extension: '{}'", extension);
-                    final String content = renderService.renderInternally(resource, extension);
-                    path = storeFile(resource.getParent(), renderingName(resource, extension), content);
-                }
-
+                log.trace("Before Rendering Resource With Extension: '{}', raw: '{}'", extension, exportExtension.isRaw());
+                final String path = storeRendering(resource, extension, resource.getParent(), renderingName(resource, extension));
                 result = StringUtils.defaultIfBlank(result, path);
             } catch (RenderException e) {
                 log.warn("Rendering of '{}' failed -> ignore it", resource.getPath());
@@ -26,33 +26,56 @@ package com.peregrine.replication.impl;
  */
 
 import com.peregrine.render.RenderService;
+import com.peregrine.render.RenderService.RenderException;
 import com.peregrine.reference.ReferenceLister;
 import com.peregrine.replication.Replication;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.resource.Resource;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import static com.peregrine.commons.IOUtils.*;
 import static com.peregrine.commons.TextUtils.replacePlaceholders;
+import static com.peregrine.commons.Chars.DOT;
 import static com.peregrine.commons.Chars._SCORE;
 import static com.peregrine.commons.ResourceUtils.jcrNameToFileName;
 import static com.peregrine.commons.util.PerConstants.SLASH;
@@ -90,6 +113,9 @@ public class LocalFileSystemReplicationService
     public static final String REPLICATION_FOLDER_NO_DIRECTORY = "Replication Target Folder: '%s' is not a directory";
     public static final String REPLICATION_FOLDER_NO_WRITE = "Replication Target Folder: '%s' cannot read or write";
     public static final String CANNOT_WRITE_RENDERING = "Failed to write raw rending content to file: '%s'";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    public static final String GZIP_SUFFIX = ".gz";
 
     @ObjectClassDefinition(
         name = "Peregrine: Local FS Replication Service",
@@ -130,11 +156,34 @@ public class LocalFileSystemReplicationService
             description = "List of all the required renditions that are replicated (if missing they are created)"
         )
         String[] mandatoryRenditions();
+        @AttributeDefinition(
+            name = "Writer Threads",
+            description = "Number of threads writing renderings to the Target Folder while the Render Service renders the next ones. " +
+                "The pipeline renders with the Render Service's own service user instead of the replicating user and so " +
+                "only sees persisted content with the permissions of that service user. 0 or less (the default) replicates " +
+                "one resource after the other with the replicating user's Resource Resolver",
+            defaultValue = "0"
+        )
+        int writerThreads() default 0;
+        @AttributeDefinition(
+            name = "Max In Flight",
+            description = "Maximum number of renderings that are rendered or written at the same time, further resources wait until one of them is done",
+            defaultValue = "32"
+        )
+        int maxInFlight() default 32;
+        @AttributeDefinition(
+            name = "Precompressed Extensions",
+            description = "Extensions of the files (i.e. html, json, js, css, svg, xml) that are written as a gzip compressed '.gz' file next to them as well, so that the web server can serve them precompressed"
+        )
+        String[] precompressedExtensions() default {};
     }
 
     private File targetFolder;
+    // Target folders that are known to exist by their resource path, this saves checking every folder on each write
+    private final Map<String, File> knownFolders = new ConcurrentHashMap<>();
     private final List<ExportExtension> exportExtensions = new ArrayList<>();
     private List<String> mandatoryRenditions = new ArrayList<>();
+    private Set<String> precompressedExtensions = new HashSet<>();
 
     @Activate
     @SuppressWarnings("unused")
@@ -142,6 +191,9 @@ public class LocalFileSystemReplicationService
     @Modified
     @SuppressWarnings("unused")
     void modified(BundleContext context, Configuration configuration) { setup(context, configuration); }
+    @Deactivate
+    @SuppressWarnings("unused")
+    void deactivate() { stopPipeline(); }
 
     private void setup(BundleContext context, Configuration configuration) {
         log.trace("Create Local FS Replication Service Name: '{}'", configuration.name());
@@ -165,6 +217,14 @@ public class LocalFileSystemReplicationService
         }
         log.debug("Mandatory Renditions: '{}'", configuration.mandatoryRenditions());
         mandatoryRenditions = intoList(configuration.mandatoryRenditions());
+        log.debug("Precompressed Extensions: '{}'", Arrays.toString(configuration.precompressedExtensions()));
+        final Set<String> precompressed = new HashSet<>();
+        for (final String extension : intoList(configuration.precompressedExtensions())) {
+            if (isNotEmpty(extension)) {
+                precompressed.add(StringUtils.removeStart(extension.trim(), String.valueOf(DOT)).toLowerCase(Locale.ROOT));
+            }
+        }
+        precompressedExtensions = precompressed;
         String targetFolderPath = configuration.targetFolder();
         if(targetFolderPath.isEmpty()) {
             throw new IllegalArgumentException(REPLICATION_TARGET_FOLDER_CANNOT_BE_EMPTY);
@@ -194,6 +254,9 @@ public class LocalFileSystemReplicationService
             }
             targetFolder = temp;
         }
+        knownFolders.clear();
+        log.debug("Writer Threads: '{}', Max In Flight: '{}'", configuration.writerThreads(), configuration.maxInFlight());
+        startPipeline(configuration.writerThreads(), configuration.maxInFlight());
         log.trace("Local FS Replication Service Name: '{}' created with target folder: '{}'", getName(), targetFolder);
     }
 
@@ -216,20 +279,26 @@ public class LocalFileSystemReplicationService
 
     @Override
     boolean isFolderOnTarget(String path) {
+        final String key = toFolderKey(path);
+        if (knownFolders.containsKey(key)) {
+            return true;
+        }
+
         File check = new File(targetFolder, path);
-        return check.exists();
+        if (!check.exists()) {
+            return false;
+        }
+
+        if (check.isDirectory()) {
+            knownFolders.put(key, check);
+        }
+
+        return true;
     }
 
     @Override
     File createTargetFolder(final String path) throws ReplicationException {
-        File answer = targetFolder;
-        for (final String name: path.split(SLASH)) {
-            if (nonNull(answer) && StringUtils.isNotEmpty(name)) {
-                final String fileName = jcrNameToFileName(name);
-                answer = createChildDirectory(answer, fileName, fileName + _SCORE);
-            }
-        }
-
+        final File answer = createFolder(toFolderKey(path));
         if (isNull(answer)) {
             throw new ReplicationException(String.format(FAILED_TO_CREATE_FOLDER, path, targetFolder.getAbsolutePath()));
         }
@@ -237,6 +306,54 @@ public class LocalFileSystemReplicationService
         return answer;
     }
 
+    /**
+     * Obtains the folder of the given path from the known folders or otherwise
+     * creates it after its parent and adds it to the known folders
+     * @return The folder or null if it could not be created
+     */
+    private File createFolder(final String key) {
+        if (key.isEmpty()) {
+            return targetFolder;
+        }
+
+        final File known = knownFolders.get(key);
+        if (nonNull(known)) {
+            return known;
+        }
+
+        final File parent = createFolder(StringUtils.substringBeforeLast(key, SLASH));
+        if (isNull(parent)) {
+            return null;
+        }
+
+        final String fileName = jcrNameToFileName(StringUtils.substringAfterLast(key, SLASH));
+        final File answer = createChildDirectory(parent, fileName, fileName + _SCORE);
+        if (nonNull(answer)) {
+            knownFolders.put(key, answer);
+        }
+
+        return answer;
+    }
+
+    /** Forgets the known folders of the given path and of all paths starting with it **/
+    private void forgetFolders(final String path) {
+        final String folderKey = toFolderKey(path);
+        final String prefix = folderKey + SLASH;
+        knownFolders.keySet().removeIf(key -> key.equals(folderKey) || key.startsWith(prefix));
+    }
+
+    /** @return The path without empty segments which is used as the key of the known folders **/
+    private static String toFolderKey(final String path) {
+        final StringBuilder answer = new StringBuilder();
+        for (final String name : path.split(SLASH)) {
+            if (StringUtils.isNotEmpty(name)) {
+                answer.append(SLASH).append(name);
+            }
+        }
+
+        return answer.toString();
+    }
+
     @Override
     List<ExportExtension> getExportExtensions() { return exportExtensions; }
 
@@ -247,52 +364,191 @@ public class LocalFileSystemReplicationService
 
     @Override
     public String storeFile(final Resource parent, final String name, final String content) throws ReplicationException {
-        return storeFile(parent, name, isNull(content) ? null : file -> {
-            try (final FileWriter fileWriter = new FileWriter(file)) {
-                fileWriter.append(content);
-            } catch (final IOException e) {
-                return new ReplicationException(String.format(FAILED_TO_STORE_RENDERING, file.getAbsolutePath()), e);
-            }
+        return storeFile(parent, name, isNull(content) ? null : content.getBytes(StandardCharsets.UTF_8));
+    }
 
+    @Override
+    public String storeFile(final Resource parent, final String name, final byte[] content) throws ReplicationException {
+        if (isNull(content)) {
+            deleteFile(parent.getPath(), name);
             return null;
-        });
+        }
+
+        final File file = createFileWithParentAndName(parent.getPath(), name);
+        try {
+            storePrecompressed(file, replaceFile(file, outputStream -> outputStream.write(content), false));
+        } catch (final IOException | RenderException e) {
+            throw new ReplicationException(String.format(FAILED_TO_STORE_RENDERING, file.getAbsolutePath()), e);
+        }
+
+        return markAsStored(parent, file);
     }
 
     @Override
-    public String storeFile(final Resource parent, final String name, final byte[] content) throws ReplicationException {
-        return storeFile(parent, name, isNull(content) ? null : file -> {
-            try (final FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-                fileOutputStream.write(content);
-            } catch (final IOException e) {
-                return new ReplicationException(String.format(CANNOT_WRITE_RENDERING, file.getAbsolutePath()), e);
+    String storeRendering(final Resource resource, final String extension, final Resource parent, final String name)
+            throws RenderException, ReplicationException {
+        final File file = createFileWithParentAndName(parent.getPath(), name);
+        try {
+            // Same as a missing content when storing a file: no rendering means no replica
+            final Replacement replacement = replaceFile(file, outputStream -> renderService.renderInternally(resource, extension, outputStream), true);
+            storePrecompressed(file, replacement);
+            if (replacement == Replacement.DELETED) {
+                return null;
             }
+        } catch (final IOException e) {
+            throw new ReplicationException(String.format(CANNOT_WRITE_RENDERING, file.getAbsolutePath()), e);
+        }
+
+        return markAsStored(parent, file);
+    }
 
+    @Override
+    String storeRendering(final String parentPath, final String name, final byte[] content) throws ReplicationException {
+        // Same as a missing content when storing a file: no rendering means no replica
+        if (isNull(content) || content.length == 0) {
+            deleteFile(parentPath, name);
             return null;
-        });
+        }
+
+        final File file = createFileWithParentAndName(parentPath, name);
+        try {
+            storePrecompressed(file, replaceFile(file, outputStream -> outputStream.write(content), false));
+        } catch (final IOException | RenderException e) {
+            throw new ReplicationException(String.format(CANNOT_WRITE_RENDERING, file.getAbsolutePath()), e);
+        }
+
+        return LOCAL_FILE_SYSTEM + file.getAbsolutePath();
     }
 
-    private String storeFile(final Resource parent, final String name, final Function<File, ReplicationException> fileConsumer)
-            throws ReplicationException {
-        if (isNull(fileConsumer)) {
-            final File file = new File(targetFolder, parent.getPath() + SLASH + name);
-            if (file.exists() && file.isFile()) {
-                file.delete();
+    private void deleteFile(final String parentPath, final String name) {
+        final File file = new File(targetFolder, parentPath + SLASH + name);
+        if (file.exists() && file.isFile()) {
+            file.delete();
+        }
+
+        final File precompressed = new File(targetFolder, parentPath + SLASH + name + GZIP_SUFFIX);
+        if (precompressed.isFile()) {
+            precompressed.delete();
+        }
+    }
+
+    private boolean isPrecompressed(final String name) {
+        final int index = name.lastIndexOf(DOT);
+        return index >= 0 && precompressedExtensions.contains(name.substring(index + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Keeps the gzip compressed copy of a file with a precompressed extension in line with the file.
+     * An unchanged file is only compressed if its compressed copy is missing. The compressed copy
+     * of a file whose extension is no longer precompressed is deleted so that it is not served stale.
+     * @param file File that was just replaced
+     * @param replacement What happened to the file
+     */
+    private void storePrecompressed(final File file, final Replacement replacement) throws IOException, RenderException {
+        final File precompressed = new File(file.getParentFile(), file.getName() + GZIP_SUFFIX);
+        if (replacement == Replacement.DELETED || !isPrecompressed(file.getName())) {
+            Files.deleteIfExists(precompressed.toPath());
+            return;
+        }
+
+        if (replacement == Replacement.UNCHANGED && precompressed.isFile()) {
+            return;
+        }
+
+        replaceFile(precompressed, outputStream -> {
+            // Closing the gzip stream must not close the stream of the temporary file
+            try (final OutputStream gzip = new GZIPOutputStream(new CloseShieldOutputStream(outputStream))) {
+                Files.copy(file.toPath(), gzip);
             }
+        }, false);
+    }
 
-            return null;
+    /**
+     * Writes the content into a temporary file next to the given file which then atomically replaces it,
+     * so the file is never missing or partially written. If the file already has the same content
+     * it is left untouched. If writing the content fails the file is left as it was.
+     * @param file File to be replaced
+     * @param writer Writes the content into the given stream
+     * @param deleteIfEmpty If true an empty content deletes the file instead of replacing it
+     * @return Whether the file was replaced, left unchanged or deleted because of an empty content
+     */
+    private Replacement replaceFile(final File file, final ContentWriter writer, final boolean deleteIfEmpty)
+            throws IOException, RenderException {
+        final Path target = file.toPath();
+        // Unlike a temp file created by Files.createTempFile() this one gets the default permissions
+        final Path temporary = Files.createFile(target.resolveSibling(DOT + file.getName() + DOT + UUID.randomUUID() + TEMPORARY_FILE_SUFFIX));
+        try {
+            final MessageDigest digest = createDigest();
+            final boolean changed;
+            try (final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+                 final OutputStream outputStream = new BufferedOutputStream(new DigestOutputStream(Channels.newOutputStream(channel), digest))) {
+                writer.write(outputStream);
+                outputStream.flush();
+                final long size = channel.size();
+                if (size == 0 && deleteIfEmpty) {
+                    Files.deleteIfExists(target);
+                    return Replacement.DELETED;
+                }
+
+                changed = !isSameContent(target, size, digest.digest());
+                if (changed) {
+                    channel.force(true);
+                }
+            }
+
+            if (changed) {
+                move(temporary, target);
+                return Replacement.REPLACED;
+            }
+
+            log.trace("Content of File: '{}' is unchanged -> skip it", file.getAbsolutePath());
+            return Replacement.UNCHANGED;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static boolean isSameContent(final Path file, final long size, final byte[] hash) throws IOException {
+        if (!Files.isRegularFile(file) || Files.size(file) != size) {
+            return false;
         }
 
-        final File file = createFileWithParentAndName(parent, name);
-        final ReplicationException exception = fileConsumer.apply(file);
-        if (nonNull(exception)) {
-            throw exception;
+        final MessageDigest digest = createDigest();
+        try (final InputStream inputStream = new DigestInputStream(Files.newInputStream(file), digest)) {
+            inputStream.transferTo(OutputStream.nullOutputStream());
         }
 
+        return MessageDigest.isEqual(hash, digest.digest());
+    }
+
+    private static void move(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String markAsStored(final Resource parent, final File file) {
         final String localFileSystemPath = LOCAL_FILE_SYSTEM + file.getAbsolutePath();
-        markAsActivated(getJcrContent(parent), localFileSystemPath);
+        markAsStored(parent, localFileSystemPath);
         return localFileSystemPath;
     }
 
+    @Override
+    void markAsStored(final Resource parent, final String path) {
+        markAsActivated(getJcrContent(parent), path);
+    }
+
     @Override
     void removeReplica(Resource resource, final Pattern namePattern, final boolean isFolder) throws ReplicationException {
         final String resourceName = resource.getName();
@@ -301,13 +557,17 @@ public class LocalFileSystemReplicationService
             throw new ReplicationException(String.format(FAILED_STORE_RENDERING_MISSING_PARENT_FOLDER, directory.getAbsolutePath()));
         }
 
+        // Matching names are removed below including folders, so forget them and everything underneath
+        forgetFolders(resource.getPath());
         final File[] filesToBeDeletedFiles = directory.listFiles(file -> {
                     final String name = file.getName();
                     if (isFolder && file.isDirectory() && name.equals(resourceName)) {
                         return true;
                     }
 
-                    return name.startsWith(resourceName) && (isNull(namePattern) || namePattern.matcher(name).matches());
+                    // Precompressed copies go together with their file
+                    final String fileName = StringUtils.removeEnd(name, GZIP_SUFFIX);
+                    return name.startsWith(resourceName) && (isNull(namePattern) || namePattern.matcher(fileName).matches());
                 }
         );
         if (isNull(filesToBeDeletedFiles)) {
@@ -324,25 +584,33 @@ public class LocalFileSystemReplicationService
         }
     }
 
-    private File createFileWithParentAndName(final Resource parent, final String name) throws ReplicationException {
-        final File directory = createTargetFolder(parent.getPath());
+    private File createFileWithParentAndName(final String parentPath, final String name) throws ReplicationException {
+        File directory = createTargetFolder(parentPath);
+        if (!directory.isDirectory()) {
+            // Removed from the target behind our back, so any of the known folders might be gone as well
+            knownFolders.clear();
+            directory = createTargetFolder(parentPath);
+        }
+
         if (!(directory.exists() && directory.isDirectory())) {
             throw new ReplicationException(String.format(FAILED_STORE_RENDERING_MISSING_PARENT_FOLDER, directory.getAbsolutePath()));
         }
 
+        // An existing file is kept until the new content replaces it
         final File file = new File(directory, name);
-        if (!file.exists()) {
-            return file;
-        }
-
         if (file.isDirectory()) {
             throw new ReplicationException(String.format(FAILED_STORE_RENDERING_FILE_IS_DIRECTORY, file.getAbsolutePath()));
-        } else {
-            log.trace("Delete existing Rendering File: '{}'", file.getAbsolutePath());
-            file.delete();
         }
 
         return file;
     }
 
+    private interface ContentWriter {
+        void write(OutputStream outputStream) throws IOException, RenderException;
+    }
+
+    private enum Replacement {
+        REPLACED, UNCHANGED, DELETED
+    }
+
 }
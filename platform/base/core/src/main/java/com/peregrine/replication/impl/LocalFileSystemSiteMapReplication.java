@@ -28,7 +28,12 @@ package com.peregrine.replication.impl;
 import com.peregrine.replication.Replication;
 import com.peregrine.replication.Replication.ReplicationException;
 import com.peregrine.replication.ReplicationsContainerWithDefault;
+import com.peregrine.sitemap.RewriteMapUtils;
+import com.peregrine.sitemap.SiteMapConstants;
+import com.peregrine.sitemap.SiteMapEntry;
+import com.peregrine.sitemap.SiteMapFile;
 import com.peregrine.sitemap.SiteMapFilesCache;
+import com.peregrine.sitemap.SiteMapStructureCache;
 import com.peregrine.sitemap.SiteMapUrlBuilder;
 import org.apache.sling.api.resource.Resource;
 import org.osgi.service.component.annotations.Activate;
@@ -38,6 +43,8 @@ import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+
 import static com.peregrine.commons.Chars.DOT;
 import static java.util.Objects.isNull;
 
@@ -52,21 +59,28 @@ public final class LocalFileSystemSiteMapReplication implements SiteMapFilesCach
     @Reference
     private SiteMapFilesCache siteMapFilesCache;
 
+    @Reference
+    private SiteMapStructureCache siteMapStructureCache;
+
     @Reference
     private SiteMapUrlBuilder urlBuilder;
 
+    private final SiteMapStructureCache.RefreshListener rewriteMapReplication = this::replicateRewriteMap;
+
     @Activate
     public void activate() {
         siteMapFilesCache.addRefreshListener(this);
+        siteMapStructureCache.addRefreshListener(rewriteMapReplication);
     }
 
     @Deactivate
     public void deactivate() {
         siteMapFilesCache.removeRefreshListener(this);
+        siteMapStructureCache.removeRefreshListener(rewriteMapReplication);
     }
 
     @Override
-    public void onCacheRefreshed(final Resource rootPage, final String[] contents) {
+    public void onCacheRefreshed(final Resource rootPage, final SiteMapFile[] contents) {
         final Replication replication = replications.getDefault();
         if (isNull(replication)) {
             return;
@@ -76,13 +90,39 @@ public final class LocalFileSystemSiteMapReplication implements SiteMapFilesCach
         final String prefix = rootPage.getName() + DOT;
         for (int index = 0; index < contents.length; index++) {
             final String name = prefix + urlBuilder.getFileName(index);
-            final String content = contents[index];
+            final SiteMapFile content = contents[index];
             try {
-                replication.storeFile(parent, name, content);
+                if (isNull(content)) {
+                    replication.storeFile(parent, name, (String) null);
+                } else {
+                    replication.storeFile(parent, name, content.getContentBytes());
+                }
             } catch (final ReplicationException e) {
                 logger.warn(String.format("Could not replicate %s @ %s", name, rootPage.getPath()), e);
             }
         }
     }
 
+    /**
+     * Stores the hash indexed rewrite map next to the site maps, so the web server can look up urls without
+     * scanning a text map.
+     */
+    private void replicateRewriteMap(final Resource rootPage, final List<SiteMapEntry> entries) {
+        final Replication replication = replications.getDefault();
+        if (isNull(replication)) {
+            return;
+        }
+
+        final String name = rootPage.getName() + DOT + SiteMapConstants.SITE_MAP + DOT + SiteMapConstants.CDB;
+        try {
+            if (isNull(entries)) {
+                replication.storeFile(rootPage.getParent(), name, (String) null);
+            } else {
+                replication.storeFile(rootPage.getParent(), name, RewriteMapUtils.toCdb(entries));
+            }
+        } catch (final ReplicationException e) {
+            logger.warn(String.format("Could not replicate %s @ %s", name, rootPage.getPath()), e);
+        }
+    }
+
 }
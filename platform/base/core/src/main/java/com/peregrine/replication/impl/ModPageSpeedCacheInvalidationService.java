@@ -25,7 +25,9 @@ package com.peregrine.replication.impl;
  * #L%
  */
 
+import com.peregrine.commons.concurrent.CoalescingScheduler;
 import com.peregrine.commons.util.PerUtil;
+import com.peregrine.replication.PurgeStatistics;
 import com.peregrine.replication.ReplicationServiceBase;
 import com.peregrine.reference.ReferenceLister;
 import com.peregrine.replication.Replication;
@@ -36,6 +38,7 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolverFactory;
@@ -48,20 +51,33 @@ import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import java.io.IOException;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * This class is responsible for issuing cache flush requests to mod_pagespeed on replication events.
+ *
+ * The requests are not issued within the replication. They are queued per invalidation URL, so per site
+ * and domain, and every URL is purged once after no replication asked for it during the coalesce interval
+ * (at the latest after the max delay). Failed purges are retried with a doubling delay. Purges still
+ * waiting when the configuration changes are queued again, the ones waiting on deactivation are sent
+ * right away.
  */
 @Component(
         configurationPolicy = ConfigurationPolicy.REQUIRE,
-        service = Replication.class,
+        service = { Replication.class, PurgeStatistics.class },
         immediate = true
 )
 @Designate(ocd = ModPageSpeedCacheInvalidationService.Configuration.class, factory = true)
 public class ModPageSpeedCacheInvalidationService
         extends ReplicationServiceBase
+        implements PurgeStatistics
 {
     private static final int HTTP_CLIENT_TIMEOUT_SECONDS = 5;
     private static final Pattern ROOT_SITE_PATH_PATTERN = Pattern.compile("^(/content/[a-zA-Z0-9_]+)/.*$");
@@ -86,6 +102,36 @@ public class ModPageSpeedCacheInvalidationService
                 description = "Absolute URL to the PageSpeed cache invalidation endpoint (i.e. http://localhost/pagespeed_admin/cache)."
         )
         String cacheInvalidationUrl();
+        @AttributeDefinition(
+                name = "Coalesce Interval",
+                description = "Milliseconds without a replication of a site before its cache is purged",
+                defaultValue = "1000"
+        )
+        long coalesceInterval() default 1_000;
+        @AttributeDefinition(
+                name = "Max Delay",
+                description = "Maximum milliseconds the purge of a site is postponed by ongoing replications",
+                defaultValue = "10000"
+        )
+        long maxDelay() default 10_000;
+        @AttributeDefinition(
+                name = "Max Concurrent Purges",
+                description = "Maximum number of purge requests that are sent at the same time",
+                defaultValue = "4"
+        )
+        int maxConcurrentPurges() default 4;
+        @AttributeDefinition(
+                name = "Purge Retries",
+                description = "Number of times a failed purge request is retried",
+                defaultValue = "3"
+        )
+        int purgeRetries() default 3;
+        @AttributeDefinition(
+                name = "Purge Retry Delay",
+                description = "Milliseconds to wait before the first retry of a failed purge request, doubled with every further retry",
+                defaultValue = "1000"
+        )
+        long purgeRetryDelay() default 1_000;
     }
     @Activate
     @SuppressWarnings("unused")
@@ -93,19 +139,112 @@ public class ModPageSpeedCacheInvalidationService
     @Modified
     @SuppressWarnings("unused")
     void modified(Configuration configuration) { setup(configuration); }
+    @Deactivate
+    @SuppressWarnings("unused")
+    void deactivate() { sendPurges(stop()); }
 
 
     private String cacheInvalidationUrl;
+    private int purgeRetries;
+    private long purgeRetryDelay;
+    private volatile CloseableHttpClient httpClient;
+    private volatile CoalescingScheduler<String> purges;
+    private volatile ScheduledExecutorService retries;
+
+    private final Map<String, Integer> failedAttempts = new ConcurrentHashMap<>();
+    private final AtomicLong requestedPurges = new AtomicLong();
+    private final AtomicLong sentPurges = new AtomicLong();
+    private final AtomicLong retriedPurges = new AtomicLong();
+    private final AtomicLong failedPurges = new AtomicLong();
 
     private void setup(Configuration configuration) {
         init(configuration.name(), configuration.description());
 
         cacheInvalidationUrl = configuration.cacheInvalidationUrl();
+        purgeRetries = Math.max(0, configuration.purgeRetries());
+        purgeRetryDelay = Math.max(0, configuration.purgeRetryDelay());
+        final int maxConcurrentPurges = Math.max(1, configuration.maxConcurrentPurges());
+
+        final Set<String> unsent = stop();
+        closeHttpClient();
+        final int timeout = HTTP_CLIENT_TIMEOUT_SECONDS * 1000;
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .setSocketTimeout(timeout).build();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConcurrentPurges);
+        connectionManager.setDefaultMaxPerRoute(maxConcurrentPurges);
+        httpClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config)
+                .build();
+        retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "peregrine-pagespeed-retries-" + getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // one URL per batch so that the URLs are spread over all the workers
+        purges = new CoalescingScheduler<>(this::purge, configuration.coalesceInterval(), configuration.maxDelay(),
+                TimeUnit.MILLISECONDS, maxConcurrentPurges, 1);
+        if (!unsent.isEmpty()) {
+            log.debug("Queueing {} pending PageSpeed invalidation requests again: '{}'", unsent.size(), unsent);
+            unsent.forEach(purges::call);
+        }
 
         log.trace("PageSpeed Invalidation Service Name: '{}' created", getName());
         log.trace("PageSpeed cache invalidation URL: '{}'", cacheInvalidationUrl);
     }
 
+    /**
+     * Stops the purge and retry queues, the HTTP client is left open.
+     *
+     * @return the URLs that were queued or waiting for a retry and are not purged yet
+     */
+    private Set<String> stop() {
+        final Set<String> unsent = new LinkedHashSet<>();
+        if (purges != null) {
+            unsent.addAll(purges.terminate());
+            purges = null;
+        }
+        if (retries != null) {
+            retries.shutdownNow();
+            retries = null;
+        }
+        unsent.addAll(failedAttempts.keySet());
+        failedAttempts.clear();
+        return unsent;
+    }
+
+    /**
+     * Sends the given purges synchronously (without retries) and closes the HTTP client afterwards.
+     *
+     * @param urls Absolute cache invalidation request URLs
+     */
+    private void sendPurges(final Set<String> urls) {
+        for (final String url : urls) {
+            if (invalidateCacheKey(url)) {
+                sentPurges.incrementAndGet();
+            } else {
+                failedPurges.incrementAndGet();
+                log.error("Giving up PageSpeed invalidation request: '{}' on deactivation", url);
+            }
+        }
+
+        closeHttpClient();
+    }
+
+    private void closeHttpClient() {
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.warn("Could not close the PageSpeed invalidation HTTP client", e);
+            }
+            httpClient = null;
+        }
+    }
+
     @Reference
     @SuppressWarnings("unused")
     ResourceResolverFactory resourceResolverFactory;
@@ -134,13 +273,13 @@ public class ModPageSpeedCacheInvalidationService
         {
             // If an invalidation URL is specified in the OSGi config, use that URL for invalidation. This will
             // preserve backwards compatibility.
-            invalidateCacheKey(cacheInvalidationUrl);
+            queuePurge(cacheInvalidationUrl);
         } else {
             // If an invalidation URL is not specified in the OSGi config, attempt to lookup all the domains
             // associated with the replicated node/site.
             for (String siteInvalidationUrl : getSitesInvalidationUrls(resourceList))
             {
-                invalidateCacheKey(siteInvalidationUrl);
+                queuePurge(siteInvalidationUrl);
             }
         }
 
@@ -228,36 +367,150 @@ public class ModPageSpeedCacheInvalidationService
         return domains;
     }
 
+    /**
+     * Queues a purge of the given URL, purges of the same URL are coalesced until it is sent.
+     *
+     * @param url Absolute cache invalidation request URL
+     */
+    private void queuePurge(final String url)
+    {
+        final CoalescingScheduler<String> currentPurges = purges;
+        if (currentPurges != null) {
+            requestedPurges.incrementAndGet();
+            currentPurges.call(url);
+        }
+    }
+
+    private void purge(final Set<String> urls)
+    {
+        final CoalescingScheduler<String> currentPurges = purges;
+        if (currentPurges != null) {
+            log.debug("Purging {} PageSpeed cache keys, {} more waiting, lag {}ms", urls.size(),
+                    currentPurges.getQueueDepth(), currentPurges.getLastDispatchLag());
+        }
+        for (String url : urls)
+        {
+            if (invalidateCacheKey(url)) {
+                failedAttempts.remove(url);
+                sentPurges.incrementAndGet();
+            } else {
+                retryPurge(url);
+            }
+        }
+    }
+
+    private void retryPurge(final String url)
+    {
+        final int attempts = failedAttempts.merge(url, 1, Integer::sum);
+        if (attempts > purgeRetries) {
+            failedAttempts.remove(url);
+            failedPurges.incrementAndGet();
+            log.error("Giving up PageSpeed invalidation request: '{}' after {} attempts", url, attempts);
+            return;
+        }
+
+        final ScheduledExecutorService currentRetries = retries;
+        if (currentRetries == null) {
+            return;
+        }
+
+        final long delay = purgeRetryDelay << Math.min(attempts - 1, 20);
+        log.debug("Retrying PageSpeed invalidation request: '{}' in {}ms", url, delay);
+        try {
+            currentRetries.schedule(() -> {
+                final CoalescingScheduler<String> currentPurges = purges;
+                if (currentPurges != null) {
+                    currentPurges.call(url);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            retriedPurges.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            log.debug("Service stopped, not retrying: '{}'", url);
+        }
+    }
+
     /**
      * Issues an HTTP request to the PageSpeed cache invalidation endpoint.
      *
      * @param url Absolute cache invalidation request URL for a given page in Peregrine.
+     * @return <code>true</code> if the endpoint answered, <code>false</code> if the request failed or the endpoint
+     * answered with a server error and the request should be retried
      */
-    protected void invalidateCacheKey(final String url)
+    protected boolean invalidateCacheKey(final String url)
     {
-        RequestConfig config = RequestConfig.custom()
-                .setConnectTimeout(HTTP_CLIENT_TIMEOUT_SECONDS * 1000)
-                .setConnectionRequestTimeout(HTTP_CLIENT_TIMEOUT_SECONDS * 1000)
-                .setSocketTimeout(HTTP_CLIENT_TIMEOUT_SECONDS * 1000).build();
-        CloseableHttpClient httpClient =
-                HttpClientBuilder.create().setDefaultRequestConfig(config).build();
+        final CloseableHttpClient currentHttpClient = httpClient;
+        if (currentHttpClient == null) {
+            return false;
+        }
 
         HttpPurge httpPurge = new HttpPurge(url);
         try
         {
-            try (CloseableHttpResponse response = httpClient.execute(httpPurge)) {
+            try (CloseableHttpResponse response = currentHttpClient.execute(httpPurge)) {
                 log.info("PageSpeed cache invalidation request '{}' returned an '{}' response",
                         url, response.getStatusLine());
                 HttpEntity entity1 = response.getEntity();
                 EntityUtils.consume(entity1);
+                return response.getStatusLine().getStatusCode() < 500;
             }
 
         } catch (IOException e)
         {
             log.error("Error performing PageSpeed invalidation request: '{}'", url, e);
+            return false;
         }
     }
 
+    /**
+     * @return the number of purges that were queued, including the ones coalesced with an already queued purge
+     */
+    @Override
+    public long getRequestedPurges() {
+        return requestedPurges.get();
+    }
+
+    /**
+     * @return the number of purges the endpoint answered
+     */
+    @Override
+    public long getSentPurges() {
+        return sentPurges.get();
+    }
+
+    /**
+     * @return the number of retries of failed purges
+     */
+    @Override
+    public long getRetriedPurges() {
+        return retriedPurges.get();
+    }
+
+    /**
+     * @return the number of purges that were given up after all retries failed
+     */
+    @Override
+    public long getFailedPurges() {
+        return failedPurges.get();
+    }
+
+    /**
+     * @return the number of purges waiting to be sent
+     */
+    @Override
+    public int getPendingPurges() {
+        final CoalescingScheduler<String> currentPurges = purges;
+        return currentPurges == null ? 0 : currentPurges.getQueueDepth();
+    }
+
+    /**
+     * @return milliseconds between the first request and the sending of the most recently sent purge
+     */
+    @Override
+    public long getLastPurgeLag() {
+        final CoalescingScheduler<String> currentPurges = purges;
+        return currentPurges == null ? 0 : currentPurges.getLastDispatchLag();
+    }
+
     private static class HttpPurge extends HttpRequestBase
     {
         public HttpPurge(final String url)
@@ -164,7 +164,7 @@ public abstract class CacheBuilderBase<V, L extends CacheBuilder.RefreshListener
             String path = rootPagePath;
             while (isNotBlank(path)) {
                 if (isCached(resourceResolver, path)) {
-                    rebuildImpl(path);
+                    rebuildImpl(path, rootPagePath);
                 }
 
                 path = substringBeforeLast(path, SLASH);
@@ -206,6 +206,14 @@ public abstract class CacheBuilderBase<V, L extends CacheBuilder.RefreshListener
 
     protected abstract void rebuildImpl(final String rootPagePath);
 
+    /**
+     * Rebuilds the cache of the given root page after a change of the given path inside of it.
+     * By default the whole cache of the root page is rebuilt.
+     */
+    protected void rebuildImpl(final String rootPagePath, final String changedPath) {
+        rebuildImpl(rootPagePath);
+    }
+
     public final void build(final String path) {
         try (final ResourceResolver resourceResolver = createResourceResolver()) {
             cleanRemovedChildren(resourceResolver, path);
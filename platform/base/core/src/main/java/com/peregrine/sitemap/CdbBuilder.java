@@ -0,0 +1,145 @@
+package com.peregrine.sitemap;
+
+/*-
+ * #%L
+ * platform base - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds a constant database in D. J. Bernstein's cdb format: the records sorted by key followed by 256 open
+ * addressing hash tables, so a reader finds a key with at most two disk reads no matter how big the map is.
+ * All numbers are unsigned 32 bit little endian, which limits the file to 4 GB.
+ */
+public final class CdbBuilder {
+
+    private static final int TABLES_COUNT = 256;
+    private static final int HEADER_LENGTH = TABLES_COUNT * 8;
+    private static final long MAX_LENGTH = 0xffffffffL;
+
+    private final Map<String, String> records = new TreeMap<>();
+
+    /**
+     * Adds a record unless the key is there already, the first value wins just like in a text rewrite map.
+     */
+    public CdbBuilder put(final String key, final String value) {
+        records.putIfAbsent(key, value);
+        return this;
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    public static int hash(final byte[] key) {
+        int result = 5381;
+        for (final byte b : key) {
+            result = ((result << 5) + result) ^ (b & 0xff);
+        }
+
+        return result;
+    }
+
+    public byte[] toByteArray() {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try {
+            writeTo(result);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return result.toByteArray();
+    }
+
+    public void writeTo(final OutputStream target) throws IOException {
+        final List<List<long[]>> tables = new ArrayList<>(TABLES_COUNT);
+        for (int i = 0; i < TABLES_COUNT; i++) {
+            tables.add(new ArrayList<>());
+        }
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream bodyOut = new DataOutputStream(body);
+        long position = HEADER_LENGTH;
+        for (final Map.Entry<String, String> record : records.entrySet()) {
+            final byte[] key = record.getKey().getBytes(StandardCharsets.UTF_8);
+            final byte[] value = record.getValue().getBytes(StandardCharsets.UTF_8);
+            final int hash = hash(key);
+            tables.get(hash & 0xff).add(new long[] { hash & MAX_LENGTH, position });
+            writeInt(bodyOut, key.length);
+            writeInt(bodyOut, value.length);
+            bodyOut.write(key);
+            bodyOut.write(value);
+            position += 8L + key.length + value.length;
+        }
+
+        final ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_LENGTH);
+        final DataOutputStream headerOut = new DataOutputStream(header);
+        for (final List<long[]> table : tables) {
+            final int slotsCount = table.size() * 2;
+            final long[][] slots = new long[slotsCount][];
+            for (final long[] entry : table) {
+                int slot = (int) ((entry[0] >>> 8) % slotsCount);
+                while (slots[slot] != null) {
+                    slot = (slot + 1) % slotsCount;
+                }
+
+                slots[slot] = entry;
+            }
+
+            writeInt(headerOut, position);
+            writeInt(headerOut, slotsCount);
+            for (final long[] entry : slots) {
+                writeInt(bodyOut, entry == null ? 0 : entry[0]);
+                writeInt(bodyOut, entry == null ? 0 : entry[1]);
+            }
+
+            position += slotsCount * 8L;
+        }
+
+        if (position > MAX_LENGTH) {
+            throw new IOException("The cdb file would exceed 4 GB");
+        }
+
+        header.writeTo(target);
+        body.writeTo(target);
+        target.flush();
+    }
+
+    private static void writeInt(final DataOutputStream target, final long value) throws IOException {
+        target.write((int) value);
+        target.write((int) (value >>> 8));
+        target.write((int) (value >>> 16));
+        target.write((int) (value >>> 24));
+    }
+
+}
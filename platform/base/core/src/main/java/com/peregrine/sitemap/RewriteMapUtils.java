@@ -0,0 +1,88 @@
+package com.peregrine.sitemap;
+
+/*-
+ * #%L
+ * platform base - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static com.peregrine.commons.Strings.SLASH;
+
+/**
+ * Turns site map entries into Apache {@code RewriteMap}s that map the external url paths to the page paths.
+ */
+public final class RewriteMapUtils {
+
+    private static final String PROTOCOLS_DOUBLE_SLASH = ":" + SLASH + SLASH;
+
+    private RewriteMapUtils() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static String cutUrl(final String url) {
+        final StringBuilder result = new StringBuilder(SLASH);
+        String string = url;
+        if (StringUtils.contains(string, PROTOCOLS_DOUBLE_SLASH)) {
+            string = StringUtils.substringAfter(string, PROTOCOLS_DOUBLE_SLASH);
+        }
+
+        result.append(StringUtils.substringAfter(string, SLASH));
+        return result.toString();
+    }
+
+    public static String getTarget(final SiteMapEntry entry) {
+        return entry.getPath() + SiteMapConstants.DOT_HTML;
+    }
+
+    /**
+     * @return the {@code txt} map with one line per entry
+     */
+    public static byte[] toText(final List<SiteMapEntry> entries) {
+        final StringBuilder result = new StringBuilder();
+        for (final SiteMapEntry entry : entries) {
+            result.append(cutUrl(entry.getUrl()));
+            result.append(StringUtils.SPACE);
+            result.append(getTarget(entry));
+            result.append(StringUtils.LF);
+        }
+
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the hash indexed map in cdb format, see {@link CdbBuilder}
+     */
+    public static byte[] toCdb(final List<SiteMapEntry> entries) {
+        final CdbBuilder result = new CdbBuilder();
+        for (final SiteMapEntry entry : entries) {
+            result.put(cutUrl(entry.getUrl()), getTarget(entry));
+        }
+
+        return result.toByteArray();
+    }
+
+}
@@ -5,6 +5,7 @@ import com.peregrine.commons.Strings;
 public final class SiteMapConstants {
 
     public static final String TXT = "txt";
+    public static final String CDB = "cdb";
     public static final String XML = "xml";
     public static final String HTML = "html";
     public static final String DOT_HTML = Strings.DOT + HTML;
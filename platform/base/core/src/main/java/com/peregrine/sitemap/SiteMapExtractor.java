@@ -37,4 +37,15 @@ public interface SiteMapExtractor extends SiteMapUrlBuilder {
 
     List<SiteMapEntry> extract(Resource root);
 
+    /**
+     * @return the entry of the given page alone, without the entries of its children,
+     * or null if the page does not belong into the site map
+     */
+    SiteMapEntry extractEntry(Resource page);
+
+    /**
+     * @return true if {@link #extract(Resource)} descends into the children of the given page
+     */
+    boolean isBucket(Resource page);
+
 }
@@ -59,9 +59,7 @@ public abstract class SiteMapExtractorBase implements SiteMapExtractor {
     public List<SiteMapEntry> extract(final Resource resource) {
         final Page page = new Page(resource);
         final List<SiteMapEntry> result = new LinkedList<>();
-        Optional.ofNullable(page)
-                .filter(this::isPage)
-                .map(this::createEntry)
+        Optional.ofNullable(extractEntry(page))
                 .ifPresent(result::add);
         if (isBucket(page)) {
             StreamSupport.stream(resource.getChildren().spliterator(), false)
@@ -72,6 +70,23 @@ public abstract class SiteMapExtractorBase implements SiteMapExtractor {
         return result;
     }
 
+    @Override
+    public SiteMapEntry extractEntry(final Resource resource) {
+        return extractEntry(new Page(resource));
+    }
+
+    private SiteMapEntry extractEntry(final Page page) {
+        return Optional.ofNullable(page)
+                .filter(this::isPage)
+                .map(this::createEntry)
+                .orElse(null);
+    }
+
+    @Override
+    public boolean isBucket(final Resource resource) {
+        return isBucket(new Page(resource));
+    }
+
     private boolean isPage(final Page page) {
         return Optional.of(getConfiguration())
                 .map(SiteMapConfiguration::getPageRecognizer)
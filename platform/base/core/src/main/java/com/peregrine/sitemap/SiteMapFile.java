@@ -0,0 +1,154 @@
+package com.peregrine.sitemap;
+
+/*-
+ * #%L
+ * platform base - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A generated site map file as it is kept in the files cache: the gzipped xml, the hash of the
+ * uncompressed content (used as the entity tag) and the time the content last changed.
+ */
+public final class SiteMapFile {
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private final byte[] gzippedContent;
+    private final String hash;
+    private final long lastModified;
+
+    public SiteMapFile(final byte[] gzippedContent, final String hash, final long lastModified) {
+        this.gzippedContent = gzippedContent;
+        this.hash = hash;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Compresses and hashes the xml while it is being written, so the uncompressed document is never held in memory.
+     */
+    public static SiteMapFile compress(final ContentWriter content, final long lastModified) throws IOException {
+        final MessageDigest digest = createDigest();
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (final Writer writer = new OutputStreamWriter(
+                new DigestOutputStream(new GZIPOutputStream(buffer), digest), StandardCharsets.UTF_8)) {
+            content.write(writer);
+        }
+
+        return new SiteMapFile(buffer.toByteArray(), toHex(digest.digest()), lastModified);
+    }
+
+    public static SiteMapFile compress(final String content, final long lastModified) {
+        try {
+            return compress(writer -> writer.write(content), lastModified);
+        } catch (final IOException e) {
+            // in-memory streams do not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String hash(final String content) {
+        return toHex(createDigest().digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(final byte[] hash) {
+        final StringBuilder result = new StringBuilder(hash.length * 2);
+        for (final byte b : hash) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return result.toString();
+    }
+
+    public byte[] getGzippedContent() {
+        return gzippedContent;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public void writeContentTo(final OutputStream output) throws IOException {
+        try (final GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(gzippedContent))) {
+            IOUtils.copy(gzip, output);
+        }
+    }
+
+    public void writeContentTo(final Writer output) throws IOException {
+        try (final Reader reader = new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(gzippedContent)), StandardCharsets.UTF_8)) {
+            IOUtils.copy(reader, output);
+        }
+    }
+
+    public byte[] getContentBytes() {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(gzippedContent.length * 4);
+        try {
+            writeContentTo(buffer);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return buffer.toByteArray();
+    }
+
+    public String getContent() {
+        return new String(getContentBytes(), StandardCharsets.UTF_8);
+    }
+
+    public interface ContentWriter {
+
+        void write(Writer writer) throws IOException;
+
+    }
+
+}
@@ -27,6 +27,8 @@ package com.peregrine.sitemap;
 
 import org.apache.sling.api.resource.Resource;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -35,8 +37,13 @@ public interface SiteMapFileContentBuilder {
 
     String buildUrlSet(Collection<SiteMapEntry> entries, Map<String, String> xmlns);
 
+    void buildUrlSet(Collection<SiteMapEntry> entries, Map<String, String> xmlns, Writer writer) throws IOException;
+
     String buildSiteMapIndex(Resource siteMapRoot, SiteMapUrlBuilder urlBuilder, List<? extends List<SiteMapEntry>> splitEntries);
 
+    void buildSiteMapIndex(Resource siteMapRoot, SiteMapUrlBuilder urlBuilder, List<? extends List<SiteMapEntry>> splitEntries, Writer writer)
+            throws IOException;
+
     int getSize(SiteMapEntry entry);
 
     int getBaseSiteMapLength();
@@ -27,10 +27,12 @@ package com.peregrine.sitemap;
 
 import org.apache.sling.api.resource.Resource;
 
-public interface SiteMapFilesCache extends CacheBuilder<String[], SiteMapFilesCache.RefreshListener> {
+public interface SiteMapFilesCache extends CacheBuilder<SiteMapFile[], SiteMapFilesCache.RefreshListener> {
 
     String get(Resource rootPage, int index);
 
-    interface RefreshListener extends CacheBuilder.RefreshListener<String[]> { }
+    SiteMapFile getFile(Resource rootPage, int index);
+
+    interface RefreshListener extends CacheBuilder.RefreshListener<SiteMapFile[]> { }
 
 }
@@ -2,19 +2,45 @@ package com.peregrine.sitemap;
 
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Stack;
 
+/**
+ * Writes xml either into an internal buffer (see {@link #toString()}) or, when created with a {@link Writer},
+ * straight to that writer as the elements are added, so only the stack of open element names is kept in memory.
+ * I/O errors of the writer are rethrown as {@link UncheckedIOException}.
+ */
 public final class XMLBuilder {
 
     public static final String XML_VERSION = "<?xml version=\"1.0\" encoding=\"utf-8\"?>";
     private static final int SINGLE_ATTRIBUTE_SYMBOLS_LENGTH = " =\"\"".length();
     private static final int ELEMENT_SYMBOLS_LENGTH = "<></>".length();
+    private static final String EMPTY_ELEMENT_END = " />";
+
+    private final StringBuilder buffer;
+    private final Appendable output;
+    private final Deque<String> stack = new ArrayDeque<>();
+    private boolean startTagInProgress = false;
+    private long length = 0;
+
+    public XMLBuilder() {
+        buffer = new StringBuilder();
+        output = buffer;
+        append(XML_VERSION);
+    }
 
-    private final StringBuilder builder = new StringBuilder(XML_VERSION);
-    private final Stack<String> stack = new Stack<>();
-    private boolean emptyElementInProgress = false;
+    public XMLBuilder(final Writer writer) {
+        buffer = null;
+        output = writer;
+        append(XML_VERSION);
+    }
 
     public static int getAttributesLength(final Map<String, String> attributes) {
         int result = 0;
@@ -35,20 +61,37 @@ public final class XMLBuilder {
         return getBasicElementLength(name) + getAttributesLength(attributes);
     }
 
+    private void append(final CharSequence text) {
+        try {
+            output.append(text);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        length += text.length();
+    }
+
+    private void completeStartTag() {
+        if (startTagInProgress) {
+            append(">");
+            startTagInProgress = false;
+        }
+    }
+
     public XMLBuilder startElement(final String name, final Map<String, String> attributes) {
+        completeStartTag();
         stack.push(name);
-        builder.append("<");
-        builder.append(name);
+        append("<");
+        append(name);
         for (final Map.Entry<String, String> e : attributes.entrySet()) {
-            builder.append(" ");
-            builder.append(e.getKey());
-            builder.append("=\"");
-            builder.append(e.getValue());
-            builder.append("\"");
+            append(" ");
+            append(e.getKey());
+            append("=\"");
+            append(e.getValue());
+            append("\"");
         }
 
-        builder.append(">");
-        emptyElementInProgress = true;
+        startTagInProgress = true;
         return this;
     }
 
@@ -58,32 +101,23 @@ public final class XMLBuilder {
 
     public XMLBuilder endElement() {
         final String name = stack.pop();
-        if (emptyElementInProgress) {
-            emptyElementInProgress = false;
-            return endEmptyElement(builder);
+        if (startTagInProgress) {
+            startTagInProgress = false;
+            append(EMPTY_ELEMENT_END);
+        } else {
+            append("</");
+            append(name);
+            append(">");
         }
 
-        return endElement(builder, name);
-    }
-
-    private XMLBuilder endElement(final StringBuilder builder, final String name) {
-        builder.append("</");
-        builder.append(name);
-        builder.append(">");
-        return this;
-    }
-
-    private XMLBuilder endEmptyElement(final StringBuilder builder) {
-        final int length = builder.length();
-        builder.replace(length - 1, length, " />");
         return this;
     }
 
     public XMLBuilder addElement(final String name, final Map<String, String> attributes, final String text) {
         startElement(name, attributes);
         if (StringUtils.isNotEmpty(text)) {
-            builder.append(text);
-            emptyElementInProgress = false;
+            completeStartTag();
+            append(text);
         }
 
         return endElement();
@@ -101,17 +135,52 @@ public final class XMLBuilder {
         return addElement(name, (String)null);
     }
 
+    /**
+     * @return the number of characters written so far
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Ends all elements that are still open and flushes the underlying writer.
+     */
+    public XMLBuilder finish() {
+        while (!stack.isEmpty()) {
+            endElement();
+        }
+
+        if (output instanceof Flushable) {
+            try {
+                ((Flushable) output).flush();
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * @return the buffered document with all open elements ended, the buffer itself is left as it is
+     */
     @Override
     public String toString() {
-        final StringBuilder result = new StringBuilder(builder);
-        int start = stack.size() - 1;
-        if (start >= 0 && emptyElementInProgress) {
-            endEmptyElement(result);
-            start--;
+        if (buffer == null) {
+            return super.toString();
+        }
+
+        final StringBuilder result = new StringBuilder(buffer);
+        final Iterator<String> names = stack.iterator();
+        if (names.hasNext() && startTagInProgress) {
+            names.next();
+            result.append(EMPTY_ELEMENT_END);
         }
 
-        for (int i = start; i >= 0 ; i--) {
-            endElement(result, stack.get(i));
+        while (names.hasNext()) {
+            result.append("</");
+            result.append(names.next());
+            result.append(">");
         }
 
         return result.toString();
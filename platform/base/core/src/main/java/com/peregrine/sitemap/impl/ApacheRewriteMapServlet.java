@@ -25,6 +25,7 @@ package com.peregrine.sitemap.impl;
  * #L%
  */
 
+import com.peregrine.sitemap.RewriteMapUtils;
 import com.peregrine.sitemap.SiteMapConstants;
 import com.peregrine.sitemap.SiteMapEntry;
 import com.peregrine.sitemap.SiteMapStructureCache;
@@ -33,15 +34,20 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.peregrine.commons.Strings.DOT;
 import static com.peregrine.commons.util.PerConstants.*;
 import static com.peregrine.commons.util.PerUtil.*;
 import static java.util.Objects.isNull;
@@ -49,6 +55,10 @@ import static org.apache.sling.api.servlets.ServletResolverConstants.*;
 import static org.osgi.framework.Constants.SERVICE_DESCRIPTION;
 import static org.osgi.framework.Constants.SERVICE_VENDOR;
 
+/**
+ * Serves the Apache {@code RewriteMap} of a root page, either as a {@code txt} map or as a hash indexed
+ * {@code cdb} map. The generated maps are kept in memory until the site map structure of the root page is refreshed.
+ */
 @SuppressWarnings("serial")
 @Component(
     service = Servlet.class,
@@ -58,49 +68,71 @@ import static org.osgi.framework.Constants.SERVICE_VENDOR;
         SLING_SERVLET_METHODS + EQUALS + GET,
         SLING_SERVLET_RESOURCE_TYPES + EQUALS + SLING_SERVLET_DEFAULT,
         SLING_SERVLET_SELECTORS + EQUALS + SiteMapConstants.SITE_MAP,
-        SLING_SERVLET_EXTENSIONS + EQUALS + SiteMapConstants.TXT
+        SLING_SERVLET_EXTENSIONS + EQUALS + SiteMapConstants.TXT,
+        SLING_SERVLET_EXTENSIONS + EQUALS + SiteMapConstants.CDB
     }
 )
-public final class ApacheRewriteMapServlet extends SlingAllMethodsServlet {
-
-    private static final String PROTOCOLS_DOUBLE_SLASH = ":" + SLASH + SLASH;
+public final class ApacheRewriteMapServlet extends SlingAllMethodsServlet implements SiteMapStructureCache.RefreshListener {
 
     @Reference
     private SiteMapStructureCache structure;
 
+    private final Map<String, byte[]> cache = new ConcurrentHashMap<>();
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    @Activate
+    public void activate() {
+        structure.addRefreshListener(this);
+    }
+
+    @Deactivate
+    public void deactivate() {
+        structure.removeRefreshListener(this);
+        cache.clear();
+    }
+
     @Override
-    protected void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response) throws IOException {
-        final Resource resource = request.getResource();
-        final List<SiteMapEntry> entries = structure.get(resource);
-        if (isNull(entries)) {
-            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-            return;
-        }
+    public void onCacheRefreshed(final Resource rootPage, final List<SiteMapEntry> entries) {
+        refreshCount.incrementAndGet();
+        final String path = rootPage.getPath();
+        cache.remove(getCacheKey(path, SiteMapConstants.TXT));
+        cache.remove(getCacheKey(path, SiteMapConstants.CDB));
+    }
 
-        response.setContentType(TEXT_MIME_TYPE);
-        response.setCharacterEncoding(UTF_8);
-        writeRewriteMap(entries, response.getWriter());
+    private static String getCacheKey(final String path, final String extension) {
+        return path + DOT + extension;
     }
 
-    private void writeRewriteMap(final List<SiteMapEntry> entries, final PrintWriter target) {
-        for (final SiteMapEntry entry : entries) {
-            target.append(cutUrl(entry.getUrl()));
-            target.append(StringUtils.SPACE);
-            target.append(entry.getPath());
-            target.append(SiteMapConstants.DOT_HTML);
-            target.append(StringUtils.LF);
+    @Override
+    protected void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response) throws IOException {
+        final Resource resource = request.getResource();
+        final boolean cdb = StringUtils.equals(request.getRequestPathInfo().getExtension(), SiteMapConstants.CDB);
+        final String key = getCacheKey(resource.getPath(), cdb ? SiteMapConstants.CDB : SiteMapConstants.TXT);
+        byte[] content = cache.get(key);
+        if (isNull(content)) {
+            final long refreshCountBefore = refreshCount.get();
+            final List<SiteMapEntry> entries = structure.get(resource);
+            if (isNull(entries)) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+
+            content = cdb ? RewriteMapUtils.toCdb(entries) : RewriteMapUtils.toText(entries);
+            // a refresh in the meantime might have happened after the entries were read
+            if (refreshCount.get() == refreshCountBefore) {
+                cache.put(key, content);
+            }
         }
-    }
 
-    private String cutUrl(final String url) {
-        final StringBuilder result = new StringBuilder(SLASH);
-        String string = url;
-        if (StringUtils.contains(string, PROTOCOLS_DOUBLE_SLASH)) {
-            string = StringUtils.substringAfter(string, PROTOCOLS_DOUBLE_SLASH);
+        if (cdb) {
+            response.setContentType(BINARY_MIME_TYPE);
+        } else {
+            response.setContentType(TEXT_MIME_TYPE);
+            response.setCharacterEncoding(UTF_8);
         }
 
-        result.append(StringUtils.substringAfter(string, SLASH));
-        return result.toString();
+        response.setContentLength(content.length);
+        response.getOutputStream().write(content);
     }
 
 }
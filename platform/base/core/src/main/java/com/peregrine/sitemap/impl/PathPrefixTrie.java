@@ -0,0 +1,143 @@
+package com.peregrine.sitemap.impl;
+
+/*-
+ * #%L
+ * platform base - Core
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.peregrine.commons.util.PerConstants.SLASH;
+import static java.util.Objects.nonNull;
+
+/**
+ * A set of path prefixes compiled into a tree of path segments, so that a path is looked up in one walk
+ * along its segments no matter how many prefixes there are. A {@code *} segment matches any single segment.
+ */
+public final class PathPrefixTrie {
+
+    public static final String WILDCARD = "*";
+
+    private final Node root = new Node();
+    private boolean empty = true;
+
+    public PathPrefixTrie(final Collection<String> prefixes) {
+        for (final String prefix : prefixes) {
+            if (StringUtils.isNotBlank(prefix)) {
+                add(prefix);
+            }
+        }
+    }
+
+    private void add(final String prefix) {
+        Node node = root;
+        for (final String segment : StringUtils.split(prefix, SLASH)) {
+            node = node.children.computeIfAbsent(segment, s -> new Node());
+        }
+
+        node.terminal = true;
+        empty = false;
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @return True if one of the prefixes is the given path or one of its ancestors
+     */
+    public boolean containsPrefixOf(final String path) {
+        if (root.terminal) {
+            return true;
+        }
+
+        Collection<Node> nodes = Collections.singletonList(root);
+        for (final String segment : StringUtils.split(path, SLASH)) {
+            nodes = step(nodes, segment);
+            if (nodes.isEmpty()) {
+                return false;
+            }
+
+            for (final Node node : nodes) {
+                if (node.terminal) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return True if one of the prefixes lies below the given path
+     */
+    public boolean containsPrefixBelow(final String path) {
+        Collection<Node> nodes = Collections.singletonList(root);
+        for (final String segment : StringUtils.split(path, SLASH)) {
+            nodes = step(nodes, segment);
+            if (nodes.isEmpty()) {
+                return false;
+            }
+        }
+
+        for (final Node node : nodes) {
+            if (!node.children.isEmpty()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static Collection<Node> step(final Collection<Node> nodes, final String segment) {
+        final List<Node> result = new ArrayList<>();
+        for (final Node node : nodes) {
+            final Node exact = node.children.get(segment);
+            if (nonNull(exact)) {
+                result.add(exact);
+            }
+
+            final Node wildcard = node.children.get(WILDCARD);
+            if (nonNull(wildcard) && wildcard != exact) {
+                result.add(wildcard);
+            }
+        }
+
+        return result;
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+        private boolean terminal = false;
+
+    }
+
+}
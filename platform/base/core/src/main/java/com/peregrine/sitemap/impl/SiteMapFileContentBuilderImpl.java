@@ -34,6 +34,9 @@ import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.metatype.annotations.Designate;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -78,6 +81,22 @@ public final class SiteMapFileContentBuilderImpl implements SiteMapFileContentBu
     @Override
     public String buildSiteMapIndex(final Resource root, final SiteMapUrlBuilder urlBuilder, final List<? extends List<SiteMapEntry>> splitEntries) {
         final XMLBuilder result = new XMLBuilder();
+        buildSiteMapIndex(root, urlBuilder, splitEntries, result);
+        return result.toString();
+    }
+
+    @Override
+    public void buildSiteMapIndex(final Resource root, final SiteMapUrlBuilder urlBuilder,
+                                  final List<? extends List<SiteMapEntry>> splitEntries, final Writer writer) throws IOException {
+        try {
+            buildSiteMapIndex(root, urlBuilder, splitEntries, new XMLBuilder(writer)).finish();
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private XMLBuilder buildSiteMapIndex(final Resource root, final SiteMapUrlBuilder urlBuilder,
+                                         final List<? extends List<SiteMapEntry>> splitEntries, final XMLBuilder result) {
         result.startElement(SITE_MAP_INDEX, SITE_MAP_INDEX_ATTRIBUTES);
         int part = 1;
         for (final List<SiteMapEntry> entries : splitEntries) {
@@ -92,8 +111,7 @@ public final class SiteMapFileContentBuilderImpl implements SiteMapFileContentBu
             result.endElement();
         }
 
-        result.endElement();
-        return result.toString();
+        return result.endElement();
     }
 
     private String getLastModified(final List<SiteMapEntry> source) {
@@ -129,6 +147,21 @@ public final class SiteMapFileContentBuilderImpl implements SiteMapFileContentBu
     @Override
     public String buildUrlSet(final Collection<SiteMapEntry> entries, final Map<String, String> xmlns) {
         final XMLBuilder result = new XMLBuilder();
+        buildUrlSet(entries, xmlns, result);
+        return result.toString();
+    }
+
+    @Override
+    public void buildUrlSet(final Collection<SiteMapEntry> entries, final Map<String, String> xmlns, final Writer writer)
+            throws IOException {
+        try {
+            buildUrlSet(entries, xmlns, new XMLBuilder(writer)).finish();
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private XMLBuilder buildUrlSet(final Collection<SiteMapEntry> entries, final Map<String, String> xmlns, final XMLBuilder result) {
         final Map<String, String> attributes = new HashMap<>(urlSetAttributes);
         attributes.putAll(xmlns);
         result.startElement(URL_SET, attributes);
@@ -138,8 +171,7 @@ public final class SiteMapFileContentBuilderImpl implements SiteMapFileContentBu
             }
         }
 
-        result.endElement();
-        return result.toString();
+        return result.endElement();
     }
 
     private static final class SiteMapEntrySizeVisitor implements SiteMapEntry.Visitor<Integer> {
@@ -28,26 +28,33 @@ package com.peregrine.sitemap.impl;
 import com.peregrine.commons.ResourceUtils;
 import com.peregrine.sitemap.*;
 import com.peregrine.versions.VersioningResourceResolver;
+import org.apache.commons.io.IOUtils;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ModifiableValueMap;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.metatype.annotations.Designate;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 
 import static java.util.Objects.isNull;
 
 @Component(service = SiteMapFilesCache.class)
 @Designate(ocd = SiteMapFilesCacheImplConfig.class)
-public final class SiteMapFilesCacheImpl extends CacheBuilderBase<String[], SiteMapFilesCache.RefreshListener>
+public final class SiteMapFilesCacheImpl extends CacheBuilderBase<SiteMapFile[], SiteMapFilesCache.RefreshListener>
         implements SiteMapFilesCache, SiteMapStructureCache.RefreshListener {
 
     private static final String MAIN_SITE_MAP_KEY = Integer.toString(0);
+    private static final String HASH_SUFFIX = "_sha256";
+    private static final String LAST_MODIFIED_SUFFIX = "_lastModified";
 
     @Reference
     private VersioningResourceResolverFactory resourceResolverFactory;
@@ -90,6 +97,13 @@ public final class SiteMapFilesCacheImpl extends CacheBuilderBase<String[], Site
 
     @Override
     public String get(final Resource rootPage, final int index) {
+        return Optional.ofNullable(getFile(rootPage, index))
+                .map(SiteMapFile::getContent)
+                .orElse(null);
+    }
+
+    @Override
+    public SiteMapFile getFile(final Resource rootPage, final int index) {
         final String key = Integer.toString(index);
         try (final VersioningResourceResolver resourceResolver = createResourceResolver()) {
             return Optional.ofNullable(rootPage)
@@ -97,7 +111,7 @@ public final class SiteMapFilesCacheImpl extends CacheBuilderBase<String[], Site
                     .filter(ResourceUtils::exists)
                     .map(r -> getCache(resourceResolver, r))
                     .map(Resource::getValueMap)
-                    .map(props -> props.get(key, String.class))
+                    .map(props -> readFile(props, key))
                     .orElse(null);
         } catch (final LoginException e) {
             logger.error(COULD_NOT_GET_SERVICE_RESOURCE_RESOLVER, e);
@@ -105,6 +119,29 @@ public final class SiteMapFilesCacheImpl extends CacheBuilderBase<String[], Site
         }
     }
 
+    private SiteMapFile readFile(final ValueMap props, final String key) {
+        final Calendar lastModified = props.get(key + LAST_MODIFIED_SUFFIX, Calendar.class);
+        final long lastModifiedMillis = isNull(lastModified) ? -1 : lastModified.getTimeInMillis();
+        final String hash = props.get(key + HASH_SUFFIX, String.class);
+        if (isNull(hash)) {
+            // plain xml left behind by versions that did not compress the files yet
+            return Optional.ofNullable(props.get(key, String.class))
+                    .map(content -> SiteMapFile.compress(content, lastModifiedMillis))
+                    .orElse(null);
+        }
+
+        try (final InputStream gzippedContent = props.get(key, InputStream.class)) {
+            if (isNull(gzippedContent)) {
+                return null;
+            }
+
+            return new SiteMapFile(IOUtils.toByteArray(gzippedContent), hash, lastModifiedMillis);
+        } catch (final IOException e) {
+            logger.error("Could not read the site map file '{}' from the cache", key, e);
+            return null;
+        }
+    }
+
     @Override
     protected VersioningResourceResolver createResourceResolver() throws LoginException {
         return resourceResolverFactory.createResourceResolver();
@@ -129,50 +166,73 @@ public final class SiteMapFilesCacheImpl extends CacheBuilderBase<String[], Site
         if (isNull(entries) || isNull(extractor)) {
             final ModifiableValueMap modifiableValueMap = cache.adaptTo(ModifiableValueMap.class);
             final int previousItemsCount = removeCachedItemsAboveIndex(modifiableValueMap, 0);
-            notifyCacheRefreshed(rootPage, new String[previousItemsCount]);
+            notifyCacheRefreshed(rootPage, new SiteMapFile[previousItemsCount]);
             return null;
         }
 
-        final ArrayList<String> siteMaps = new ArrayList<>();
+        final ArrayList<SiteMapFile> siteMaps = new ArrayList<>();
         final LinkedList<List<SiteMapEntry>> splitEntries = splitEntries(entries);
+        final long now = System.currentTimeMillis();
+        try {
+            if (splitEntries.size() > 1) {
+                siteMaps.add(SiteMapFile.compress(writer ->
+                        siteMapBuilder.buildSiteMapIndex(rootPage, extractor, splitEntries, writer), now));
+            }
 
-        if (splitEntries.size() > 1) {
-            siteMaps.add(siteMapBuilder.buildSiteMapIndex(rootPage, extractor, splitEntries));
-        }
-
-        for (final List<SiteMapEntry> list : splitEntries) {
-            final SiteMapConfiguration config = extractor.getConfiguration();
-            final String content = siteMapBuilder.buildUrlSet(list, config.getXmlNamespaces());
-            siteMaps.add(content);
+            for (final List<SiteMapEntry> list : splitEntries) {
+                final SiteMapConfiguration config = extractor.getConfiguration();
+                siteMaps.add(SiteMapFile.compress(writer ->
+                        siteMapBuilder.buildUrlSet(list, config.getXmlNamespaces(), writer), now));
+            }
+        } catch (final IOException e) {
+            logger.error("Could not build the site maps of {}", rootPage.getPath(), e);
+            return null;
         }
 
         final int previousItemsCount = putSiteMapsInCache(siteMaps, cache);
-        notifyCacheRefreshed(rootPage, siteMaps.toArray(new String[previousItemsCount]));
+        notifyCacheRefreshed(rootPage, siteMaps.toArray(new SiteMapFile[previousItemsCount]));
         return cache;
     }
 
-    private int putSiteMapsInCache(final ArrayList<String> source, final Resource target) {
+    private int putSiteMapsInCache(final ArrayList<SiteMapFile> source, final Resource target) {
         final ModifiableValueMap modifiableValueMap = target.adaptTo(ModifiableValueMap.class);
         final int siteMapsSize = source.size();
         for (int i = 0; i < siteMapsSize; i++) {
-            modifiableValueMap.put(Integer.toString(i), source.get(i));
+            putSiteMapInCache(modifiableValueMap, Integer.toString(i), source.get(i));
         }
 
         return removeCachedItemsAboveIndex(modifiableValueMap, siteMapsSize);
     }
 
+    private void putSiteMapInCache(final ModifiableValueMap modifiableValueMap, final String key, final SiteMapFile file) {
+        final String hashKey = key + HASH_SUFFIX;
+        final String hash = file.getHash();
+        if (modifiableValueMap.containsKey(key) && hash.equals(modifiableValueMap.get(hashKey, String.class))) {
+            // keep the stored binary and its modification date so that crawlers can revalidate
+            return;
+        }
+
+        final Calendar lastModified = Calendar.getInstance();
+        lastModified.setTimeInMillis(file.getLastModified());
+        modifiableValueMap.put(key, new ByteArrayInputStream(file.getGzippedContent()));
+        modifiableValueMap.put(hashKey, hash);
+        modifiableValueMap.put(key + LAST_MODIFIED_SUFFIX, lastModified);
+    }
+
     private int removeCachedItemsAboveIndex(final ModifiableValueMap modifiableValueMap, final int indexOfStartItem) {
         int result = indexOfStartItem;
         String key = Integer.toString(result);
         while (modifiableValueMap.containsKey(key)) {
             modifiableValueMap.remove(key);
+            modifiableValueMap.remove(key + HASH_SUFFIX);
+            modifiableValueMap.remove(key + LAST_MODIFIED_SUFFIX);
             key = Integer.toString(++result);
         }
 
         return result;
     }
 
-    private LinkedList<List<SiteMapEntry>> splitEntries(final Collection<SiteMapEntry> entries) {
+    LinkedList<List<SiteMapEntry>> splitEntries(final Collection<SiteMapEntry> entries) {
         final int baseSiteMapLength = siteMapBuilder.getBaseSiteMapLength();
         final LinkedList<List<SiteMapEntry>> result = new LinkedList<>();
         int index = 0;
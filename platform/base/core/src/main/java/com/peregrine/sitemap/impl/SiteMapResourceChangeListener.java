@@ -25,15 +25,31 @@ package com.peregrine.sitemap.impl;
  * #L%
  */
 
+import com.peregrine.commons.concurrent.CoalescingScheduler;
+import com.peregrine.sitemap.SiteMapConfiguration;
+import com.peregrine.sitemap.SiteMapConfigurationsContainer;
 import org.apache.sling.api.resource.observation.ResourceChange;
 import org.apache.sling.api.resource.observation.ResourceChangeListener;
 import org.apache.sling.event.jobs.JobManager;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.metatype.annotations.Designate;
 
 import java.util.*;
 
+import static com.peregrine.commons.util.PerConstants.SLASH;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.apache.commons.lang3.StringUtils.substringBeforeLast;
+
+/**
+ * Drops the changes that cannot affect any site map (outside of the site map roots or inside of excluded paths),
+ * collapses the remaining ones into their topmost changed ancestors and collects them for a short while,
+ * so that bulk changes end up in a few jobs instead of one per observation event.
+ */
 @Component(service = ResourceChangeListener.class, immediate = true)
 @Designate(ocd = SiteMapResourceChangeListenerConfig.class)
 public final class SiteMapResourceChangeListener implements ResourceChangeListener {
@@ -41,16 +57,101 @@ public final class SiteMapResourceChangeListener implements ResourceChangeListen
     @Reference
     private JobManager jobManager;
 
+    @Reference
+    private SiteMapConfigurationsContainer siteMapConfigurationsContainer;
+
+    private final Set<String> rootPaths = new HashSet<>();
+    private PathPrefixTrie excludedPaths = new PathPrefixTrie(Collections.emptySet());
+    private volatile Set<String> mandatoryCachedPaths = Collections.emptySet();
+    private volatile PathPrefixTrie roots = new PathPrefixTrie(Collections.emptySet());
+    private CoalescingScheduler<String> scheduler;
+
+    @Activate
+    public void activate(final SiteMapResourceChangeListenerConfig config) {
+        rootPaths.clear();
+        rootPaths.addAll(Arrays.asList(config.rootPaths()));
+        excludedPaths = new PathPrefixTrie(Arrays.asList(config.excludedPaths()));
+        mandatoryCachedPaths = Collections.emptySet();
+        roots = new PathPrefixTrie(rootPaths);
+        scheduler = new CoalescingScheduler<>(this::addJob, config.coalesceInterval(), config.maxDelay());
+    }
+
+    @Deactivate
+    public void deactivate() {
+        // hand over what is still waiting rather than losing it
+        addJob(scheduler.terminate());
+    }
+
     @Override
     public void onChange(final List<ResourceChange> changes) {
+        final PathPrefixTrie roots = getRoots();
         final Set<String> paths = new HashSet<>();
         for (final ResourceChange change: changes) {
-            paths.add(change.getPath());
+            final String path = change.getPath();
+            if (isRelevant(roots, path)) {
+                paths.add(path);
+            }
+        }
+
+        for (final String path : removeDescendants(paths)) {
+            scheduler.call(path);
+        }
+    }
+
+    private boolean isRelevant(final PathPrefixTrie roots, final String path) {
+        if (excludedPaths.containsPrefixOf(path)) {
+            return false;
+        }
+
+        // changes of the ancestors of a root (e.g. a removal) affect the root as well
+        return roots.isEmpty() || roots.containsPrefixOf(path) || roots.containsPrefixBelow(path);
+    }
+
+    private PathPrefixTrie getRoots() {
+        final Set<String> mandatoryCachedPaths = new HashSet<>();
+        for (final SiteMapConfiguration config : siteMapConfigurationsContainer.getAll()) {
+            mandatoryCachedPaths.addAll(config.getMandatoryCachedPaths());
+        }
+
+        if (!mandatoryCachedPaths.equals(this.mandatoryCachedPaths)) {
+            final Set<String> prefixes = new HashSet<>(rootPaths);
+            prefixes.addAll(mandatoryCachedPaths);
+            roots = new PathPrefixTrie(prefixes);
+            this.mandatoryCachedPaths = mandatoryCachedPaths;
+        }
+
+        return roots;
+    }
+
+    /**
+     * A rebuild for a path covers its whole subtree, so the changes below other changed paths can be dropped.
+     */
+    static Set<String> removeDescendants(final Collection<String> paths) {
+        final Set<String> all = new HashSet<>(paths);
+        final Set<String> result = new TreeSet<>();
+        for (final String path : all) {
+            String ancestor = substringBeforeLast(path, SLASH);
+            while (isNotBlank(ancestor) && !all.contains(ancestor)) {
+                ancestor = substringBeforeLast(ancestor, SLASH);
+            }
+
+            if (isBlank(ancestor)) {
+                result.add(path);
+            }
+        }
+
+        return result;
+    }
+
+    private void addJob(final Set<String> paths) {
+        final Set<String> topmostPaths = removeDescendants(paths);
+        if (topmostPaths.isEmpty()) {
+            return;
         }
 
         final Map<String, Object> props = new HashMap<>();
-        props.put(SiteMapResourceChangeJobConsumer.PN_PATHS, paths);
+        props.put(SiteMapResourceChangeJobConsumer.PN_PATHS, new HashSet<>(topmostPaths));
         jobManager.addJob(SiteMapResourceChangeJobConsumer.TOPIC, props);
     }
 
-}
\ No newline at end of file
+}
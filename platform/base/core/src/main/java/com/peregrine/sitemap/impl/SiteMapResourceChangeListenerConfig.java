@@ -37,4 +37,16 @@ public @interface SiteMapResourceChangeListenerConfig {
     @AttributeDefinition(name = "%changes.name", description = "%changes.description")
     String[] resource_change_types() default { "ADDED", "CHANGED", "REMOVED" };
 
+    @AttributeDefinition(name = "%rootPaths.name", description = "%rootPaths.description")
+    String[] rootPaths() default "/content/*/pages";
+
+    @AttributeDefinition(name = "%excludedPaths.name", description = "%excludedPaths.description")
+    String[] excludedPaths() default { "/content/*/assets", "/content/*/objects", "/content/*/object-definitions" };
+
+    @AttributeDefinition(name = "%coalesceInterval.name", description = "%coalesceInterval.description")
+    int coalesceInterval() default 5_000;
+
+    @AttributeDefinition(name = "%maxDelay.name", description = "%maxDelay.description")
+    int maxDelay() default 30_000;
+
 }
@@ -27,6 +27,7 @@ package com.peregrine.sitemap.impl;
 
 import com.peregrine.commons.util.PerConstants;
 import com.peregrine.sitemap.SiteMapConstants;
+import com.peregrine.sitemap.SiteMapFile;
 import com.peregrine.sitemap.SiteMapFilesCache;
 import com.peregrine.sitemap.SiteMapUrlBuilder;
 import org.apache.sling.api.SlingHttpServletRequest;
@@ -39,9 +40,12 @@ import org.osgi.service.component.annotations.Reference;
 import javax.servlet.Servlet;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Arrays;
 
 import static com.peregrine.commons.util.PerUtil.*;
+import static java.util.Objects.isNull;
 import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.startsWithIgnoreCase;
 import static org.apache.sling.api.servlets.ServletResolverConstants.*;
 import static org.osgi.framework.Constants.SERVICE_DESCRIPTION;
 import static org.osgi.framework.Constants.SERVICE_VENDOR;
@@ -60,6 +64,20 @@ import static org.osgi.framework.Constants.SERVICE_VENDOR;
 @SuppressWarnings("serial")
 public final class SiteMapServlet extends SlingAllMethodsServlet {
 
+    private static final String GZIP = "gzip";
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String VARY = "Vary";
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String WEAK_ETAG_PREFIX = "W/";
+    private static final String ANY_ETAG = "*";
+    private static final String ANY_ENCODING = "*";
+    private static final String QUALITY_PARAMETER = "q=";
+    private static final String GZIP_ETAG_SUFFIX = "-gzip";
+
     @Reference
     private SiteMapUrlBuilder urlBuilder;
 
@@ -70,15 +88,103 @@ public final class SiteMapServlet extends SlingAllMethodsServlet {
     protected void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response) throws IOException {
         final Resource resource = request.getResource();
         final int index = urlBuilder.getIndex(request);
-        final String string = index >= 0 ? cache.get(resource, index) : null;
-        if (isBlank(string)) {
+        final SiteMapFile file = index >= 0 ? cache.getFile(resource, index) : null;
+        if (isNull(file)) {
             response.setStatus(HttpServletResponse.SC_NOT_FOUND);
             return;
         }
 
+        // The gzipped body is a different representation and so needs its own strong ETag
+        final boolean gzip = acceptsGzip(request.getHeader(ACCEPT_ENCODING));
+        final String eTag = "\"" + file.getHash() + (gzip ? GZIP_ETAG_SUFFIX : "") + "\"";
+        final long lastModified = file.getLastModified();
+        response.setHeader(ETAG, eTag);
+        if (lastModified > 0) {
+            response.setDateHeader(LAST_MODIFIED, lastModified);
+        }
+
+        response.setHeader(VARY, ACCEPT_ENCODING);
+        if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
         response.setContentType(PerConstants.XML_MIME_TYPE);
         response.setCharacterEncoding(PerConstants.UTF_8);
-        response.getWriter().write(string);
+        if (gzip) {
+            final byte[] gzippedContent = file.getGzippedContent();
+            response.setHeader(CONTENT_ENCODING, GZIP);
+            response.setContentLength(gzippedContent.length);
+            response.getOutputStream().write(gzippedContent);
+        } else {
+            file.writeContentTo(response.getWriter());
+        }
+    }
+
+    /**
+     * Checks the Accept-Encoding header of the request, see RFC 7231 section 5.3.4
+     * @return True if gzip is accepted with a quality value above 0, either by name or by the wildcard
+     */
+    static boolean acceptsGzip(final String acceptEncoding) {
+        if (isBlank(acceptEncoding)) {
+            return false;
+        }
+
+        Double gzipQuality = null;
+        Double anyQuality = null;
+        for (final String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.split(";");
+            final String name = parts[0].trim();
+            final double quality = getQuality(parts);
+            if (GZIP.equalsIgnoreCase(name)) {
+                gzipQuality = quality;
+            } else if (ANY_ENCODING.equals(name)) {
+                anyQuality = quality;
+            }
+        }
+
+        final Double quality = isNull(gzipQuality) ? anyQuality : gzipQuality;
+        return !isNull(quality) && quality > 0;
+    }
+
+    private static double getQuality(final String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            final String parameter = parameters[i].trim();
+            if (startsWithIgnoreCase(parameter, QUALITY_PARAMETER)) {
+                try {
+                    return Double.parseDouble(parameter.substring(QUALITY_PARAMETER.length()).trim());
+                } catch (final NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+
+        return 1;
+    }
+
+    private static boolean isNotModified(final SlingHttpServletRequest request, final String eTag, final long lastModified) {
+        final String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+        if (!isBlank(ifNoneMatch)) {
+            // If-None-Match takes precedence over If-Modified-Since, see RFC 7232 section 6
+            return Arrays.stream(ifNoneMatch.split(","))
+                    .map(String::trim)
+                    .map(tag -> tag.startsWith(WEAK_ETAG_PREFIX) ? tag.substring(WEAK_ETAG_PREFIX.length()) : tag)
+                    .anyMatch(tag -> ANY_ETAG.equals(tag) || eTag.equals(tag));
+        }
+
+        if (lastModified <= 0) {
+            return false;
+        }
+
+        final long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader(IF_MODIFIED_SINCE);
+        } catch (final IllegalArgumentException e) {
+            return false;
+        }
+
+        // http dates have a resolution of seconds
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
     }
 
 }
@@ -25,10 +25,11 @@ package com.peregrine.sitemap.impl;
  * #L%
  */
 
-import com.peregrine.commons.concurrent.Callback;
-import com.peregrine.commons.concurrent.DeBouncer;
+import com.peregrine.commons.concurrent.CoalescingScheduler;
 import com.peregrine.sitemap.*;
 import com.peregrine.versions.VersioningResourceResolver;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.sling.api.resource.*;
 import org.apache.sling.serviceusermapping.ServiceUserMapped;
 import org.osgi.service.component.annotations.Activate;
@@ -37,7 +38,17 @@ import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.metatype.annotations.Designate;
 
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static com.peregrine.commons.ResourceUtils.fileNameToJcrName;
 import static com.peregrine.commons.ResourceUtils.jcrNameToFileName;
@@ -49,11 +60,36 @@ import static org.apache.commons.lang3.StringUtils.substringBeforeLast;
 @Component(service = SiteMapStructureCache.class, immediate = true)
 @Designate(ocd = SiteMapStructureCacheImplConfig.class)
 public final class SiteMapStructureCacheImpl extends CacheBuilderBase<List<SiteMapEntry>, SiteMapStructureCache.RefreshListener>
-        implements SiteMapStructureCache, Callback<String>, SiteMapEntry.Visitor<Resource> {
+        implements SiteMapStructureCache, SiteMapEntry.Visitor<Resource> {
 
     private static final String SLASH_JCR_CONTENT = SLASH + JCR_CONTENT;
     public static final String NN_FIRST_CACHE_NODE = "0";
 
+    /** Turns an entry into nested maps of the string values that are stored in the cache nodes **/
+    private static final SiteMapEntry.Visitor<ComparableForm> COMPARABLE_FORM = new SiteMapEntry.Visitor<ComparableForm>() {
+
+        @Override
+        public ComparableForm visit(final String mapName, final Map<String, String> properties, final ComparableForm parent) {
+            final ComparableForm result = new ComparableForm(parent);
+            result.values.putAll(properties);
+            if (nonNull(parent)) {
+                parent.values.put(mapName, result.values);
+            }
+
+            return result;
+        }
+
+        @Override
+        public ComparableForm visit(final String propertyName, final String propertyValue, final ComparableForm form) {
+            return form;
+        }
+
+        @Override
+        public ComparableForm endVisit(final String mapName, final ComparableForm form) {
+            return isNull(form.parent) ? form : form.parent;
+        }
+    };
+
     @Reference
     private VersioningResourceResolverFactory resourceResolverFactory;
 
@@ -67,18 +103,40 @@ public final class SiteMapStructureCacheImpl extends CacheBuilderBase<List<SiteM
     @Reference(target = "(subServiceName=sitemaps)")
     private ServiceUserMapped wfxServices;
 
-    private DeBouncer<String> deBouncer;
+    private final Map<String, Set<String>> changedPaths = new ConcurrentHashMap<>();
+    private CoalescingScheduler<String> scheduler;
+    private boolean incrementalRebuild;
+    private ForkJoinPool pool;
 
     @Activate
     public void activate(final SiteMapStructureCacheImplConfig config) {
         setLocation(config.location());
-        deBouncer = new DeBouncer<>(this, config.debounceInterval());
+        incrementalRebuild = config.incrementalRebuild();
+        pool = createPool(config.parallelism());
+        scheduler = new CoalescingScheduler<>(this::refresh, config.debounceInterval(), config.maxDelay(),
+                TimeUnit.MILLISECONDS, config.refreshWorkers(), config.refreshBatchSize());
         rebuildAll();
     }
 
+    private static ForkJoinPool createPool(final int parallelism) {
+        if (parallelism <= 1) {
+            return null;
+        }
+
+        final AtomicInteger counter = new AtomicInteger();
+        return new ForkJoinPool(parallelism, forkJoinPool -> {
+            final ForkJoinWorkerThread result = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            result.setName("peregrine-sitemap-" + counter.incrementAndGet());
+            return result;
+        }, null, false);
+    }
+
     @Deactivate
     public void deactivate() {
-        deBouncer.terminate();
+        scheduler.terminate();
+        if (nonNull(pool)) {
+            pool.shutdownNow();
+        }
     }
 
     @Override
@@ -97,7 +155,7 @@ public final class SiteMapStructureCacheImpl extends CacheBuilderBase<List<SiteM
     }
 
     private List<SiteMapEntry> extractEntriesFromChildren(final Resource parent) {
-        final LinkedList<SiteMapEntry> result = new LinkedList<>();
+        final List<SiteMapEntry> result = new ArrayList<>();
         for (final Resource child : parent.getChildren()) {
             result.add(extractEntry(child));
         }
@@ -140,9 +198,124 @@ public final class SiteMapStructureCacheImpl extends CacheBuilderBase<List<SiteM
         return result;
     }
 
-    @Override
-    public void call(final String rootPagePath) {
-        build(rootPagePath);
+    private void refresh(final Set<String> rootPagePaths) {
+        logger.debug("Refreshing {} site map structures, {} more waiting, lag {}ms", rootPagePaths.size(),
+                scheduler.getQueueDepth(), scheduler.getLastDispatchLag());
+        if (isNull(pool) || rootPagePaths.size() == 1) {
+            rootPagePaths.forEach(this::refresh);
+            return;
+        }
+
+        final List<Callable<Void>> tasks = rootPagePaths.stream()
+                .map(path -> (Callable<Void>) () -> {
+                    refresh(path);
+                    return null;
+                })
+                .collect(Collectors.toList());
+        pool.invokeAll(tasks);
+    }
+
+    private void refresh(final String rootPagePath) {
+        try {
+            refreshImpl(rootPagePath);
+        } catch (final RuntimeException e) {
+            logger.error("Could not refresh the site map structure of {}", rootPagePath, e);
+        }
+    }
+
+    private void refreshImpl(final String rootPagePath) {
+        final Set<String> paths = changedPaths.remove(rootPagePath);
+        if (isNull(paths) || paths.contains(rootPagePath) || !update(rootPagePath, paths)) {
+            build(rootPagePath);
+        }
+    }
+
+    /**
+     * Patches the cached entries of the given root page by re-extracting only the subtrees of the changed paths
+     * @return False if the changes could not be located in the cached entries and so a full build is needed
+     */
+    private boolean update(final String rootPagePath, final Set<String> paths) {
+        try (final VersioningResourceResolver resourceResolver = createResourceResolver()) {
+            final Resource rootPage = resourceResolver.getResource(rootPagePath);
+            if (isNull(rootPage)) {
+                return false;
+            }
+
+            final Resource cache = resourceResolver.getResource(getCachePath(rootPage));
+            final SiteMapExtractor extractor = siteMapExtractorsContainer.findFirstFor(rootPage);
+            if (!isCacheNode(cache) || isNull(extractor)) {
+                return false;
+            }
+
+            final List<SiteMapEntry> cached = extractEntriesFromChildren(cache);
+            final List<SiteMapEntry> entries = new ArrayList<>(cached);
+            for (final String path : paths) {
+                if (!patch(entries, extractor, resourceResolver, rootPagePath, path)) {
+                    return false;
+                }
+            }
+
+            cleanRemovedChildren(resourceResolver, rootPagePath);
+            putChangedSiteMapsInCache(cached, entries, cache);
+            resourceResolver.commit();
+            notifyCacheRefreshed(rootPage, entries);
+            return true;
+        } catch (final LoginException e) {
+            logger.error(COULD_NOT_GET_SERVICE_RESOURCE_RESOLVER, e);
+        } catch (final PersistenceException e) {
+            logger.error(COULD_NOT_SAVE_CHANGES_TO_REPOSITORY, e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Replaces the entries of the changed subtree with freshly extracted ones. If the subtree has no entries
+     * yet (like a new page) the parent subtree is used instead so that new entries end up at the right place.
+     * @return False if no subtree below the root page has entries in the cache
+     */
+    private boolean patch(
+            final List<SiteMapEntry> entries,
+            final SiteMapExtractor extractor,
+            final ResourceResolver resourceResolver,
+            final String rootPagePath,
+            final String changedPath) {
+        final String rootPagePathWithSlash = rootPagePath + SLASH;
+        String path = changedPath;
+        while (path.startsWith(rootPagePathWithSlash)) {
+            int from = -1;
+            int to = -1;
+            for (int i = 0; i < entries.size(); i++) {
+                if (isInSubtree(entries.get(i).getPath(), path)) {
+                    if (from < 0) {
+                        from = i;
+                    } else if (to < i) {
+                        // The subtree is not in one piece
+                        return false;
+                    }
+
+                    to = i + 1;
+                }
+            }
+
+            if (from >= 0) {
+                final Resource resource = resourceResolver.getResource(path);
+                final List<SiteMapEntry> extracted = isNull(resource) ?
+                        Collections.emptyList() : extractor.extract(resource);
+                final List<SiteMapEntry> range = entries.subList(from, to);
+                range.clear();
+                range.addAll(extracted);
+                return true;
+            }
+
+            path = substringBeforeLast(path, SLASH);
+        }
+
+        return false;
+    }
+
+    private static boolean isInSubtree(final String path, final String subtreePath) {
+        return StringUtils.equals(path, subtreePath) || StringUtils.startsWith(path, subtreePath + SLASH);
     }
 
     @Override
@@ -160,8 +333,7 @@ public final class SiteMapStructureCacheImpl extends CacheBuilderBase<List<SiteM
     protected boolean isCacheNode(final Resource cache) {
         return Optional.ofNullable(cache)
                 .filter(r -> JCR_CONTENT.equals(r.getName()))
-                .map(r -> r.getChild(NN_FIRST_CACHE_NODE))
-                .map(Objects::nonNull)
+                .map(Resource::hasChildren)
                 .orElse(false);
     }
 
@@ -179,37 +351,173 @@ public final class SiteMapStructureCacheImpl extends CacheBuilderBase<List<SiteM
     protected Resource build(final Resource rootPage, final Resource cache) throws PersistenceException {
         final SiteMapExtractor extractor = siteMapExtractorsContainer.findFirstFor(rootPage);
         if (isNull(extractor)) {
-            removeCachedItemsStartingAtIndex(cache, 0);
+            removeCachedItems(cache);
             // TODO remove ancestors on path up the tree?
             notifyCacheRefreshed(rootPage, null);
             return null;
         }
 
-        final List<SiteMapEntry> entries = extractor.extract(rootPage);
+        final List<SiteMapEntry> entries = extract(extractor, rootPage);
         putSiteMapsInCache(entries, cache);
         notifyCacheRefreshed(rootPage, entries);
         return cache;
     }
 
+    /**
+     * Extracts the subtrees of the child pages in parallel, each worker thread reading through its own resource
+     * resolver. The entries are concatenated in the order of the children, just like a sequential extraction.
+     */
+    private List<SiteMapEntry> extract(final SiteMapExtractor extractor, final Resource rootPage) {
+        if (isNull(pool) || !extractor.isBucket(rootPage)) {
+            return extractor.extract(rootPage);
+        }
+
+        final Map<Thread, ResourceResolver> resourceResolvers = new ConcurrentHashMap<>();
+        final List<ForkJoinTask<List<SiteMapEntry>>> tasks = new ArrayList<>();
+        for (final Resource child : rootPage.getChildren()) {
+            final String path = child.getPath();
+            tasks.add(pool.submit(() -> extractor.extract(getResource(resourceResolvers, path))));
+        }
+
+        final List<SiteMapEntry> result = new ArrayList<>();
+        try {
+            Optional.ofNullable(extractor.extractEntry(rootPage))
+                    .ifPresent(result::add);
+        } finally {
+            tasks.forEach(ForkJoinTask::quietlyJoin);
+            resourceResolvers.values().forEach(ResourceResolver::close);
+        }
+
+        for (final ForkJoinTask<List<SiteMapEntry>> task : tasks) {
+            result.addAll(task.join());
+        }
+
+        return result;
+    }
+
+    private Resource getResource(final Map<Thread, ResourceResolver> resourceResolvers, final String path) {
+        return resourceResolvers.computeIfAbsent(Thread.currentThread(), thread -> {
+            try {
+                return createResourceResolver();
+            } catch (final LoginException e) {
+                throw new IllegalStateException(COULD_NOT_GET_SERVICE_RESOURCE_RESOLVER, e);
+            }
+        }).getResource(path);
+    }
+
     private void putSiteMapsInCache(final List<SiteMapEntry> source, final Resource target) throws PersistenceException {
+        removeCachedItems(target);
         final int siteMapsSize = source.size();
         final Iterator<SiteMapEntry> iterator = source.iterator();
-        final ResourceResolver resourceResolver = target.getResourceResolver();
         for (int i = 0; i < siteMapsSize; i++) {
-            final String childName = Integer.toString(i);
-            final Resource child = target.getChild(childName);
-            if (nonNull(child)) {
+            putSiteMapInCache(iterator.next(), target, Integer.toString(i));
+        }
+    }
+
+    /**
+     * Only rewrites the cache nodes whose entry changed. The stored nodes are matched with the entries by path,
+     * so inserting or removing a page leaves the nodes of all the other entries untouched. New nodes get
+     * unused names and the nodes are then put into the order of the entries.
+     * @param cached Entries read from the children of the target, in the same order
+     */
+    private void putChangedSiteMapsInCache(final List<SiteMapEntry> cached, final List<SiteMapEntry> source, final Resource target)
+            throws PersistenceException {
+        final Node targetNode = target.adaptTo(Node.class);
+        if (isNull(targetNode)) {
+            putSiteMapsInCache(source, target);
+            return;
+        }
+
+        final ResourceResolver resourceResolver = target.getResourceResolver();
+        final Map<String, Resource> storedNodes = new HashMap<>();
+        final Map<String, SiteMapEntry> storedEntries = new HashMap<>();
+        final List<String> currentOrder = new ArrayList<>();
+        final Iterator<SiteMapEntry> cachedIterator = cached.iterator();
+        int nextIndex = 0;
+        for (final Resource child : target.getChildren()) {
+            final SiteMapEntry entry = cachedIterator.next();
+            if (nonNull(storedNodes.putIfAbsent(entry.getPath(), child))) {
+                // Another node stores an entry of the same path already
                 resourceResolver.delete(child);
+                continue;
+            }
+
+            storedEntries.put(entry.getPath(), entry);
+            currentOrder.add(child.getName());
+            nextIndex = Math.max(nextIndex, NumberUtils.toInt(child.getName(), -1) + 1);
+        }
+
+        final List<String> order = new ArrayList<>(source.size());
+        for (final SiteMapEntry entry : source) {
+            final Resource stored = storedNodes.remove(entry.getPath());
+            if (nonNull(stored) && isSameEntry(storedEntries.get(entry.getPath()), entry)) {
+                order.add(stored.getName());
+                continue;
+            }
+
+            final String childName;
+            if (nonNull(stored)) {
+                childName = stored.getName();
+                currentOrder.remove(childName);
+            } else {
+                childName = Integer.toString(nextIndex++);
             }
 
-            final SiteMapEntry entry = iterator.next();
-            Optional.ofNullable(entry.walk(this, target, childName))
-                    .map(r -> r.getChild(childName))
-                    .map(r -> r.adaptTo(ModifiableValueMap.class))
-                    .ifPresent(map -> map.put(PATH, entry.getPath()));
+            putSiteMapInCache(entry, target, childName);
+            currentOrder.add(childName);
+            order.add(childName);
+        }
+
+        for (final Resource removed : storedNodes.values()) {
+            currentOrder.remove(removed.getName());
+            resourceResolver.delete(removed);
+        }
+
+        orderCachedItems(targetNode, currentOrder, order);
+    }
+
+    /** Moves only the nodes that are not at their place yet **/
+    private static void orderCachedItems(final Node target, final List<String> currentOrder, final List<String> order)
+            throws PersistenceException {
+        try {
+            for (int i = 0; i < order.size(); i++) {
+                final String name = order.get(i);
+                if (!name.equals(currentOrder.get(i))) {
+                    target.orderBefore(name, currentOrder.get(i));
+                    currentOrder.remove(name);
+                    currentOrder.add(i, name);
+                }
+            }
+        } catch (final RepositoryException e) {
+            throw new PersistenceException(COULD_NOT_SAVE_SITE_MAP_CACHE, e);
+        }
+    }
+
+    private void putSiteMapInCache(final SiteMapEntry entry, final Resource target, final String childName) throws PersistenceException {
+        final Resource child = target.getChild(childName);
+        if (nonNull(child)) {
+            target.getResourceResolver().delete(child);
         }
 
-        removeCachedItemsStartingAtIndex(target, siteMapsSize);
+        Optional.ofNullable(entry.walk(this, target, childName))
+                .map(r -> r.getChild(childName))
+                .map(r -> r.adaptTo(ModifiableValueMap.class))
+                .ifPresent(map -> map.put(PATH, entry.getPath()));
+    }
+
+    private static boolean isSameEntry(final SiteMapEntry cached, final SiteMapEntry entry) {
+        return StringUtils.equals(cached.getPath(), entry.getPath())
+                && Objects.equals(cached.walk(COMPARABLE_FORM, null).values, entry.walk(COMPARABLE_FORM, null).values);
+    }
+
+    private static final class ComparableForm {
+
+        private final ComparableForm parent;
+        private final Map<String, Object> values = new HashMap<>();
+
+        private ComparableForm(final ComparableForm parent) {
+            this.parent = parent;
+        }
     }
 
     @Override
@@ -245,21 +553,28 @@ public final class SiteMapStructureCacheImpl extends CacheBuilderBase<List<SiteM
         return resource.getParent();
     }
 
-    private void removeCachedItemsStartingAtIndex(final Resource target, final int startItemIndex) throws PersistenceException {
+    private void removeCachedItems(final Resource target) throws PersistenceException {
         final ResourceResolver resourceResolver = target.getResourceResolver();
-        int i = startItemIndex;
-        String childPath = Integer.toString(i);
-        Resource child = target.getChild(childPath);
-        while (nonNull(child)) {
+        final List<Resource> children = new ArrayList<>();
+        target.getChildren().forEach(children::add);
+        for (final Resource child : children) {
             resourceResolver.delete(child);
-            childPath = Integer.toString(++i);
-            child = target.getChild(childPath);
         }
     }
 
     @Override
     protected void rebuildImpl(final String rootPagePath) {
-        deBouncer.call(rootPagePath);
+        rebuildImpl(rootPagePath, rootPagePath);
+    }
+
+    @Override
+    protected void rebuildImpl(final String rootPagePath, final String changedPath) {
+        if (incrementalRebuild) {
+            changedPaths.computeIfAbsent(rootPagePath, path -> ConcurrentHashMap.newKeySet())
+                    .add(changedPath);
+        }
+
+        scheduler.call(rootPagePath);
     }
 
     @Override
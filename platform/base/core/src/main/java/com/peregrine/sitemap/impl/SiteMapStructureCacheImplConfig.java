@@ -36,4 +36,19 @@ public @interface SiteMapStructureCacheImplConfig {
 
     @AttributeDefinition(name = "%debounceInterval.name", description = "%debounceInterval.description")
     int debounceInterval() default 300_000;
+
+    @AttributeDefinition(name = "%incrementalRebuild.name", description = "%incrementalRebuild.description")
+    boolean incrementalRebuild() default true;
+
+    @AttributeDefinition(name = "%maxDelay.name", description = "%maxDelay.description")
+    int maxDelay() default 900_000;
+
+    @AttributeDefinition(name = "%refreshWorkers.name", description = "%refreshWorkers.description")
+    int refreshWorkers() default 1;
+
+    @AttributeDefinition(name = "%refreshBatchSize.name", description = "%refreshBatchSize.description")
+    int refreshBatchSize() default 0;
+
+    @AttributeDefinition(name = "%parallelism.name", description = "%parallelism.description")
+    int parallelism() default 4;
 }
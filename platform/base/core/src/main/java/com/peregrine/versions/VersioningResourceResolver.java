@@ -54,15 +54,45 @@ public final class VersioningResourceResolver extends ResourceResolverWrapper {
 
     private final ResourceResolver resolver;
     private final Function<String, Resource> versionProvider;
+    private final String versionLabel;
 
-    public VersioningResourceResolver(final ResourceResolver resolver, final Function<String, Resource> versionProvider) {
+    private VersioningResourceResolver(
+            final ResourceResolver resolver,
+            final Function<String, Resource> versionProvider,
+            final String versionLabel
+    ) {
         super(resolver);
         this.resolver = resolver;
         this.versionProvider = versionProvider;
+        this.versionLabel = versionLabel;
+    }
+
+    public VersioningResourceResolver(final ResourceResolver resolver, final Function<String, Resource> versionProvider) {
+        this(resolver, versionProvider, null);
     }
 
     public VersioningResourceResolver(final ResourceResolver resolver, final String versionLabel) {
-        this(resolver, versionProvider(resolver, versionLabel));
+        this(resolver, versionProvider(resolver, versionLabel), versionLabel);
+    }
+
+    /**
+     * @return the label of the versions this resolver serves, null if it was created with a custom version provider
+     */
+    public String getVersionLabel() {
+        return versionLabel;
+    }
+
+    /**
+     * Tells which state of the content a resolver serves, so that caches can keep the states apart.
+     * @return an empty string for a plain resolver that serves the current content, the version label
+     * for a versioning resolver and null if the served versions are not known by a label
+     */
+    public static String getVersionKey(final ResourceResolver resolver) {
+        if (resolver instanceof VersioningResourceResolver) {
+            return ((VersioningResourceResolver) resolver).getVersionLabel();
+        }
+
+        return "";
     }
 
     private static Function<String, Resource> versionProvider(final ResourceResolver resolver, final String label) {
@@ -286,7 +316,7 @@ public final class VersioningResourceResolver extends ResourceResolverWrapper {
 
     @Override
     public ResourceResolver clone(final Map<String, Object> authenticationInfo) throws LoginException {
-        return new VersioningResourceResolver(super.clone(authenticationInfo), versionProvider);
+        return new VersioningResourceResolver(super.clone(authenticationInfo), versionProvider, versionLabel);
     }
 
     @Override
@@ -1,10 +1,15 @@
 package com.peregrine.adaption.impl;
 
 import com.peregrine.adaption.PerPage;
+import com.peregrine.mock.PageMock;
+import com.peregrine.mock.RepoMock;
+import com.peregrine.mock.SiteMock;
 import org.junit.Test;
 
 import static com.peregrine.adaption.impl.PerTestUtil.countIterable;
 import static com.peregrine.adaption.impl.PerTestUtil.createPage;
+import static com.peregrine.commons.util.PerConstants.TEMPLATE;
+import static com.peregrine.mock.MockTools.setParentChildRelationships;
 import static org.junit.Assert.*;
 
 /**
@@ -81,4 +86,29 @@ public class PerPageImplTest {
     private void checkPrevious(String message, PerPage expected, PerPage start) {
         assertEquals(message, expected.getResource(), start.getPrevious().getResource());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void getTemplate() {
+        final RepoMock repo = new RepoMock();
+        final SiteMock site = new SiteMock(repo, "example");
+        final PageMock templates = site.getTemplates();
+        final PageMock subTemplate = new PageMock();
+        subTemplate.setPath(templates.getPath() + "/sub");
+        setParentChildRelationships(templates, subTemplate);
+        repo.init(subTemplate);
+        final PageMock pages = site.getPages();
+        for (final PageMock page : new PageMock[]{ templates, subTemplate, pages }) {
+            page.addAdapter(new PerPageImpl(page));
+        }
+
+        pages.getContent().putProperty(TEMPLATE, subTemplate.getPath());
+        assertEquals("The template property names the template", subTemplate.getPath(),
+            new PerPageImpl(pages).getTemplate().getPath());
+        assertEquals("A page inside a templates folder inherits from its parent template", templates.getPath(),
+            new PerPageImpl(subTemplate).getTemplate().getPath());
+        subTemplate.getContent().putProperty(TEMPLATE, pages.getPath());
+        assertEquals("The template property wins over the parent template", pages.getPath(),
+            new PerPageImpl(subTemplate).getTemplate().getPath());
+        assertNull("The root template has no template", new PerPageImpl(templates).getTemplate());
+    }
+}
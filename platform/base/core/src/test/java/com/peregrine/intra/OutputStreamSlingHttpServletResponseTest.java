@@ -0,0 +1,38 @@
+package com.peregrine.intra;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class OutputStreamSlingHttpServletResponseTest {
+
+    private final ByteArrayOutputStream target = new ByteArrayOutputStream();
+    private final OutputStreamSlingHttpServletResponse model = new OutputStreamSlingHttpServletResponse(target);
+
+    @Test
+    public void getOutputStream_writesIntoTarget() throws IOException {
+        model.getOutputStream().write("body".getBytes(UTF_8));
+        model.flushBuffer();
+        assertEquals("body", target.toString("UTF-8"));
+        assertArrayEquals(new byte[0], model.getOutput());
+        assertTrue(model.isCommitted());
+    }
+
+    @Test
+    public void getWriter_keepsErrorPageOutOfTarget() {
+        model.setCharacterEncoding("utf-8");
+        model.setStatus(SC_NOT_FOUND);
+        model.getWriter().write("not found");
+        model.flushBuffer();
+        assertEquals(0, target.size());
+        assertEquals("not found", new String(model.getOutput(), UTF_8));
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.peregrine.model.impl;
+
+import com.peregrine.SlingResourcesTest;
+import com.peregrine.mock.ResourceMock;
+import com.peregrine.mock.SlingHttpServletRequestMock;
+import com.peregrine.nodetypes.merge.PageMerge;
+import com.peregrine.nodetypes.merge.TemplateChainIndex;
+import com.peregrine.nodetypes.models.IComponent;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.models.factory.ModelFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static com.peregrine.nodetypes.merge.PageMerge.MODEL_FACTORY;
+import static com.peregrine.nodetypes.merge.PageMerge.REQUEST;
+import static com.peregrine.nodetypes.merge.PageMerge.TEMPLATE_CHAIN_INDEX;
+import static org.apache.sling.api.scripting.SlingBindings.RESOLVER;
+import static org.apache.sling.api.scripting.SlingBindings.RESOURCE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class ComponentListInjectorTest extends SlingResourcesTest {
+
+    private static final String NN_CHILDREN = "children";
+
+    private final ComponentListInjector model = new ComponentListInjector();
+    private final ModelFactory modelFactory = mock(ModelFactory.class);
+    private final TemplateChainIndex templateChainIndex = mock(TemplateChainIndex.class);
+
+    private final ResourceMock children = jcrContent.createChild(NN_CHILDREN);
+    private final ResourceMock first = children.createChild("first");
+    private final ResourceMock second = children.createChild("second");
+
+    private Supplier<Object> adaptation;
+    private final List<Object> adapted = new ArrayList<>();
+
+    @SuppressWarnings("unused")
+    private List<IComponent> componentList;
+    @SuppressWarnings("unused")
+    private Collection<IComponent> componentCollection;
+    @SuppressWarnings("unused")
+    private List<String> stringList;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        init(children);
+        init(first);
+        init(second);
+        first.addAdapter(mock(IComponent.class));
+        second.addAdapter(mock(IComponent.class));
+        when(modelFactory.exportModelForResource(any(Resource.class), anyString(), eq(Map.class), anyMap()))
+                .thenAnswer(invocation -> {
+                    adapted.add(adaptation.get());
+                    return new HashMap<>();
+                });
+    }
+
+    private static Type getType(final String field) throws NoSuchFieldException {
+        return ComponentListInjectorTest.class.getDeclaredField(field).getGenericType();
+    }
+
+    private Object getValue(final Object adaptable, final String name, final String field) throws NoSuchFieldException {
+        return model.getValue(adaptable, name, getType(field), null, null);
+    }
+
+    private Object getComponentList() {
+        try {
+            return getValue(jcrContent, NN_CHILDREN, "componentList");
+        } catch (final NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Merges the page in the given request and adapts inside the merge **/
+    private void render(final SlingHttpServletRequest request, final Supplier<Object> adaptation) {
+        this.adaptation = adaptation;
+        final Bindings bindings = new SimpleBindings();
+        bindings.put(REQUEST, request);
+        bindings.put(RESOURCE, page);
+        bindings.put(RESOLVER, resourceResolver);
+        bindings.put(MODEL_FACTORY, modelFactory);
+        bindings.put(TEMPLATE_CHAIN_INDEX, templateChainIndex);
+        final PageMerge pageMerge = new PageMerge();
+        pageMerge.init(bindings);
+        pageMerge.getMerged(page);
+    }
+
+    private List<IComponent> getComponents() {
+        return Arrays.asList(first.adaptTo(IComponent.class), second.adaptTo(IComponent.class));
+    }
+
+    @Test
+    public void getValue_memoizesWithinRequest() {
+        render(request, this::getComponentList);
+        assertEquals(getComponents(), adapted.get(0));
+        assertEquals(0, model.getHitCount());
+        assertEquals(2, model.getMissCount());
+
+        render(request, this::getComponentList);
+        assertEquals(getComponents(), adapted.get(1));
+        assertEquals(2, model.getHitCount());
+        assertEquals(2, model.getMissCount());
+    }
+
+    @Test
+    public void getValue_injectsCollections() {
+        render(request, () -> {
+            try {
+                return getValue(jcrContent, NN_CHILDREN, "componentCollection");
+            } catch (final NoSuchFieldException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertEquals(getComponents(), adapted.get(0));
+    }
+
+    @Test
+    public void getValue_leavesOthersToDefaultInjector() throws NoSuchFieldException {
+        // outside of a page merge, even with the render context of the script setup left on this thread
+        render(request, () -> null);
+        assertNull(getComponentList());
+
+        render(request, () -> {
+            try {
+                return Arrays.asList(
+                        getValue(jcrContent, NN_CHILDREN, "stringList"),
+                        getValue(request, NN_CHILDREN, "componentList"),
+                        getValue(jcrContent, "missing", "componentList"));
+            } catch (final NoSuchFieldException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertEquals(Arrays.asList(null, null, null), adapted.get(1));
+
+        children.createChild("third");
+        render(request, this::getComponentList);
+        assertNull(adapted.get(2));
+        assertEquals(0, model.getHitCount());
+    }
+
+    @Test
+    public void getValue_secondRenderOnSameThread() {
+        render(request, this::getComponentList);
+        final List<?> components = (List<?>) adapted.get(0);
+        // the first request's render context is left on the thread but not used
+        assertNull(getComponentList());
+
+        // A later request with the same resolver, like in a render worker, must not see the first memo
+        final SlingHttpServletRequestMock laterRequest = new SlingHttpServletRequestMock("Later Request");
+        laterRequest.bind(resource);
+        final IComponent changed = mock(IComponent.class);
+        first.addAdapter(changed);
+        render(laterRequest, this::getComponentList);
+        final List<?> laterComponents = (List<?>) adapted.get(1);
+        assertSame(changed, laterComponents.get(0));
+        assertNotSame(components.get(0), laterComponents.get(0));
+        assertEquals(0, model.getHitCount());
+        assertEquals(4, model.getMissCount());
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.peregrine.nodetypes.merge;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestPathInfo;
+import com.peregrine.versions.VersioningResourceResolver;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.apache.sling.api.resource.observation.ResourceChange.ChangeType.ADDED;
+import static org.apache.sling.api.resource.observation.ResourceChange.ChangeType.CHANGED;
+import static org.apache.sling.api.resource.observation.ResourceChange.ChangeType.REMOVED;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class FragmentCacheServiceTest {
+
+    private static final String HEADER_TYPE = "example/components/header";
+    private static final String BREADCRUMB_TYPE = "example/components/breadcrumb";
+    private static final String TEMPLATE = "/content/example/templates/jcr:content";
+    private static final String PAGES = "/content/example/pages";
+
+    private final FragmentCacheService model = new FragmentCacheService();
+    private final FragmentCacheService.Configuration config = mock(FragmentCacheService.Configuration.class);
+    private final Resource header = mockResource(TEMPLATE + "/header", HEADER_TYPE);
+    private final Resource breadcrumb = mockResource(TEMPLATE + "/breadcrumb", BREADCRUMB_TYPE);
+    private final Map fragment = Collections.singletonMap("title", "Example");
+
+    @Before
+    public void setUp() {
+        when(config.enabled()).thenReturn(true);
+        when(config.maxEntries()).thenReturn(10);
+        when(config.resourceTypes()).thenReturn(new String[] {
+            HEADER_TYPE,
+            BREADCRUMB_TYPE + "=" + FragmentCacheService.PAGE_DEPENDENT
+        });
+        model.activate(config);
+    }
+
+    @Test
+    public void get_sharedAcrossPages() {
+        model.put(header, mockRequest(PAGES + "/index"), fragment);
+        assertEquals(fragment, model.get(header, mockRequest(PAGES + "/about")));
+        assertNull(model.get(header, mockRequest("/content/other/pages/index")));
+    }
+
+    @Test
+    public void get_pageDependent() {
+        model.put(breadcrumb, mockRequest(PAGES + "/index"), fragment);
+        assertEquals(fragment, model.get(breadcrumb, mockRequest(PAGES + "/index")));
+        assertNull(model.get(breadcrumb, mockRequest(PAGES + "/about")));
+    }
+
+    @Test
+    public void get_disabled() {
+        when(config.enabled()).thenReturn(false);
+        model.modified(config);
+        model.put(header, mockRequest(PAGES + "/index"), fragment);
+        assertFalse(model.isFragment(header));
+        assertNull(model.get(header, mockRequest(PAGES + "/index")));
+    }
+
+    @Test
+    public void onChange_componentSubtree() {
+        model.put(header, mockRequest(PAGES + "/index"), fragment);
+        model.onChange(Collections.singletonList(new ResourceChange(CHANGED, TEMPLATE + "/footer", false)));
+        assertNotNull(model.get(header, mockRequest(PAGES + "/index")));
+
+        model.onChange(Collections.singletonList(new ResourceChange(CHANGED, TEMPLATE + "/header/links", false)));
+        assertNull(model.get(header, mockRequest(PAGES + "/index")));
+    }
+
+    @Test
+    public void onChange_navigationPages() {
+        model.put(header, mockRequest(PAGES + "/index"), fragment);
+        model.onChange(Collections.singletonList(new ResourceChange(CHANGED, PAGES + "/about/jcr:content", false)));
+        assertNull(model.get(header, mockRequest(PAGES + "/index")));
+    }
+
+    @Test
+    public void get_keepsUsersAndVersionsApart() {
+        final ResourceResolver anonymous = mock(ResourceResolver.class);
+        when(anonymous.getUserID()).thenReturn("anonymous");
+        model.put(header, mockRequest(PAGES + "/index"), fragment);
+        assertNull(model.get(header, mockRequest(PAGES + "/index", anonymous)));
+
+        final ResourceResolver published = new VersioningResourceResolver(mock(ResourceResolver.class), "published");
+        model.put(header, mockRequest(PAGES + "/index", published), fragment);
+        assertNull(model.get(header, mockRequest(PAGES + "/index", published)));
+    }
+
+    @Test
+    public void onChange_collectsChanges() {
+        model.put(header, mockRequest(PAGES + "/index"), fragment);
+        model.put(breadcrumb, mockRequest("/content/other/pages/index"), fragment);
+        model.onChange(Arrays.asList(
+            new ResourceChange(CHANGED, TEMPLATE + "/footer", false),
+            new ResourceChange(REMOVED, "/content/other/templates", false)));
+        assertNotNull(model.get(header, mockRequest(PAGES + "/index")));
+        assertNotNull(model.get(breadcrumb, mockRequest("/content/other/pages/index")));
+
+        model.onChange(Arrays.asList(
+            new ResourceChange(CHANGED, TEMPLATE + "/footer", false),
+            new ResourceChange(REMOVED, "/content/example/templates", false),
+            new ResourceChange(ADDED, "/content/other/pages/about", false)));
+        assertNull(model.get(header, mockRequest(PAGES + "/index")));
+        assertNull(model.get(breadcrumb, mockRequest("/content/other/pages/index")));
+    }
+
+    private static Resource mockResource(final String path, final String resourceType) {
+        final Resource answer = mock(Resource.class);
+        when(answer.getPath()).thenReturn(path);
+        when(answer.getResourceType()).thenReturn(resourceType);
+        return answer;
+    }
+
+    private static SlingHttpServletRequest mockRequest(final String pagePath) {
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        when(resourceResolver.getUserID()).thenReturn("admin");
+        return mockRequest(pagePath, resourceResolver);
+    }
+
+    private static SlingHttpServletRequest mockRequest(final String pagePath, final ResourceResolver resourceResolver) {
+        final SlingHttpServletRequest answer = mock(SlingHttpServletRequest.class);
+        when(answer.getResourceResolver()).thenReturn(resourceResolver);
+        final RequestPathInfo pathInfo = mock(RequestPathInfo.class);
+        when(pathInfo.getSelectorString()).thenReturn("data");
+        when(answer.getRequestPathInfo()).thenReturn(pathInfo);
+        final Resource page = mockResource(pagePath, "example/components/page");
+        when(answer.getResource()).thenReturn(page);
+        return answer;
+    }
+}
@@ -0,0 +1,124 @@
+package com.peregrine.nodetypes.merge;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.peregrine.SlingResourcesTest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.models.factory.ModelFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.peregrine.nodetypes.merge.PageMerge.MODEL_FACTORY;
+import static com.peregrine.nodetypes.merge.PageMerge.REQUEST;
+import static com.peregrine.nodetypes.merge.PageMerge.TEMPLATE_CHAIN_INDEX;
+import static org.apache.sling.api.scripting.SlingBindings.OUT;
+import static org.apache.sling.api.scripting.SlingBindings.RESOLVER;
+import static org.apache.sling.api.scripting.SlingBindings.RESOURCE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class PageMergeTest extends SlingResourcesTest {
+
+    private static final String END_TAG = "</script>";
+
+    private final ModelFactory modelFactory = mock(ModelFactory.class);
+    private final TemplateChainIndex templateChainIndex = mock(TemplateChainIndex.class);
+    private final Bindings bindings = new SimpleBindings();
+    private final Map<String, Object> content = new LinkedHashMap<>();
+
+    private final PageMerge model = new PageMerge();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        final Map<String, Object> child = new LinkedHashMap<>();
+        child.put("path", "/jcr:content/child");
+        child.put("text", "<p>x</script><script>alert(1)" + END_TAG + "</scr</script>");
+        child.put("partial", "ends with </scrip");
+        child.put("upper", "</SCRIPT>");
+        content.put("title", "Grüße – 日本語   \"quoted\" \\ /slash");
+        content.put("key " + END_TAG, "value");
+        content.put("children", Arrays.asList(child, Collections.singletonMap("end", "<")));
+        content.put("number", 42);
+        // end tags across the boundaries of the generator's buffer
+        final StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            longText.append(i).append(END_TAG);
+        }
+        content.put("long", longText.toString());
+        when(modelFactory.exportModelForResource(any(Resource.class), anyString(), eq(Map.class), anyMap()))
+                .thenReturn(content);
+
+        request.bind(page);
+        bindings.put(REQUEST, request);
+        bindings.put(RESOURCE, page);
+        bindings.put(RESOLVER, resourceResolver);
+        bindings.put(MODEL_FACTORY, modelFactory);
+        bindings.put(TEMPLATE_CHAIN_INDEX, templateChainIndex);
+    }
+
+    /** @return JSon as it was written before the merged page was streamed **/
+    private String getFormerJson() throws JsonProcessingException {
+        return new ObjectMapper().writeValueAsString(content);
+    }
+
+    /** @return Script safe JSon as it was written before the merged page was streamed **/
+    private String getFormerScriptJson() throws JsonProcessingException {
+        return getFormerJson().replaceAll(END_TAG, "<\\\\/script>");
+    }
+
+    @Test
+    public void getMerged() throws JsonProcessingException {
+        model.init(bindings);
+        assertEquals(getFormerJson(), model.getMerged());
+    }
+
+    @Test
+    public void getMergedForScript() throws JsonProcessingException {
+        model.init(bindings);
+        final String json = model.getMergedForScript();
+        assertEquals(getFormerScriptJson(), json);
+        assertFalse(json.contains(END_TAG));
+    }
+
+    @Test
+    public void getMergedToOut() throws JsonProcessingException {
+        final StringWriter writer = new StringWriter();
+        bindings.put(OUT, new PrintWriter(writer));
+        model.init(bindings);
+        assertEquals("", model.getMergedToOut());
+        assertEquals(getFormerJson(), writer.toString());
+    }
+
+    @Test
+    public void getMergedForScriptToOut() throws JsonProcessingException {
+        final StringWriter writer = new StringWriter();
+        bindings.put(OUT, new PrintWriter(writer));
+        model.init(bindings);
+        assertEquals("", model.getMergedForScriptToOut());
+        assertEquals(getFormerScriptJson(), writer.toString());
+    }
+
+    @Test
+    public void getMergedToOut_withoutOut() throws JsonProcessingException {
+        model.init(bindings);
+        assertEquals(getFormerJson(), model.getMergedToOut());
+        assertEquals(getFormerScriptJson(), model.getMergedForScriptToOut());
+    }
+
+}
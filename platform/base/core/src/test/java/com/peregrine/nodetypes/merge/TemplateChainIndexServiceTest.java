@@ -0,0 +1,106 @@
+package com.peregrine.nodetypes.merge;
+
+import com.peregrine.mock.PageMock;
+import com.peregrine.mock.RepoMock;
+import com.peregrine.mock.SiteMock;
+import com.peregrine.versions.VersioningResourceResolver;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.peregrine.commons.util.PerConstants.JCR_CONTENT;
+import static com.peregrine.commons.util.PerConstants.TEMPLATE;
+import static com.peregrine.mock.MockTools.setParentChildRelationships;
+import static org.apache.sling.api.resource.observation.ResourceChange.ChangeType.CHANGED;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class TemplateChainIndexServiceTest {
+
+    private final TemplateChainIndexService model = new TemplateChainIndexService();
+    private final TemplateChainIndexService.Configuration config = mock(TemplateChainIndexService.Configuration.class);
+    private final RepoMock repo = new RepoMock();
+    private final SiteMock site = new SiteMock(repo, "example");
+    private final PageMock templates = site.getTemplates();
+    private final PageMock subTemplate = new PageMock();
+    private final PageMock page = site.getPages();
+
+    @Before
+    public void setUp() {
+        when(config.maxEntries()).thenReturn(10);
+        model.activate(config);
+
+        subTemplate.setPath(templates.getPath() + "/sub");
+        setParentChildRelationships(templates, subTemplate);
+        repo.init(subTemplate);
+        page.getContent().putProperty(TEMPLATE, subTemplate.getPath());
+    }
+
+    @Test
+    public void getTemplatePath() {
+        assertEquals(subTemplate.getPath(), model.getTemplatePath(page));
+        assertEquals(templates.getPath(), model.getTemplatePath(subTemplate));
+        assertNull(model.getTemplatePath(templates));
+    }
+
+    @Test
+    public void getTemplateChain() {
+        assertEquals(Arrays.asList(subTemplate.getPath(), templates.getPath()), model.getTemplateChain(page));
+        assertTrue(model.getTemplateChain(templates).isEmpty());
+    }
+
+    @Test
+    public void onChange_readsPageAgain() {
+        assertEquals(subTemplate.getPath(), model.getTemplatePath(page));
+        page.getContent().putProperty(TEMPLATE, templates.getPath());
+        assertEquals(subTemplate.getPath(), model.getTemplatePath(page));
+        model.onChange(Collections.singletonList(
+            new ResourceChange(CHANGED, page.getContent().getPath(), false)));
+        assertEquals(templates.getPath(), model.getTemplatePath(page));
+    }
+
+    @Test
+    public void getTemplatePath_keepsVersionsApart() {
+        assertEquals(subTemplate.getPath(), model.getTemplatePath(page));
+        page.getContent().putProperty(TEMPLATE, templates.getPath());
+        final VersioningResourceResolver published = new VersioningResourceResolver(repo.getResourceResolver(), "published");
+        final String path = page.getPath();
+        final Resource content = page.getContent();
+        final Resource publishedPage = mock(Resource.class);
+        when(publishedPage.getPath()).thenReturn(path);
+        when(publishedPage.getResourceResolver()).thenReturn(published);
+        when(publishedPage.getChild(JCR_CONTENT)).thenReturn(content);
+        assertEquals(templates.getPath(), model.getTemplatePath(publishedPage));
+        assertEquals(subTemplate.getPath(), model.getTemplatePath(page));
+    }
+
+    @Test
+    public void getTemplatePath_dropsLeastRecentlyUsed() {
+        when(config.maxEntries()).thenReturn(2);
+        model.modified(config);
+        assertEquals(subTemplate.getPath(), model.getTemplatePath(page));
+        assertEquals(templates.getPath(), model.getTemplatePath(subTemplate));
+        assertEquals(subTemplate.getPath(), model.getTemplatePath(page));
+        assertNull(model.getTemplatePath(templates));
+        // the sub template was used least recently and is read again
+        subTemplate.getContent().putProperty(TEMPLATE, page.getPath());
+        page.getContent().putProperty(TEMPLATE, templates.getPath());
+        assertEquals(subTemplate.getPath(), model.getTemplatePath(page));
+        assertEquals(page.getPath(), model.getTemplatePath(subTemplate));
+    }
+
+    @Test
+    public void onChange_dropsSubtrees() {
+        assertEquals(templates.getPath(), model.getTemplatePath(subTemplate));
+        subTemplate.getContent().putProperty(TEMPLATE, page.getPath());
+        model.onChange(Arrays.asList(
+            new ResourceChange(ResourceChange.ChangeType.ADDED, templates.getPath() + "/other", false),
+            new ResourceChange(ResourceChange.ChangeType.REMOVED, templates.getPath(), false)));
+        assertEquals(page.getPath(), model.getTemplatePath(subTemplate));
+    }
+}
@@ -0,0 +1,102 @@
+package com.peregrine.nodetypes.merge;
+
+import com.peregrine.mock.PageMock;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.peregrine.commons.util.PerConstants.JCR_LAST_MODIFIED;
+import static com.peregrine.commons.util.PerConstants.PATH;
+import static org.apache.sling.api.resource.observation.ResourceChange.ChangeType.CHANGED;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class TemplateMergeCacheServiceTest {
+
+    private static final String TEMPLATES = "/content/example/templates";
+    private static final String CHILDREN = "children";
+
+    private final TemplateMergeCacheService model = new TemplateMergeCacheService();
+    private final TemplateMergeCacheService.Configuration config = mock(TemplateMergeCacheService.Configuration.class);
+    private final PageMock template = new PageMock();
+    private final PageMock subTemplate = new PageMock();
+    private final Map merged = new HashMap();
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void setUp() {
+        when(config.enabled()).thenReturn(true);
+        when(config.maxEntries()).thenReturn(10);
+        model.activate(config);
+
+        template.setPath(TEMPLATES);
+        template.getContent().putProperty(JCR_LAST_MODIFIED, Calendar.getInstance());
+        subTemplate.setPath(TEMPLATES + "/sub");
+
+        final List children = new ArrayList();
+        children.add(new HashMap(Collections.singletonMap(PATH, "/jcr:content/n1")));
+        merged.put(CHILDREN, children);
+        merged.put(PageMerge.FROM_TEMPLATE, Boolean.TRUE);
+    }
+
+    @Test
+    public void get_notCached() {
+        assertNull(model.get(template));
+    }
+
+    @Test
+    public void get_disabled() {
+        when(config.enabled()).thenReturn(false);
+        model.modified(config);
+        model.put(template, merged);
+        assertNull(model.get(template));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void get_returnsIndependentCopies() {
+        model.put(template, merged);
+        final Map first = model.get(template);
+        assertEquals(merged, first);
+        ((List) first.get(CHILDREN)).clear();
+        assertEquals(merged, model.get(template));
+        assertTrue(model.get(template).get(CHILDREN) instanceof ArrayList);
+    }
+
+    @Test
+    public void get_staleAfterModification() {
+        model.put(template, merged);
+        final Calendar later = Calendar.getInstance();
+        later.add(Calendar.MINUTE, 1);
+        template.getContent().putProperty(JCR_LAST_MODIFIED, later);
+        assertNull(model.get(template));
+    }
+
+    @Test
+    public void put_dropsLeastRecentlyUsed() {
+        when(config.maxEntries()).thenReturn(1);
+        model.modified(config);
+        model.put(template, merged);
+        model.put(subTemplate, merged);
+        assertNull(model.get(template));
+        assertNotNull(model.get(subTemplate));
+    }
+
+    @Test
+    public void onChange_evictsTemplatesFolder() {
+        model.put(template, merged);
+        model.put(subTemplate, merged);
+        model.onChange(Collections.singletonList(
+            new ResourceChange(CHANGED, TEMPLATES + "/jcr:content/n1", false)));
+        assertNull(model.get(template));
+        assertNull(model.get(subTemplate));
+    }
+}
@@ -0,0 +1,140 @@
+package com.peregrine.render;
+
+import com.peregrine.mock.PageMock;
+import com.peregrine.versions.VersioningResourceResolver;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.BundleContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.apache.sling.api.resource.observation.ResourceChange.ChangeType.CHANGED;
+import static org.apache.sling.api.resource.observation.ResourceChange.ChangeType.REMOVED;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class RenderCacheServiceTest {
+
+    private static final String PATH = "/content/example/pages/index";
+    private static final String HTML = "html";
+    private static final String KEY = PATH + "|html|admin";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final RenderCacheService model = new RenderCacheService();
+    private final RenderCacheService.Configuration config = mock(RenderCacheService.Configuration.class);
+    private final BundleContext context = mock(BundleContext.class);
+    private final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    private final PageMock page = new PageMock();
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = temporaryFolder.newFolder("render-cache");
+        when(config.enabled()).thenReturn(true);
+        when(config.maxMemory()).thenReturn(10L);
+        when(config.spillThreshold()).thenReturn(4);
+        when(config.maxDisk()).thenReturn(10L);
+        when(config.cacheFolder()).thenReturn(folder.getPath());
+        model.activate(context, config);
+        when(resourceResolver.getUserID()).thenReturn("admin");
+        page.setPath(PATH);
+        page.setResourceResolver(resourceResolver);
+    }
+
+    private void put(final String key, final byte[] content) {
+        model.get(key);
+        model.put(key, page, content);
+    }
+
+    @Test
+    public void get_hitAndMiss() {
+        final String key = model.key(page, HTML);
+        assertNull(model.get(key));
+        model.put(key, page, new byte[] { 1, 2 });
+        assertArrayEquals(new byte[] { 1, 2 }, model.get(key));
+        assertEquals(1, model.getHitCount());
+        assertEquals(1, model.getMissCount());
+    }
+
+    @Test
+    public void get_disabled() {
+        when(config.enabled()).thenReturn(false);
+        model.modified(context, config);
+        assertNull(model.key(page, HTML));
+        model.put(KEY, page, new byte[] { 1, 2 });
+        assertNull(model.get(KEY));
+    }
+
+    @Test
+    public void key_keepsUsersAndVersionsApart() {
+        final ResourceResolver other = mock(ResourceResolver.class);
+        when(other.getUserID()).thenReturn("anonymous");
+        final PageMock otherPage = new PageMock();
+        otherPage.setPath(PATH);
+        otherPage.setResourceResolver(other);
+        assertNotEquals(model.key(page, HTML), model.key(otherPage, HTML));
+
+        final Resource publishedPage = mock(Resource.class);
+        final VersioningResourceResolver published = new VersioningResourceResolver(resourceResolver, "published");
+        when(publishedPage.getPath()).thenReturn(PATH);
+        when(publishedPage.getResourceResolver()).thenReturn(published);
+        assertNull(model.key(publishedPage, HTML));
+    }
+
+    @Test
+    public void put_spillsToDisk() {
+        put(KEY, new byte[] { 1, 2, 3, 4, 5 });
+        assertEquals(1, folder.listFiles().length);
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, model.get(KEY));
+
+        model.clear();
+        assertEquals(0, folder.listFiles().length);
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() {
+        put(KEY + "/a", new byte[] { 1, 2, 3, 4 });
+        put(KEY + "/b", new byte[] { 1, 2, 3, 4 });
+        model.get(KEY + "/a");
+        put(KEY + "/c", new byte[] { 1, 2, 3, 4 });
+        assertNotNull(model.get(KEY + "/a"));
+        assertNull(model.get(KEY + "/b"));
+        assertNotNull(model.get(KEY + "/c"));
+    }
+
+    @Test
+    public void put_skipsRenderingOfChangedContent() {
+        assertNull(model.get(KEY));
+        model.onChange(Collections.singletonList(new ResourceChange(CHANGED, PATH, false)));
+        model.put(KEY, page, new byte[] { 1, 2 });
+        assertNull(model.get(KEY));
+    }
+
+    @Test
+    public void onChange_dropsDependentRenderings() {
+        put(KEY, new byte[] { 1, 2 });
+        model.onChange(Collections.singletonList(new ResourceChange(CHANGED, "/content/example/pages/other", false)));
+        assertNotNull(model.get(KEY));
+
+        model.onChange(Collections.singletonList(new ResourceChange(CHANGED, PATH + "/jcr:content", false)));
+        assertNull(model.get(KEY));
+
+        put(KEY, new byte[] { 1, 2 });
+        model.onChange(Collections.singletonList(new ResourceChange(REMOVED, "/content/example", false)));
+        assertNull(model.get(KEY));
+
+        put(KEY, new byte[] { 1, 2 });
+        model.onChange(Collections.singletonList(new ResourceChange(CHANGED, "/apps/example/components/page", false)));
+        assertNull(model.get(KEY));
+    }
+}
@@ -0,0 +1,254 @@
+package com.peregrine.render;
+
+import com.peregrine.intra.IntraSlingCaller;
+import com.peregrine.intra.IntraSlingCaller.CallException;
+import com.peregrine.intra.IntraSlingCallerService.CallerContextImpl;
+import com.peregrine.render.RenderService.RenderException;
+import com.peregrine.render.RenderService.Rendering;
+import junitx.util.PrivateAccessor;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.peregrine.commons.util.PerConstants.DISTRIBUTION_SUB_SERVICE;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class RenderServiceImplTest {
+
+    private static final String PATH = "/content/example/pages/";
+    private static final String FAILING = PATH + "failing";
+    private static final String MISSING = PATH + "missing";
+    private static final String HTML = "html";
+    private static final String JSON = "data.json";
+    private static final int TIMEOUT_SECONDS = 10;
+
+    private final RenderServiceImpl model = new RenderServiceImpl();
+    private final RenderServiceImpl.Configuration config = mock(RenderServiceImpl.Configuration.class);
+    private final IntraSlingCaller intraSlingCaller = mock(IntraSlingCaller.class);
+    private final ResourceResolverFactory resourceResolverFactory = mock(ResourceResolverFactory.class);
+    private final ResourceResolver requestResolver = mock(ResourceResolver.class);
+
+    /** Resolvers handed out to the workers in the order they logged in **/
+    private final List<ResourceResolver> resolvers = new ArrayList<>();
+    private final Queue<ResourceResolver> availableResolvers = new ConcurrentLinkedQueue<>();
+    private final Set<ResourceResolver> closedResolvers = ConcurrentHashMap.newKeySet();
+    /** Resolvers the renderings were called with **/
+    private final Queue<ResourceResolver> callResolvers = new ConcurrentLinkedQueue<>();
+
+    private volatile CountDownLatch blocker;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        PrivateAccessor.setField(model, "intraSlingCaller", intraSlingCaller);
+        PrivateAccessor.setField(model, "resourceResolverFactory", resourceResolverFactory);
+        when(config.batchWorkers()).thenReturn(2);
+        when(config.batchSubService()).thenReturn(DISTRIBUTION_SUB_SERVICE);
+        when(config.streamCopyLimit()).thenReturn(1024);
+        for (int i = 0; i < 4; i++) {
+            final ResourceResolver resolver = mockResolver();
+            resolvers.add(resolver);
+            availableResolvers.add(resolver);
+        }
+
+        when(resourceResolverFactory.getServiceResourceResolver(anyMap())).thenAnswer(invocation -> availableResolvers.remove());
+        when(intraSlingCaller.createContext()).thenAnswer(invocation -> new CallerContextImpl());
+        when(intraSlingCaller.call(any(IntraSlingCaller.CallerContext.class))).thenAnswer(invocation -> {
+            final IntraSlingCaller.CallerContext context = (IntraSlingCaller.CallerContext) invocation.getArguments()[0];
+            callResolvers.add(context.getResourceResolver());
+            final String path = context.getPath();
+            if (FAILING.equals(path)) {
+                throw new CallException("Failed to call: " + path);
+            }
+
+            final CountDownLatch latch = blocker;
+            if (path.endsWith("0") && context.getExtension().equals(HTML) && latch != null) {
+                // the first rendering only finishes after all the others
+                assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            } else if (latch != null) {
+                latch.countDown();
+            }
+
+            return (path + "." + context.getExtension()).getBytes();
+        });
+        model.activate(config);
+    }
+
+    @After
+    public void tearDown() {
+        model.deactivate();
+    }
+
+    private ResourceResolver mockResolver() {
+        final ResourceResolver answer = mock(ResourceResolver.class);
+        when(answer.isLive()).thenAnswer(invocation -> !closedResolvers.contains(answer));
+        doAnswer(invocation -> closedResolvers.add(answer)).when(answer).close();
+        when(answer.getResource(any(String.class))).thenAnswer(invocation -> {
+            final String path = (String) invocation.getArguments()[0];
+            return MISSING.equals(path) ? null : mockResource(path, answer);
+        });
+        return answer;
+    }
+
+    private static Resource mockResource(final String path, final ResourceResolver resourceResolver) {
+        final Resource answer = mock(Resource.class);
+        when(answer.getPath()).thenReturn(path);
+        when(answer.getResourceResolver()).thenReturn(resourceResolver);
+        return answer;
+    }
+
+    private List<Resource> mockResources(final String... paths) {
+        final List<Resource> answer = new ArrayList<>();
+        for (final String path : paths) {
+            answer.add(mockResource(path, requestResolver));
+        }
+
+        return answer;
+    }
+
+    private static Rendering get(final CompletableFuture<Rendering> future)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static RenderException getFailure(final CompletableFuture<Rendering> future)
+            throws InterruptedException, TimeoutException {
+        try {
+            get(future);
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof RenderException);
+            return (RenderException) e.getCause();
+        }
+
+        fail("Rendering did not fail");
+        return null;
+    }
+
+    private static void assertRendering(final String path, final String extension, final Rendering rendering) {
+        assertEquals(path, rendering.getPath());
+        assertEquals(extension, rendering.getExtension());
+        assertEquals(path + "." + extension, new String(rendering.getContent()));
+    }
+
+    private void renderAll(final String... paths) throws Exception {
+        for (final CompletableFuture<Rendering> future : model.renderAll(mockResources(paths), Collections.singleton(HTML))) {
+            get(future);
+        }
+    }
+
+    @Test
+    public void renderAll_keepsOrder() throws Exception {
+        blocker = new CountDownLatch(5);
+        final List<CompletableFuture<Rendering>> futures = model.renderAll(
+                mockResources(PATH + 0, PATH + 1, PATH + 2),
+                new LinkedHashSet<>(Arrays.asList(HTML, JSON)));
+        assertEquals(6, futures.size());
+        for (int i = 0; i < 6; i++) {
+            assertRendering(PATH + i / 2, i % 2 == 0 ? HTML : JSON, get(futures.get(i)));
+        }
+
+        assertEquals(0, blocker.getCount());
+    }
+
+    @Test
+    public void renderAll_failuresStayPerItem() throws Exception {
+        final List<CompletableFuture<Rendering>> futures = model.renderAll(
+                mockResources(PATH + 0, FAILING, MISSING, PATH + 1),
+                Collections.singleton(HTML));
+        assertRendering(PATH + 0, HTML, get(futures.get(0)));
+        final RenderException failed = getFailure(futures.get(1));
+        assertTrue(failed.getCause() instanceof CallException);
+        assertEquals("Resource not found for batch rendering: '" + MISSING + "'", getFailure(futures.get(2)).getMessage());
+        assertRendering(PATH + 1, HTML, get(futures.get(3)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void renderAll_failsOnLoginFailure() throws Exception {
+        when(resourceResolverFactory.getServiceResourceResolver(anyMap())).thenThrow(new LoginException("denied"));
+        final List<CompletableFuture<Rendering>> futures = model.renderAll(mockResources(PATH + 0), Collections.singleton(HTML));
+        final RenderException failed = getFailure(futures.get(0));
+        assertTrue(failed.getCause() instanceof LoginException);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void renderAll_reusesAndRefreshesWorkerResolver() throws Exception {
+        when(config.batchWorkers()).thenReturn(1);
+        model.activate(config);
+        final ResourceResolver resolver = resolvers.get(0);
+        renderAll(PATH + 0, PATH + 1);
+        renderAll(PATH + 2);
+        verify(resourceResolverFactory, times(1)).getServiceResourceResolver(anyMap());
+        // refreshed for every but the first rendering to see the latest persisted content
+        verify(resolver, times(2)).refresh();
+        assertEquals(Arrays.asList(resolver, resolver, resolver), new ArrayList<>(callResolvers));
+        verify(requestResolver, never()).getResource(any(String.class));
+
+        // a resolver that is not live anymore is replaced
+        resolver.close();
+        renderAll(PATH + 3);
+        verify(resourceResolverFactory, times(2)).getServiceResourceResolver(anyMap());
+        assertSame(resolvers.get(1), new ArrayList<>(callResolvers).get(3));
+        verify(resolvers.get(1), never()).refresh();
+    }
+
+    @Test
+    public void deactivate_closesWorkerResolvers() throws Exception {
+        blocker = new CountDownLatch(1);
+        renderAll(PATH + 0, PATH + 1);
+        final List<ResourceResolver> used = new ArrayList<>(new LinkedHashSet<>(callResolvers));
+        assertEquals(2, used.size());
+        model.deactivate();
+        for (final ResourceResolver resolver : used) {
+            verify(resolver, atLeastOnce()).close();
+            assertFalse(resolver.isLive());
+        }
+
+        final List<CompletableFuture<Rendering>> futures = model.renderAll(mockResources(PATH + 0), Collections.singleton(HTML));
+        assertEquals("Render Service is not active", getFailure(futures.get(0)).getMessage());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void modified_closesWorkerResolvers() throws Exception {
+        when(config.batchWorkers()).thenReturn(1);
+        model.activate(config);
+        renderAll(PATH + 0);
+        model.activate(config);
+        verify(resolvers.get(0)).close();
+
+        renderAll(PATH + 1);
+        verify(resourceResolverFactory, times(2)).getServiceResourceResolver(anyMap());
+        assertSame(resolvers.get(1), new ArrayList<>(callResolvers).get(1));
+    }
+
+}
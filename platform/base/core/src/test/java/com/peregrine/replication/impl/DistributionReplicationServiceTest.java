@@ -0,0 +1,193 @@
+package com.peregrine.replication.impl;
+
+import com.peregrine.SlingResourcesTest;
+import com.peregrine.replication.Replication;
+import com.peregrine.replication.ReplicationUtil;
+import com.peregrine.replication.impl.DistributionReplicationService.Configuration;
+import junitx.util.PrivateAccessor;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.distribution.DistributionRequest;
+import org.apache.sling.distribution.DistributionRequestType;
+import org.apache.sling.distribution.DistributionResponse;
+import org.apache.sling.distribution.Distributor;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static com.peregrine.commons.util.PerConstants.PAGE_CONTENT_TYPE;
+import static com.peregrine.commons.util.PerConstants.PAGE_PRIMARY_TYPE;
+import static com.peregrine.replication.impl.DistributionReplicationService.CHUNK_DISTRIBUTED;
+import static com.peregrine.replication.impl.DistributionReplicationService.CHUNK_SUCCESSFUL;
+import static com.peregrine.replication.impl.DistributionReplicationService.CHUNK_TYPE;
+import static org.apache.sling.distribution.DistributionRequestState.ACCEPTED;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class DistributionReplicationServiceTest extends SlingResourcesTest {
+
+    private static final String AGENT = "agent";
+
+    private final Configuration config = mock(Configuration.class);
+    private final Distributor distributor = mock(Distributor.class);
+    private final EventAdmin eventAdmin = mock(EventAdmin.class);
+    private final DistributionResponse accepted = mock(DistributionResponse.class);
+    private final DistributionResponse failed = mock(DistributionResponse.class);
+
+    private final DistributionReplicationService model = new DistributionReplicationService();
+
+    @Before
+    public void setUp() throws NoSuchFieldException, LoginException {
+        ReplicationUtil.setReplicationPrimaryNodeTypes(Arrays.asList(
+                PAGE_PRIMARY_TYPE,
+                PAGE_CONTENT_TYPE
+        ));
+        when(config.name()).thenReturn("remote");
+        when(config.agentName()).thenReturn(AGENT);
+        when(config.maxChunkPaths()).thenReturn(2);
+        when(config.chunkRetries()).thenReturn(1);
+        when(resourceResolver.clone(null)).thenReturn(resourceResolver);
+        when(accepted.isSuccessful()).thenReturn(true);
+        when(accepted.getState()).thenReturn(ACCEPTED);
+        model.distributor = distributor;
+        PrivateAccessor.setField(model, "eventAdmin", eventAdmin);
+        model.activate(config);
+    }
+
+    private List<Resource> getResources() {
+        return resources.stream()
+                .map(m -> (Resource)m)
+                .collect(Collectors.toList());
+    }
+
+    private List<DistributionRequest> captureRequests(final int count) {
+        final ArgumentCaptor<DistributionRequest> captor = ArgumentCaptor.forClass(DistributionRequest.class);
+        verify(distributor, times(count)).distribute(eq(AGENT), eq(resourceResolver), captor.capture());
+        return captor.getAllValues();
+    }
+
+    @Test
+    public void replicate_splitsIntoChunks() throws Replication.ReplicationException {
+        when(distributor.distribute(eq(AGENT), eq(resourceResolver), any(DistributionRequest.class))).thenReturn(accepted);
+        final List<Resource> resources = getResources();
+        assertEquals(resources, model.replicate(resources));
+        final List<DistributionRequest> requests = captureRequests(4);
+        final List<DistributionRequest> additions = requests.stream()
+                .filter(r -> r.getRequestType() == DistributionRequestType.ADD)
+                .collect(Collectors.toList());
+        assertEquals(3, additions.size());
+        assertArrayEquals(new String[]{ contentRoot.getPath(), parent.getPath() }, additions.get(0).getPaths());
+        assertArrayEquals(new String[]{ page.getPath(), jcrContent.getPath() }, additions.get(1).getPaths());
+        assertArrayEquals(new String[]{ resource.getPath() }, additions.get(2).getPaths());
+        final List<DistributionRequest> deletions = requests.stream()
+                .filter(r -> r.getRequestType() == DistributionRequestType.DELETE)
+                .collect(Collectors.toList());
+        assertEquals(1, deletions.size());
+        assertArrayEquals(new String[]{ jcrContent.getPath() }, deletions.get(0).getPaths());
+        verify(eventAdmin, times(4)).postEvent(any(Event.class));
+    }
+
+    @Test
+    public void deactivate_splitsIntoChunks() throws Replication.ReplicationException {
+        when(distributor.distribute(eq(AGENT), eq(resourceResolver), any(DistributionRequest.class))).thenReturn(accepted);
+        model.deactivate(getResources());
+        for (final DistributionRequest request : captureRequests(3)) {
+            assertEquals(DistributionRequestType.DELETE, request.getRequestType());
+        }
+    }
+
+    @Test
+    public void replicate_retriesFailedChunk() throws Replication.ReplicationException {
+        when(distributor.distribute(eq(AGENT), eq(resourceResolver), any(DistributionRequest.class)))
+                .thenReturn(failed, accepted);
+        model.replicate(getResources());
+        captureRequests(5);
+    }
+
+    @Test
+    public void replicate_failsAfterRetries() {
+        when(distributor.distribute(eq(AGENT), eq(resourceResolver), any(DistributionRequest.class))).thenAnswer(invocation -> {
+            final DistributionRequest request = (DistributionRequest) invocation.getArguments()[2];
+            return request.getRequestType() == DistributionRequestType.DELETE ? failed : accepted;
+        });
+        try {
+            model.replicate(getResources());
+            fail("Replication failure expected");
+        } catch (final Replication.ReplicationException e) {
+            // expected
+        }
+
+        // the addition of the first chunk overlaps the failing deletion of the second one
+        captureRequests(3);
+        final ArgumentCaptor<Event> captor = ArgumentCaptor.forClass(Event.class);
+        verify(eventAdmin, times(2)).postEvent(captor.capture());
+        final List<Event> failures = captor.getAllValues().stream()
+                .filter(e -> Boolean.FALSE.equals(e.getProperty(CHUNK_SUCCESSFUL)))
+                .collect(Collectors.toList());
+        assertEquals(1, failures.size());
+        assertEquals(CHUNK_DISTRIBUTED, failures.get(0).getTopic());
+        assertEquals(DistributionRequestType.DELETE.name(), failures.get(0).getProperty(CHUNK_TYPE));
+    }
+
+    @Test
+    public void replicate_failedAdditionWaitsForDeletion() throws LoginException {
+        final ResourceResolver deletionResolver = mock(ResourceResolver.class);
+        when(resourceResolver.clone(null)).thenReturn(deletionResolver);
+        final CountDownLatch deleting = new CountDownLatch(1);
+        when(distributor.distribute(eq(AGENT), eq(resourceResolver), any(DistributionRequest.class))).thenAnswer(invocation -> {
+            // the addition fails while the deletion of the next chunk is running
+            deleting.await(5, TimeUnit.SECONDS);
+            return failed;
+        });
+        final AtomicBoolean deleted = new AtomicBoolean();
+        when(distributor.distribute(eq(AGENT), eq(deletionResolver), any(DistributionRequest.class))).thenAnswer(invocation -> {
+            deleting.countDown();
+            // a distribution does not stop when its thread is interrupted
+            final long end = System.currentTimeMillis() + 200;
+            while (System.currentTimeMillis() < end) {
+                try {
+                    Thread.sleep(10);
+                } catch (final InterruptedException e) {
+                    // keep on distributing
+                }
+            }
+
+            deleted.set(true);
+            return accepted;
+        });
+        final AtomicBoolean deletedBeforeClose = new AtomicBoolean();
+        doAnswer(invocation -> {
+            deletedBeforeClose.set(deleted.get());
+            return null;
+        }).when(deletionResolver).close();
+        try {
+            model.replicate(getResources());
+            fail("Replication failure expected");
+        } catch (final Replication.ReplicationException e) {
+            // expected
+        }
+
+        verify(deletionResolver).close();
+        assertTrue(deletedBeforeClose.get());
+    }
+
+}
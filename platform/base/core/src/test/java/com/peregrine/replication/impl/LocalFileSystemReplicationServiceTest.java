@@ -2,10 +2,14 @@ package com.peregrine.replication.impl;
 
 import com.peregrine.SlingResourcesTest;
 import com.peregrine.render.RenderService;
+import com.peregrine.render.RenderService.RenderException;
+import com.peregrine.render.RenderService.Rendering;
 import com.peregrine.replication.Replication;
+import com.peregrine.replication.ReplicationUtil;
 import com.peregrine.replication.impl.LocalFileSystemReplicationService.Configuration;
 import junitx.util.PrivateAccessor;
 import org.apache.sling.api.resource.Resource;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -13,10 +17,35 @@ import org.junit.rules.TemporaryFolder;
 import org.osgi.framework.BundleContext;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
+import static com.peregrine.commons.IOUtils.deleteFileOrDirectory;
+import static com.peregrine.commons.util.PerConstants.PAGE_CONTENT_TYPE;
+import static com.peregrine.commons.util.PerConstants.PAGE_PRIMARY_TYPE;
+import static com.peregrine.replication.impl.LocalFileSystemReplicationService.LOCAL_FILE_SYSTEM;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -28,12 +57,14 @@ public final class LocalFileSystemReplicationServiceTest extends SlingResourcesT
 
     private final LocalFileSystemReplicationService model = new LocalFileSystemReplicationService();
 
+    private File root;
+
     @Rule
     public final TemporaryFolder temporaryFolder = new TemporaryFolder();
 
     @Before
     public void setUp() throws IOException, NoSuchFieldException {
-        final File root = temporaryFolder.newFolder("staticreplication");
+        root = temporaryFolder.newFolder("staticreplication");
         when(config.name()).thenReturn(root.getName());
         when(config.targetFolder()).thenReturn(root.getPath());
         when(config.exportExtensions()).thenReturn(new String[]{
@@ -48,16 +79,181 @@ public final class LocalFileSystemReplicationServiceTest extends SlingResourcesT
         model.activate(context, config);
     }
 
+    @After
+    public void tearDown() {
+        model.deactivate();
+    }
+
+    private List<Resource> getResources() {
+        return resources.stream()
+                .map(m -> (Resource)m)
+                .collect(Collectors.toList());
+    }
+
+    private void setReplicationPrimaryNodeTypes() {
+        ReplicationUtil.setReplicationPrimaryNodeTypes(Arrays.asList(
+                PAGE_PRIMARY_TYPE,
+                PAGE_CONTENT_TYPE
+        ));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void startPipeline() {
+        setReplicationPrimaryNodeTypes();
+        when(config.writerThreads()).thenReturn(2);
+        when(config.maxInFlight()).thenReturn(1);
+        when(renderService.renderAll(any(Collection.class), anySetOf(String.class))).thenAnswer(invocation -> {
+            final Resource resource = ((Collection<Resource>) invocation.getArguments()[0]).iterator().next();
+            final List<CompletableFuture<Rendering>> answer = new ArrayList<>();
+            for (final String extension : (Set<String>) invocation.getArguments()[1]) {
+                if ("html".equals(extension)) {
+                    final byte[] content = resource.getPath().getBytes(StandardCharsets.UTF_8);
+                    answer.add(CompletableFuture.completedFuture(new Rendering(resource.getPath(), extension, content)));
+                } else {
+                    answer.add(CompletableFuture.failedFuture(new RenderException("failed", null)));
+                }
+            }
+
+            return answer;
+        });
+        model.modified(context, config);
+    }
+
     @Test
     public void replicate() throws Replication.ReplicationException {
-        final var result = model.replicate(
-                resources.stream()
-                .map(m -> (Resource)m)
-                .collect(Collectors.toList())
-        );
+        final var result = model.replicate(getResources());
         assertTrue(result.contains(repo.getContent()));
         assertTrue(result.contains(parent));
         assertTrue(result.contains(page));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void replicate_pipeline() throws Replication.ReplicationException, IOException {
+        startPipeline();
+        final var result = model.replicate(getResources());
+        assertTrue(result.contains(repo.getContent()));
+        assertTrue(result.contains(parent));
+        assertTrue(result.contains(page));
+        final File html = new File(root, parent.getPath() + "/page.html");
+        assertArrayEquals(page.getPath().getBytes(StandardCharsets.UTF_8), Files.readAllBytes(html.toPath()));
+        assertFalse(new File(root, parent.getPath() + "/page.data.json").exists());
+        assertEquals(LOCAL_FILE_SYSTEM + html.getAbsolutePath(), new PerReplicableImpl(page).getReplicationRef());
+    }
+
+    @Test
+    public void replicate_pipelineReportsFailedItems() throws Replication.ReplicationException {
+        startPipeline();
+        assertTrue(new File(root, parent.getPath() + "/page.html").mkdirs());
+        final var result = model.replicate(getResources());
+        assertTrue(result.contains(repo.getContent()));
+        assertTrue(result.contains(parent));
+        assertFalse(result.contains(page));
+    }
+
+    @Test
+    public void storeFile_skipsUnchangedContent() throws Replication.ReplicationException, IOException {
+        final String path = model.storeFile(parent, "file.txt", "content");
+        final File file = new File(root, parent.getPath() + "/file.txt");
+        assertEquals(LOCAL_FILE_SYSTEM + file.getAbsolutePath(), path);
+        assertTrue(file.setLastModified(1000));
+        model.storeFile(parent, "file.txt", "content");
+        assertEquals(1000, file.lastModified());
+        model.storeFile(parent, "file.txt", "changed");
+        assertEquals("changed", Files.readString(file.toPath()));
+        assertArrayEquals(new String[]{ "file.txt" }, file.getParentFile().list());
+    }
+
+    private static String gunzip(final File file) throws IOException {
+        try (final InputStream inputStream = new GZIPInputStream(new FileInputStream(file))) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void storeFile_writesPrecompressedCopy() throws Replication.ReplicationException, IOException {
+        when(config.precompressedExtensions()).thenReturn(new String[]{ "html", ".JSON" });
+        model.modified(context, config);
+        model.storeFile(parent, "page.html", "content");
+        model.storeFile(parent, "file.txt", "content");
+        final File file = new File(root, parent.getPath() + "/page.html");
+        final File precompressed = new File(root, parent.getPath() + "/page.html.gz");
+        assertEquals("content", gunzip(precompressed));
+        assertFalse(new File(root, parent.getPath() + "/file.txt.gz").exists());
+
+        assertTrue(precompressed.setLastModified(1000));
+        model.storeFile(parent, "page.html", "content");
+        assertEquals(1000, precompressed.lastModified());
+        model.storeFile(parent, "page.html", "changed");
+        assertEquals("changed", gunzip(precompressed));
+
+        model.storeFile(parent, "page.data.json", "{}");
+        assertEquals("{}", gunzip(new File(root, parent.getPath() + "/page.data.json.gz")));
+
+        model.storeFile(parent, "page.html", (String) null);
+        assertFalse(file.exists());
+        assertFalse(precompressed.exists());
+    }
+
+    @Test
+    public void storeFile_deletesPrecompressedCopyOfRemovedExtension() throws Replication.ReplicationException, IOException {
+        when(config.precompressedExtensions()).thenReturn(new String[]{ "html" });
+        model.modified(context, config);
+        model.storeFile(parent, "page.html", "content");
+        final File precompressed = new File(root, parent.getPath() + "/page.html.gz");
+        assertTrue(precompressed.exists());
+
+        when(config.precompressedExtensions()).thenReturn(new String[0]);
+        model.modified(context, config);
+        model.storeFile(parent, "page.html", "changed");
+        assertFalse(precompressed.exists());
+    }
+
+    @Test
+    public void storeRendering_failureKeepsExistingFile() throws Replication.ReplicationException, RenderException, IOException {
+        model.storeFile(parent, "page.html", "existing");
+        doThrow(new RenderException("failed", null))
+                .when(renderService).renderInternally(any(Resource.class), anyString(), any(OutputStream.class));
+        try {
+            model.storeRendering(page, "html", parent, "page.html");
+            fail("Rendering failure expected");
+        } catch (final RenderException e) {
+            // expected
+        }
+
+        final File file = new File(root, parent.getPath() + "/page.html");
+        assertEquals("existing", Files.readString(file.toPath()));
+        assertArrayEquals(new String[]{ "page.html" }, file.getParentFile().list());
+    }
+
+    @Test
+    public void storeFile_recreatesRemovedFolders() throws Replication.ReplicationException {
+        setReplicationPrimaryNodeTypes();
+        final File file = new File(root, page.getPath() + "/file.txt");
+        model.storeFile(page, "file.txt", "content");
+        assertTrue(file.isFile());
+        model.removeReplica(page, null, true);
+        assertFalse(file.getParentFile().exists());
+        model.storeFile(page, "file.txt", "content");
+        assertTrue(file.isFile());
+        assertTrue(deleteFileOrDirectory(new File(root, parent.getPath())));
+        model.storeFile(page, "file.txt", "content");
+        assertTrue(file.isFile());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void isFolderOnTarget_remembersFoldersAndForgetsSubtreesOnly() throws Throwable {
+        assertTrue(new File(root, "a/b").mkdirs());
+        assertTrue(new File(root, "a/bc").mkdirs());
+        final Map<String, File> knownFolders = (Map<String, File>) PrivateAccessor.getField(model, "knownFolders");
+        assertFalse(model.isFolderOnTarget("/a/missing"));
+        assertTrue(model.isFolderOnTarget("/a/b"));
+        assertTrue(model.isFolderOnTarget("/a/bc"));
+        assertTrue(knownFolders.containsKey("/a/b"));
+
+        PrivateAccessor.invoke(model, "forgetFolders", new Class[]{ String.class }, new Object[]{ "/a/b" });
+        assertFalse(knownFolders.containsKey("/a/b"));
+        assertTrue(knownFolders.containsKey("/a/bc"));
+    }
+
+}
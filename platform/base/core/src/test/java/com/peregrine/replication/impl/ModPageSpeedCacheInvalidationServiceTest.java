@@ -0,0 +1,153 @@
+package com.peregrine.replication.impl;
+
+import com.peregrine.replication.Replication;
+import com.peregrine.replication.impl.ModPageSpeedCacheInvalidationService.Configuration;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class ModPageSpeedCacheInvalidationServiceTest {
+
+    private static final long TIMEOUT = 5_000;
+
+    private final Configuration config = mock(Configuration.class);
+    private final List<String> methods = new CopyOnWriteArrayList<>();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+
+    private final ModPageSpeedCacheInvalidationService model = new ModPageSpeedCacheInvalidationService();
+
+    private HttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            methods.add(exchange.getRequestMethod());
+            final int status = failuresLeft.getAndDecrement() > 0 ? 503 : 200;
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        server.start();
+
+        when(config.name()).thenReturn("pagespeed");
+        when(config.cacheInvalidationUrl())
+                .thenReturn("http://localhost:" + server.getAddress().getPort() + "/pagespeed_admin/cache");
+        when(config.coalesceInterval()).thenReturn(100L);
+        when(config.maxDelay()).thenReturn(2_000L);
+        when(config.maxConcurrentPurges()).thenReturn(2);
+        when(config.purgeRetries()).thenReturn(2);
+        when(config.purgeRetryDelay()).thenReturn(10L);
+        model.activate(config);
+    }
+
+    @After
+    public void tearDown() {
+        model.deactivate();
+        server.stop(0);
+    }
+
+    private static void awaitCount(final LongSupplier count, final long expected) throws InterruptedException {
+        final long end = System.currentTimeMillis() + TIMEOUT;
+        while (count.getAsLong() < expected && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(expected, count.getAsLong());
+    }
+
+    @Test
+    public void replicate_coalescesPurges() throws Replication.ReplicationException, InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            model.replicate(Collections.emptyList());
+        }
+
+        assertEquals(5, model.getRequestedPurges());
+        awaitCount(model::getSentPurges, 1);
+        assertEquals(Collections.singletonList("PURGE"), methods);
+        assertEquals(0, model.getPendingPurges());
+    }
+
+    @Test
+    public void replicate_retriesFailedPurge() throws Replication.ReplicationException, InterruptedException {
+        failuresLeft.set(1);
+        model.replicate(Collections.emptyList());
+        awaitCount(model::getSentPurges, 1);
+        assertEquals(2, methods.size());
+        assertEquals(1, model.getRetriedPurges());
+        assertEquals(0, model.getFailedPurges());
+    }
+
+    @Test
+    public void replicate_givesUpAfterRetries() throws Replication.ReplicationException, InterruptedException {
+        failuresLeft.set(Integer.MAX_VALUE);
+        model.replicate(Collections.emptyList());
+        awaitCount(model::getFailedPurges, 1);
+        assertEquals(3, methods.size());
+        assertEquals(2, model.getRetriedPurges());
+        assertEquals(0, model.getSentPurges());
+        assertTrue(model.getLastPurgeLag() >= 0);
+    }
+
+    @Test
+    public void deactivate_sendsPendingPurges() throws Replication.ReplicationException {
+        when(config.coalesceInterval()).thenReturn(60_000L);
+        when(config.maxDelay()).thenReturn(60_000L);
+        model.modified(config);
+        model.replicate(Collections.emptyList());
+        assertEquals(1, model.getPendingPurges());
+        assertTrue(methods.isEmpty());
+
+        model.deactivate();
+        assertEquals(Collections.singletonList("PURGE"), methods);
+        assertEquals(1, model.getSentPurges());
+        assertEquals(0, model.getFailedPurges());
+    }
+
+    @Test
+    public void modified_queuesPendingPurgesAgain() throws Replication.ReplicationException, InterruptedException {
+        when(config.coalesceInterval()).thenReturn(60_000L);
+        when(config.maxDelay()).thenReturn(60_000L);
+        model.modified(config);
+        model.replicate(Collections.emptyList());
+
+        when(config.coalesceInterval()).thenReturn(100L);
+        when(config.maxDelay()).thenReturn(2_000L);
+        model.modified(config);
+        awaitCount(model::getSentPurges, 1);
+        assertEquals(1, model.getRequestedPurges());
+    }
+
+    @Test
+    public void modified_queuesRetriesAgain() throws Replication.ReplicationException, InterruptedException {
+        when(config.purgeRetryDelay()).thenReturn(60_000L);
+        model.modified(config);
+        failuresLeft.set(1);
+        model.replicate(Collections.emptyList());
+        awaitCount(model::getRetriedPurges, 1);
+        final Thread retryThread = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().equals("peregrine-pagespeed-retries-pagespeed"))
+                .findFirst()
+                .orElse(null);
+        assertNotNull(retryThread);
+        assertTrue(retryThread.isDaemon());
+        model.modified(config);
+        awaitCount(model::getSentPurges, 1);
+        assertEquals(2, methods.size());
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.peregrine.sitemap;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public final class CdbBuilderTest {
+
+    private final CdbBuilder builder = new CdbBuilder();
+
+    /**
+     * Looks the key up the way cdb readers do: header slot, then linear probing in the hash table.
+     */
+    private static String get(final byte[] cdb, final String key) {
+        final ByteBuffer buffer = ByteBuffer.wrap(cdb).order(ByteOrder.LITTLE_ENDIAN);
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final int hash = CdbBuilder.hash(keyBytes);
+        final int tablePosition = buffer.getInt((hash & 0xff) * 8);
+        final int slotsCount = buffer.getInt((hash & 0xff) * 8 + 4);
+        if (slotsCount == 0) {
+            return null;
+        }
+
+        int slot = (int) (((hash & 0xffffffffL) >>> 8) % slotsCount);
+        for (int i = 0; i < slotsCount; i++) {
+            final int slotPosition = tablePosition + slot * 8;
+            final int recordPosition = buffer.getInt(slotPosition + 4);
+            if (recordPosition == 0) {
+                return null;
+            }
+
+            if (buffer.getInt(slotPosition) == hash) {
+                final int keyLength = buffer.getInt(recordPosition);
+                final int valueLength = buffer.getInt(recordPosition + 4);
+                final String recordKey = new String(cdb, recordPosition + 8, keyLength, StandardCharsets.UTF_8);
+                if (recordKey.equals(key)) {
+                    return new String(cdb, recordPosition + 8 + keyLength, valueLength, StandardCharsets.UTF_8);
+                }
+            }
+
+            slot = (slot + 1) % slotsCount;
+        }
+
+        return null;
+    }
+
+    @Test
+    public void empty() {
+        final byte[] cdb = builder.toByteArray();
+        assertEquals(2048, cdb.length);
+        assertNull(get(cdb, "/"));
+    }
+
+    @Test
+    public void lookup() {
+        for (int i = 0; i < 1000; i++) {
+            builder.put("/page-" + i + ".html", "/content/site/pages/page-" + i + ".html");
+        }
+
+        builder.put("/page-0.html", "/content/site/pages/duplicate.html");
+        builder.put("/ünïcödé.html", "/content/site/pages/unicode.html");
+        final byte[] cdb = builder.toByteArray();
+        assertEquals(1001, builder.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("/content/site/pages/page-" + i + ".html", get(cdb, "/page-" + i + ".html"));
+        }
+
+        assertEquals("/content/site/pages/unicode.html", get(cdb, "/ünïcödé.html"));
+        assertNull(get(cdb, "/page-1000.html"));
+    }
+
+    @Test
+    public void hash() {
+        // the reference values of the cdb hash function
+        assertEquals(5381, CdbBuilder.hash(new byte[0]));
+        assertEquals(177604, CdbBuilder.hash(new byte[] { 'a' }));
+    }
+
+}
@@ -5,6 +5,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -99,4 +100,22 @@ public final class XMLBuilderTest {
                 + "</root>");
     }
 
-}
\ No newline at end of file
+    @Test
+    public void streamToWriter() {
+        final StringWriter writer = new StringWriter();
+        final XMLBuilder streaming = new XMLBuilder(writer);
+        for (final XMLBuilder b : new XMLBuilder[] { builder, streaming }) {
+            b.startElement("root", attributes);
+            b.addElement("empty");
+            b.addElement("text", "text");
+            b.startElement("open");
+        }
+
+        assertEquals(XMLBuilder.XML_VERSION + "<root a=\"0\"><empty /><text>text</text><open", writer.toString());
+        streaming.finish();
+        final String output = test("<root a=\"0\"><empty /><text>text</text><open /></root>");
+        assertEquals(output, writer.toString());
+        assertEquals(output.length(), streaming.getLength());
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.peregrine.sitemap.impl;
 
 import com.peregrine.SlingServletTest;
+import com.peregrine.sitemap.SiteMapConstants;
 import com.peregrine.sitemap.SiteMapEntry;
 import com.peregrine.sitemap.SiteMapStructureCache;
 import junitx.util.PrivateAccessor;
@@ -11,25 +12,58 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 import java.util.List;
 
+import static com.peregrine.commons.util.PerConstants.BINARY_MIME_TYPE;
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public final class ApacheRewriteMapServletTest extends SlingServletTest {
 
     private final ApacheRewriteMapServlet model = new ApacheRewriteMapServlet();
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private final List<SiteMapEntry> entries = new LinkedList<>();
 
     @Mock
     private SiteMapStructureCache structure;
 
     @Before
-    public void setUp() throws NoSuchFieldException {
+    public void setUp() throws NoSuchFieldException, IOException {
         PrivateAccessor.setField(model, "structure", structure);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) { }
+
+            @Override
+            public void write(final int b) {
+                output.write(b);
+            }
+        });
+        SiteMapEntry entry = new SiteMapEntry("/content/page-1");
+        entry.setUrl("http://www.example.com/page-1.html");
+        entries.add(entry);
+        entry = new SiteMapEntry("/content/page-2");
+        entry.setUrl("/page-2.html");
+        entries.add(entry);
+    }
+
+    private String getOutput() {
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
     }
 
     @Test
@@ -37,25 +71,42 @@ public final class ApacheRewriteMapServletTest extends SlingServletTest {
         when(structure.get(resource)).thenReturn(null);
         model.doGet(request, response);
         assertEquals(HttpServletResponse.SC_NOT_FOUND, status);
-        assertTrue(StringUtils.isBlank(writer.toString()));
+        assertTrue(StringUtils.isBlank(getOutput()));
     }
 
     @Test
     public void doGet() throws IOException {
-        final List<SiteMapEntry> entries = new LinkedList<>();
-        SiteMapEntry entry = new SiteMapEntry("/content/page-1");
-        entry.setUrl("http://www.example.com/page-1.html");
-        entries.add(entry);
-        entry = new SiteMapEntry("/content/page-2");
-        entry.setUrl("/page-2.html");
-        entries.add(entry);
         when(structure.get(resource)).thenReturn(entries);
         model.doGet(request, response);
         assertNotEquals(HttpServletResponse.SC_NOT_FOUND, status);
         assertEquals(
                 StringUtils.strip("/page-1.html /content/page-1.html\n" + "/page-2.html /content/page-2.html"),
-                StringUtils.strip(writer.toString())
+                StringUtils.strip(getOutput())
         );
     }
 
+    @Test
+    public void doGet_cdb() throws IOException {
+        request.setExtension(SiteMapConstants.CDB);
+        when(structure.get(resource)).thenReturn(entries);
+        model.doGet(request, response);
+        assertEquals(BINARY_MIME_TYPE, contentType);
+        final byte[] cdb = output.toByteArray();
+        // header of 256 tables, 2 records and 2 hash table slots per record
+        final int recordsLength = 16 + "/page-1.html/content/page-1.html/page-2.html/content/page-2.html".length();
+        assertEquals(2048 + recordsLength + 2 * 2 * 8, cdb.length);
+        verify(response).setContentLength(cdb.length);
+    }
+
+    @Test
+    public void doGet_cachedUntilRefresh() throws IOException {
+        when(structure.get(resource)).thenReturn(entries);
+        model.doGet(request, response);
+        model.doGet(request, response);
+        verify(structure, times(1)).get(resource);
+        model.onCacheRefreshed(resource, entries);
+        model.doGet(request, response);
+        verify(structure, times(2)).get(resource);
+    }
+
 }
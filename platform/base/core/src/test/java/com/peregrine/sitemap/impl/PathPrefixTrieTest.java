@@ -0,0 +1,41 @@
+package com.peregrine.sitemap.impl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class PathPrefixTrieTest {
+
+    private final PathPrefixTrie model = new PathPrefixTrie(Arrays.asList("/content/*/pages", "/content/site/assets", ""));
+
+    @Test
+    public void isEmpty() {
+        assertTrue(new PathPrefixTrie(Collections.emptySet()).isEmpty());
+        assertTrue(new PathPrefixTrie(Collections.singleton(" ")).isEmpty());
+        assertFalse(model.isEmpty());
+    }
+
+    @Test
+    public void containsPrefixOf() {
+        assertTrue(model.containsPrefixOf("/content/site/pages"));
+        assertTrue(model.containsPrefixOf("/content/other/pages/index/jcr:content"));
+        assertTrue(model.containsPrefixOf("/content/site/assets/image.png"));
+        assertFalse(model.containsPrefixOf("/content/other/assets/image.png"));
+        assertFalse(model.containsPrefixOf("/content/site"));
+        assertFalse(model.containsPrefixOf("/content/site/pagesX"));
+        assertTrue(new PathPrefixTrie(Collections.singleton("/")).containsPrefixOf("/content"));
+    }
+
+    @Test
+    public void containsPrefixBelow() {
+        assertTrue(model.containsPrefixBelow("/content"));
+        assertTrue(model.containsPrefixBelow("/content/other"));
+        assertFalse(model.containsPrefixBelow("/content/site/pages"));
+        assertFalse(model.containsPrefixBelow("/var"));
+    }
+
+}
@@ -10,6 +10,8 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -107,4 +109,21 @@ public final class SiteMapFileContentBuilderImplTest extends SlingResourcesTest
         assertContains("<loc>URL</loc>", urlSet);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void buildToWriter() throws IOException {
+        final SiteMapEntry entry = createEntry("2001-01-01");
+        entry.setUrl("URL");
+        entries.add(entry);
+        final StringWriter urlSet = new StringWriter();
+        model.buildUrlSet(entries, xmlns, urlSet);
+        assertEquals(model.buildUrlSet(entries, xmlns), urlSet.toString());
+
+        final List<List<SiteMapEntry>> splitEntries = new LinkedList<>();
+        splitEntries.add(entries);
+        splitEntries.add(entries);
+        final StringWriter index = new StringWriter();
+        model.buildSiteMapIndex(page, urlBuilder, splitEntries, index);
+        assertEquals(model.buildSiteMapIndex(page, urlBuilder, splitEntries), index.toString());
+    }
+
+}
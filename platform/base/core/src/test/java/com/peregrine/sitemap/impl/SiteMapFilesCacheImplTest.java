@@ -11,12 +11,17 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -140,6 +145,44 @@ public final class SiteMapFilesCacheImplTest extends SiteStructureTestBase {
         assertNull(model.get(page, 0));
     }
 
+    @Test
+    public void get_storesGzippedFileWithHash() throws IOException {
+        entries.add(createEntry(10));
+        when(siteMapExtractorsContainer.findFirstFor(any())).thenReturn(extractor);
+        when(structureCache.get(any())).thenReturn(entries);
+        doAnswer(invocation -> {
+            ((Writer) invocation.getArguments()[2]).write(VALUE);
+            return null;
+        }).when(siteMapBuilder).buildUrlSet(any(), any(), any());
+        final SiteMapFile file = model.getFile(page, 0);
+        final String hash = (String) cache.getProperty("0_sha256");
+        assertEquals(SiteMapFile.hash(VALUE), hash);
+        final Calendar lastModified = (Calendar) cache.getProperty("0_lastModified");
+
+        assertEquals(hash, file.getHash());
+        assertEquals(lastModified.getTimeInMillis(), file.getLastModified());
+        assertEquals(VALUE, file.getContent());
+    }
+
+    @Test
+    public void onCacheRefreshed_keepsUnchangedFiles() throws IOException {
+        entries.add(createEntry(10));
+        when(siteMapExtractorsContainer.findFirstFor(any())).thenReturn(extractor);
+        when(structureCache.get(any())).thenReturn(entries);
+        doAnswer(invocation -> {
+            ((Writer) invocation.getArguments()[2]).write(VALUE);
+            return null;
+        }).when(siteMapBuilder).buildUrlSet(any(), any(), any());
+        model.onCacheRefreshed(page, entries);
+        final Object binary = cache.getProperty("0");
+        final Object lastModified = cache.getProperty("0_lastModified");
+        assertNotNull(binary);
+
+        model.onCacheRefreshed(page, entries);
+        assertSame(binary, cache.getProperty("0"));
+        assertSame(lastModified, cache.getProperty("0_lastModified"));
+    }
+
     @Test
     public void rebuildImpl() {
         model.rebuildImpl(page.getPath());
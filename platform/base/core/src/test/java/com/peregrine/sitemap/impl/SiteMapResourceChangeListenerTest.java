@@ -1,9 +1,12 @@
 package com.peregrine.sitemap.impl;
 
 import com.peregrine.SlingResourcesTest;
+import com.peregrine.sitemap.SiteMapConfiguration;
+import com.peregrine.sitemap.SiteMapConfigurationsContainer;
 import junitx.util.PrivateAccessor;
 import org.apache.sling.api.resource.observation.ResourceChange;
 import org.apache.sling.event.jobs.JobManager;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -12,9 +15,16 @@ import org.mockito.runners.MockitoJUnitRunner;
 
 import java.util.*;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -27,14 +37,41 @@ public final class SiteMapResourceChangeListenerTest extends SlingResourcesTest
     @Mock
     private JobManager jobManager;
 
+    @Mock
+    private SiteMapConfigurationsContainer siteMapConfigurationsContainer;
+
+    @Mock
+    private SiteMapConfiguration siteMapConfiguration;
+
+    @Mock
+    private SiteMapResourceChangeListenerConfig config;
+
+    @SuppressWarnings("unchecked")
     @Before
     public void setUp() throws NoSuchFieldException {
         PrivateAccessor.setField(model, "jobManager", jobManager);
+        PrivateAccessor.setField(model, "siteMapConfigurationsContainer", siteMapConfigurationsContainer);
+        when(siteMapConfigurationsContainer.getAll()).thenReturn(Collections.singleton(siteMapConfiguration));
+        when(siteMapConfiguration.getMandatoryCachedPaths()).thenReturn(Collections.emptySet());
+        when(config.rootPaths()).thenReturn(new String[] { "/content/*" });
+        when(config.excludedPaths()).thenReturn(new String[] { "/content/*/assets" });
+        when(config.coalesceInterval()).thenReturn(60_000);
+        when(config.maxDelay()).thenReturn(60_000);
+        when(jobManager.addJob(any(), any())).thenAnswer(invocation -> {
+            props.putAll((Map<String, Object>) invocation.getArguments()[1]);
+            return null;
+        });
+        model.activate(config);
         addChange(resource.getPath());
         addChange(jcrContent.getPath());
         addChange(page.getPath());
     }
 
+    @After
+    public void tearDown() {
+        model.deactivate();
+    }
+
     private void addChange(final String path) {
         final ResourceChange change = mock(ResourceChange.class);
         when(change.getPath()).thenReturn(path);
@@ -42,20 +79,65 @@ public final class SiteMapResourceChangeListenerTest extends SlingResourcesTest
     }
 
     @SuppressWarnings("unchecked")
-	@Test
-    public void onChange() {
-        when(jobManager.addJob(any(), any())).thenAnswer(invocation -> {
-            props.putAll((Map<String, Object>) invocation.getArguments()[1]);
-            return null;
-        });
-        model.onChange(changes);
+    private Set<String> getJobPaths() {
         assertTrue(props.containsKey(SiteMapResourceChangeJobConsumer.PN_PATHS));
         final Object pathsObj = props.get(SiteMapResourceChangeJobConsumer.PN_PATHS);
         assertTrue(pathsObj instanceof Set);
-        final Set<String> paths = (Set<String>) pathsObj;
-        assertTrue(paths.contains(resource.getPath()));
-        assertTrue(paths.contains(jcrContent.getPath()));
-        assertTrue(paths.contains(page.getPath()));
+        return (Set<String>) pathsObj;
+    }
+
+    @Test
+    public void onChange() {
+        model.onChange(changes);
+        model.deactivate();
+        final Set<String> paths = getJobPaths();
+        assertEquals(Collections.singleton(page.getPath()), paths);
+    }
+
+    @Test
+    public void onChange_dropsIrrelevantPaths() {
+        changes.clear();
+        addChange("/content/parent/assets/image.png/jcr:content/renditions/thumbnail.png");
+        addChange("/etc/map/http");
+        addChange("/content");
+        model.onChange(changes);
+        model.deactivate();
+        assertEquals(Collections.singleton("/content"), getJobPaths());
+    }
+
+    @Test
+    public void onChange_noJobWithoutRelevantChanges() {
+        changes.clear();
+        addChange("/content/parent/assets/image.png");
+        addChange("/var/sitemaps/structure/content/parent");
+        model.onChange(changes);
+        model.deactivate();
+        verify(jobManager, never()).addJob(anyString(), anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void onChange_usesMandatoryCachedPathsAsRoots() {
+        when(config.rootPaths()).thenReturn(new String[] { "/content/*/pages" });
+        model.deactivate();
+        model.activate(config);
+        final Set<String> mandatoryCachedPaths = Collections.singleton(page.getPath());
+        when(siteMapConfiguration.getMandatoryCachedPaths()).thenReturn(mandatoryCachedPaths);
+        model.onChange(changes);
+        model.deactivate();
+        assertEquals(mandatoryCachedPaths, getJobPaths());
+    }
+
+    @Test
+    public void onChange_coalescesBatches() {
+        when(config.coalesceInterval()).thenReturn(500);
+        when(config.maxDelay()).thenReturn(2_000);
+        model.deactivate();
+        model.activate(config);
+        model.onChange(changes);
+        model.onChange(changes.subList(1, 3));
+        model.onChange(changes);
+        verify(jobManager, timeout(5_000)).addJob(eq(SiteMapResourceChangeJobConsumer.TOPIC), any());
+        assertEquals(Collections.singleton(page.getPath()), getJobPaths());
     }
 
 }
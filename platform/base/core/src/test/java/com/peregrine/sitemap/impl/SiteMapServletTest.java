@@ -1,6 +1,7 @@
 package com.peregrine.sitemap.impl;
 
 import com.peregrine.SlingServletTest;
+import com.peregrine.sitemap.SiteMapFile;
 import com.peregrine.sitemap.SiteMapFilesCache;
 import com.peregrine.sitemap.SiteMapUrlBuilder;
 import junitx.util.PrivateAccessor;
@@ -11,16 +12,24 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import static org.junit.Assert.*;
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
 public final class SiteMapServletTest extends SlingServletTest {
 
     private static final String RESULT = "<xml />";
+    private static final long LAST_MODIFIED = 1_500_000_000_500L;
+
+    private final SiteMapFile file = SiteMapFile.compress(RESULT, LAST_MODIFIED);
+    private final String eTag = "\"" + file.getHash() + "\"";
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
 
     private final SiteMapServlet model = new SiteMapServlet();
 
@@ -31,9 +40,24 @@ public final class SiteMapServletTest extends SlingServletTest {
     private SiteMapFilesCache cache;
 
     @Before
-    public void setUp() throws NoSuchFieldException {
+    public void setUp() throws NoSuchFieldException, IOException {
         PrivateAccessor.setField(model, "urlBuilder", urlBuilder);
         PrivateAccessor.setField(model, "cache", cache);
+        when(request.getDateHeader(anyString())).thenReturn(-1L);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) { }
+
+            @Override
+            public void write(final int b) {
+                output.write(b);
+            }
+        });
     }
 
     @Test
@@ -47,10 +71,85 @@ public final class SiteMapServletTest extends SlingServletTest {
     @Test
     public void doGet() throws IOException {
         when(urlBuilder.getIndex(request)).thenReturn(0);
-        when(cache.get(resource, 0)).thenReturn(RESULT);
+        when(cache.getFile(resource, 0)).thenReturn(file);
         model.doGet(request, response);
         assertNotEquals(HttpServletResponse.SC_NOT_FOUND, status);
         assertEquals(RESULT, writer.toString());
+        verify(response).setHeader("ETag", eTag);
+        verify(response).setDateHeader("Last-Modified", LAST_MODIFIED);
+        verify(response, never()).setHeader("Content-Encoding", "gzip");
+    }
+
+    @Test
+    public void doGet_gzip() throws IOException {
+        when(urlBuilder.getIndex(request)).thenReturn(0);
+        when(cache.getFile(resource, 0)).thenReturn(file);
+        when(request.getHeader("Accept-Encoding")).thenReturn("deflate, gzip;q=1.0");
+        model.doGet(request, response);
+        verify(response).setHeader("Content-Encoding", "gzip");
+        verify(response).setHeader("ETag", "\"" + file.getHash() + "-gzip\"");
+        assertArrayEquals(file.getGzippedContent(), output.toByteArray());
+        assertTrue(StringUtils.isBlank(writer.toString()));
+    }
+
+    @Test
+    public void doGet_gzipRefused() throws IOException {
+        when(urlBuilder.getIndex(request)).thenReturn(0);
+        when(cache.getFile(resource, 0)).thenReturn(file);
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip;q=0, *;q=0.5");
+        model.doGet(request, response);
+        verify(response, never()).setHeader("Content-Encoding", "gzip");
+        verify(response).setHeader("ETag", eTag);
+        assertEquals(RESULT, writer.toString());
+    }
+
+    @Test
+    public void acceptsGzip() {
+        assertFalse(SiteMapServlet.acceptsGzip(null));
+        assertFalse(SiteMapServlet.acceptsGzip("deflate, br"));
+        assertFalse(SiteMapServlet.acceptsGzip("gzip;q=0"));
+        assertFalse(SiteMapServlet.acceptsGzip("gzip; q=0.0, *"));
+        assertFalse(SiteMapServlet.acceptsGzip("*;q=0"));
+        assertTrue(SiteMapServlet.acceptsGzip("GZIP"));
+        assertTrue(SiteMapServlet.acceptsGzip("deflate, gzip;q=0.1"));
+        assertTrue(SiteMapServlet.acceptsGzip("br, *"));
+    }
+
+    @Test
+    public void doGet_ifNoneMatch() throws IOException {
+        when(urlBuilder.getIndex(request)).thenReturn(0);
+        when(cache.getFile(resource, 0)).thenReturn(file);
+        when(request.getHeader("If-None-Match")).thenReturn("\"other\", W/" + eTag);
+        model.doGet(request, response);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, status);
+        assertTrue(StringUtils.isBlank(writer.toString()));
+        assertEquals(0, output.size());
+    }
+
+    @Test
+    public void doGet_ifNoneMatchTakesPrecedence() throws IOException {
+        when(urlBuilder.getIndex(request)).thenReturn(0);
+        when(cache.getFile(resource, 0)).thenReturn(file);
+        when(request.getHeader("If-None-Match")).thenReturn("\"other\"");
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(LAST_MODIFIED);
+        model.doGet(request, response);
+        assertNotEquals(HttpServletResponse.SC_NOT_MODIFIED, status);
+        assertEquals(RESULT, writer.toString());
+    }
+
+    @Test
+    public void doGet_ifModifiedSince() throws IOException {
+        when(urlBuilder.getIndex(request)).thenReturn(0);
+        when(cache.getFile(resource, 0)).thenReturn(file);
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(LAST_MODIFIED - 500);
+        model.doGet(request, response);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, status);
+
+        status = 0;
+        when(request.getDateHeader("If-Modified-Since")).thenReturn(LAST_MODIFIED - 1500);
+        model.doGet(request, response);
+        assertNotEquals(HttpServletResponse.SC_NOT_MODIFIED, status);
+        assertEquals(RESULT, writer.toString());
     }
 
 }
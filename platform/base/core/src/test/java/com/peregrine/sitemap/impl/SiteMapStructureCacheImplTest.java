@@ -10,12 +10,18 @@ import org.apache.sling.api.resource.Resource;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
 import java.util.*;
 
 import static com.peregrine.commons.util.PerConstants.JCR_PRIMARY_TYPE;
+import static com.peregrine.commons.util.PerConstants.PATH;
+import static com.peregrine.mock.MockTools.setParentChildRelationships;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
@@ -58,6 +64,7 @@ public final class SiteMapStructureCacheImplTest extends SiteStructureTestBase i
 
         when(config.debounceInterval()).thenReturn(0);
         when(config.location()).thenReturn(LOCATION);
+        when(config.incrementalRebuild()).thenReturn(true);
 
         when(resourceResolverFactory.createResourceResolver()).thenReturn(versioningResolver);
 
@@ -207,6 +214,118 @@ public final class SiteMapStructureCacheImplTest extends SiteStructureTestBase i
         assertOnCacheRefreshedMapContains(page.getPath());
     }
 
+    @Test
+    public void rebuild_patchesChangedSubtreeOnly() throws PersistenceException {
+        repo.mockResourceResolverCreate();
+        final String pathA = page.getPath() + "/a";
+        final String pathB = page.getPath() + "/b";
+        addEntryCache(PATH, page.getPath());
+        addEntryCache(PATH, pathA).putProperty(X, X);
+        addEntryCache(PATH, pathB).putProperty(X, X);
+
+        final PageMock pageA = new PageMock();
+        pageA.setPath(pathA);
+        init(pageA);
+        final SiteMapEntry entry = new SiteMapEntry(pathA);
+        entry.putProperty(X, Y);
+        when(siteMapExtractorsContainer.findFirstFor(any())).thenReturn(extractor);
+        when(extractor.extract(argThat(new ArgumentMatcher<Resource>() {
+            @Override
+            public boolean matches(final Object argument) {
+                return argument instanceof Resource && pathA.equals(((Resource) argument).getPath());
+            }
+        }))).thenReturn(Collections.singletonList(entry));
+
+        model.rebuildImpl(page.getPath(), pathA);
+        assertOnCacheRefreshedMapContains(page.getPath());
+        final List<SiteMapEntry> refreshed = onCacheRefreshedMap.get(page.getPath());
+        assertEquals(3, refreshed.size());
+        assertEquals(Y, refreshed.get(1).getProperty(X));
+        assertEquals(X, refreshed.get(2).getProperty(X));
+        verify(extractor, times(1)).extract(any());
+        verify(resourceResolver, times(1)).delete(any());
+    }
+
+    @Test
+    public void rebuild_insertedPageKeepsOtherNodes() throws PersistenceException, RepositoryException {
+        repo.mockResourceResolverCreate();
+        final String pathA = page.getPath() + "/a";
+        final String pathAX = pathA + "/x";
+        final String pathAY = pathA + "/y";
+        addEntryCache(PATH, page.getPath());
+        addEntryCache(PATH, pathA).putProperty(X, X);
+        addEntryCache(PATH, pathAX).putProperty(X, X);
+        addEntryCache(PATH, page.getPath() + "/b").putProperty(X, X);
+
+        final PageMock pageA = new PageMock();
+        pageA.setPath(pathA);
+        init(pageA);
+        final PageMock pageAY = new PageMock();
+        pageAY.setPath(pathAY);
+        init(pageAY);
+        final List<SiteMapEntry> extracted = new ArrayList<>();
+        for (final String path : Arrays.asList(pathA, pathAX, pathAY)) {
+            final SiteMapEntry entry = new SiteMapEntry(path);
+            entry.putProperty(X, X);
+            extracted.add(entry);
+        }
+
+        when(siteMapExtractorsContainer.findFirstFor(any())).thenReturn(extractor);
+        when(extractor.extract(argThat(new ArgumentMatcher<Resource>() {
+            @Override
+            public boolean matches(final Object argument) {
+                return argument instanceof Resource && pathA.equals(((Resource) argument).getPath());
+            }
+        }))).thenReturn(extracted);
+
+        model.rebuildImpl(page.getPath(), pathAY);
+        assertOnCacheRefreshedMapContains(page.getPath());
+        final List<SiteMapEntry> refreshed = onCacheRefreshedMap.get(page.getPath());
+        assertEquals(5, refreshed.size());
+        assertEquals(pathAY, refreshed.get(3).getPath());
+        verify(resourceResolver, never()).delete(any());
+        verify(resourceResolver, times(1)).create(any(), anyString(), any());
+        verify(cache.adaptTo(Node.class)).orderBefore("4", "3");
+    }
+
+    @Test
+    public void get_extractsChildPagesInParallel() {
+        when(config.parallelism()).thenReturn(3);
+        model.activate(config);
+        repo.mockResourceResolverCreate();
+        disableCacheResolution();
+        when(siteMapExtractorsContainer.findFirstFor(any())).thenReturn(extractor);
+        when(extractor.isBucket(any())).thenReturn(true);
+        final SiteMapEntry rootEntry = createEntry();
+        when(extractor.extractEntry(any())).thenReturn(rootEntry);
+        final List<String> expected = new ArrayList<>();
+        expected.add(page.getPath());
+        for (int i = 0; i < 8; i++) {
+            final PageMock child = new PageMock();
+            child.setPath(page.getPath() + "/child" + i);
+            setParentChildRelationships(page, child);
+            init(child);
+            final String path = child.getPath();
+            expected.add(path);
+            final List<SiteMapEntry> childEntries = Collections.singletonList(new SiteMapEntry(path));
+            when(extractor.extract(argThat(new ArgumentMatcher<Resource>() {
+                @Override
+                public boolean matches(final Object argument) {
+                    return argument instanceof Resource && path.equals(((Resource) argument).getPath());
+                }
+            }))).thenReturn(childEntries);
+        }
+
+        model.get(page);
+        final List<String> paths = new ArrayList<>();
+        for (final SiteMapEntry entry : onCacheRefreshedMap.get(page.getPath())) {
+            paths.add(entry.getPath());
+        }
+
+        assertEquals(expected, paths);
+        model.deactivate();
+    }
+
     @Test
     public void getOriginalPath() {
         assertNull(model.getOriginalPath(LOCATION));
@@ -0,0 +1,131 @@
+package com.peregrine.sitemap.impl;
+
+/*-
+ * #%L
+ * platform benchmarks
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import com.peregrine.mock.PageMock;
+import com.peregrine.sitemap.SiteMapEntry;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static com.peregrine.commons.util.PerConstants.SLASH;
+import static com.peregrine.mock.MockTools.setParentChildRelationships;
+import static com.peregrine.sitemap.SiteMapConstants.CHANGE_FREQ;
+import static com.peregrine.sitemap.SiteMapConstants.DEFAULT_PRIORITY;
+import static com.peregrine.sitemap.SiteMapConstants.DOT_HTML;
+import static com.peregrine.sitemap.SiteMapConstants.PRIORITY;
+import static com.peregrine.sitemap.SiteMapConstants.WEEKLY;
+
+/**
+ * Runs the site map benchmarks with the GC profiler, so the results show the allocation rate next to the times.
+ * Takes the usual JMH command line options, e.g. {@code java -jar target/benchmarks.jar SiteMapExtractor -p pagesCount=1000}.
+ */
+public final class SiteMapBenchmarks {
+
+    public static final String ROOT_PATH = "/content/example/pages/index";
+    public static final String DOMAIN = "http://www.example.com";
+    public static final String LAST_MODIFIED = "2020-02-20T20:20:20.000Z";
+    private static final int CHILDREN_PER_PAGE = 10;
+
+    private SiteMapBenchmarks() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static void main(final String[] args) throws CommandLineOptionException, RunnerException {
+        final CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(commandLineOptions)
+                .include(SiteMapBenchmarks.class.getPackage().getName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+
+    /**
+     * @return entries with the properties the default extractor puts in, as they come from the structure cache
+     */
+    public static List<SiteMapEntry> createEntries(final int count) {
+        final List<SiteMapEntry> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String path = ROOT_PATH + SLASH + "page-" + i;
+            final SiteMapEntry entry = new SiteMapEntry(path);
+            entry.setUrl(DOMAIN + path + DOT_HTML);
+            entry.setLastModified(LAST_MODIFIED);
+            entry.putProperty(CHANGE_FREQ, WEEKLY);
+            entry.putProperty(PRIORITY, DEFAULT_PRIORITY);
+            result.add(entry);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the root of a tree of the given number of pages, every page having up to ten child pages
+     */
+    public static PageMock createPageTree(final int count) {
+        final PageMock root = createPage(ROOT_PATH);
+        final Deque<PageMock> parents = new ArrayDeque<>();
+        parents.add(root);
+        int created = 1;
+        while (created < count) {
+            final PageMock parent = parents.poll();
+            for (int i = 0; i < CHILDREN_PER_PAGE && created < count; i++, created++) {
+                final PageMock child = createPage(parent.getPath() + SLASH + "page-" + i);
+                setParentChildRelationships(parent, child);
+                parents.add(child);
+            }
+        }
+
+        return root;
+    }
+
+    private static PageMock createPage(final String path) {
+        final PageMock result = new PageMock();
+        result.setPath(path);
+        result.getContent().putProperty("jcr:title", result.getName());
+        return result;
+    }
+
+    public static void setField(final Object target, final String name, final Object value) {
+        try {
+            final Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (final NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.peregrine.sitemap.impl;
+
+/*-
+ * #%L
+ * platform benchmarks
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import com.peregrine.mock.PageMock;
+import com.peregrine.sitemap.PropertyProvider;
+import com.peregrine.sitemap.SiteMapConfiguration;
+import com.peregrine.sitemap.SiteMapEntry;
+import com.peregrine.sitemap.SiteMapExtractorBase;
+import com.peregrine.sitemap.SiteMapUrlBuilder;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Every mocked page holds a couple of Mockito mocks, so the largest tree stays at 50k pages to fit the heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SiteMapExtractorBenchmark {
+
+    @Param({ "1000", "50000" })
+    public int pagesCount;
+
+    private final SiteMapConfiguration config = Mockito.mock(SiteMapConfiguration.class);
+    private final List<PropertyProvider> defaultPropertyProviders = Arrays.asList(
+            new LastModPropertyProvider(), new ChangeFreqPropertyProvider(), new PriorityPropertyProvider());
+    private final SiteMapUrlBuilder urlBuilder = new SiteMapUrlBuilderImpl();
+    private final SiteMapExtractorBase extractor = new SiteMapExtractorBase() {
+
+        @Override
+        public SiteMapConfiguration getConfiguration() {
+            return config;
+        }
+
+        @Override
+        protected Iterable<? extends PropertyProvider> getDefaultPropertyProviders() {
+            return defaultPropertyProviders;
+        }
+
+        @Override
+        protected SiteMapUrlBuilder getUrlBuilder() {
+            return urlBuilder;
+        }
+
+    };
+
+    private PageMock root;
+
+    @Setup
+    public void setUp() {
+        when(config.getPageRecognizer()).thenReturn(new PerPageRecognizer());
+        when(config.getPropertyProviders()).thenReturn(Collections.emptyList());
+        root = SiteMapBenchmarks.createPageTree(pagesCount);
+    }
+
+    @Benchmark
+    public List<SiteMapEntry> extract() {
+        return extractor.extract(root);
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.peregrine.sitemap.impl;
+
+/*-
+ * #%L
+ * platform benchmarks
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import com.peregrine.sitemap.SiteMapEntry;
+import com.peregrine.sitemap.SiteMapUrlBuilder;
+import org.apache.sling.api.resource.Resource;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.when;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SiteMapFileContentBuilderBenchmark {
+
+    private static final int ENTRIES_PER_FILE = 50_000;
+
+    @Param({ "1000", "50000", "500000" })
+    public int entriesCount;
+
+    private final SiteMapFileContentBuilderImpl builder = new SiteMapFileContentBuilderImpl();
+    private final SiteMapUrlBuilder urlBuilder = new SiteMapUrlBuilderImpl();
+    private final Map<String, String> xmlns = Collections.emptyMap();
+    private final Resource root = Mockito.mock(Resource.class);
+    private List<SiteMapEntry> entries;
+    private List<List<SiteMapEntry>> splitEntries;
+
+    @Setup
+    public void setUp() {
+        final SiteMapFileContentBuilderImplConfig config = Mockito.mock(SiteMapFileContentBuilderImplConfig.class);
+        when(config.xmlnsMappings()).thenReturn(new String[0]);
+        builder.activate(config);
+        when(root.getPath()).thenReturn(SiteMapBenchmarks.ROOT_PATH);
+        entries = SiteMapBenchmarks.createEntries(entriesCount);
+        splitEntries = new ArrayList<>();
+        for (int from = 0; from < entriesCount; from += ENTRIES_PER_FILE) {
+            splitEntries.add(entries.subList(from, Math.min(entriesCount, from + ENTRIES_PER_FILE)));
+        }
+    }
+
+    @Benchmark
+    public String buildUrlSet() {
+        return builder.buildUrlSet(entries, xmlns);
+    }
+
+    @Benchmark
+    public Writer buildUrlSetToWriter() throws IOException {
+        final Writer writer = Writer.nullWriter();
+        builder.buildUrlSet(entries, xmlns, writer);
+        return writer;
+    }
+
+    @Benchmark
+    public String buildSiteMapIndex() {
+        return builder.buildSiteMapIndex(root, urlBuilder, splitEntries);
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.peregrine.sitemap.impl;
+
+/*-
+ * #%L
+ * platform benchmarks
+ * %%
+ * Copyright (C) 2017 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import com.peregrine.sitemap.SiteMapEntry;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.when;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SiteMapFilesCacheImplBenchmark {
+
+    @Param({ "1000", "50000", "500000" })
+    public int entriesCount;
+
+    private final SiteMapFilesCacheImpl cache = new SiteMapFilesCacheImpl();
+    private List<SiteMapEntry> entries;
+
+    @Setup
+    public void setUp() {
+        final SiteMapFileContentBuilderImpl builder = new SiteMapFileContentBuilderImpl();
+        final SiteMapFileContentBuilderImplConfig config = Mockito.mock(SiteMapFileContentBuilderImplConfig.class);
+        when(config.xmlnsMappings()).thenReturn(new String[0]);
+        builder.activate(config);
+        // the defaults of SiteMapFilesCacheImplConfig, activate itself would need a repository
+        SiteMapBenchmarks.setField(cache, "siteMapBuilder", builder);
+        SiteMapBenchmarks.setField(cache, "maxEntriesCount", 50_000);
+        SiteMapBenchmarks.setField(cache, "maxFileSize", 52_428_800);
+        entries = SiteMapBenchmarks.createEntries(entriesCount);
+    }
+
+    @Benchmark
+    public List<List<SiteMapEntry>> splitEntries() {
+        return cache.splitEntries(entries);
+    }
+
+}
@@ -0,0 +1,280 @@
+package com.peregrine.commons.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * Coalesces calls with the same argument like {@link DeBouncer} does, but with a bounded latency:
+ * an argument is handed to the callback once no call for it arrived within the quiet period,
+ * or at the latest when the maximum delay after its first pending call has elapsed.
+ *
+ * Due arguments are passed to the callback in batches on a pool of worker threads. While all workers
+ * are busy due arguments keep waiting and are handed over together once a worker becomes idle.
+ * An argument is never part of two batches that run at the same time, calls that arrive while it
+ * is being processed are collected and handed over after the running batch has finished.
+ */
+public final class CoalescingScheduler<Argument> implements Callback<Argument> {
+
+	private static final String THREAD_NAME_PREFIX = "peregrine-coalescing-scheduler-";
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final String threadNamePrefix = THREAD_NAME_PREFIX + INSTANCES.incrementAndGet();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			createThreadFactory(threadNamePrefix + "-dispatcher"));
+	private final ExecutorService workers;
+	private final int workersCount;
+	private final Callback<Set<Argument>> callback;
+	private final long quietPeriod;
+	private final long maxDelay;
+	private final int maxBatchSize;
+
+	private final Object lock = new Object();
+	private final Map<Argument, Request> pending = new LinkedHashMap<>();
+	private final Set<Argument> running = new HashSet<>();
+	private int busyWorkers = 0;
+	private ScheduledFuture<?> dispatch;
+	private long dispatchTime = Long.MAX_VALUE;
+	private boolean terminated = false;
+	private volatile long lastLag = 0;
+
+	/**
+	 * @param callback receives the batches of due arguments
+	 * @param quietPeriod an argument is due when it was not called for this long ...
+	 * @param maxDelay ... or at the latest this long after its first pending call
+	 * @param timeUnit the unit of the quiet period and the maximum delay
+	 * @param workers number of threads that run the callback
+	 * @param maxBatchSize maximum number of arguments passed to a single callback, 0 or less for no limit
+	 */
+	public CoalescingScheduler(
+			final Callback<Set<Argument>> callback,
+			final long quietPeriod,
+			final long maxDelay,
+			final TimeUnit timeUnit,
+			final int workers,
+			final int maxBatchSize) {
+		this.callback = callback;
+		this.quietPeriod = timeUnit.toMillis(quietPeriod);
+		this.maxDelay = Math.max(this.quietPeriod, timeUnit.toMillis(maxDelay));
+		this.workersCount = Math.max(1, workers);
+		this.workers = Executors.newFixedThreadPool(workersCount, createThreadFactory(threadNamePrefix + "-worker"));
+		this.maxBatchSize = maxBatchSize > 0 ? maxBatchSize : Integer.MAX_VALUE;
+	}
+
+	public CoalescingScheduler(final Callback<Set<Argument>> callback, final int quietPeriod, final int maxDelay) {
+		this(callback, quietPeriod, maxDelay, TimeUnit.MILLISECONDS, 1, 0);
+	}
+
+	/** Creates named daemon threads so that they neither block a shutdown nor stay anonymous in thread dumps */
+	private static ThreadFactory createThreadFactory(final String namePrefix) {
+		final AtomicInteger counter = new AtomicInteger();
+		return runnable -> {
+			final Thread thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	public void call(final Argument key) {
+		final long now = System.currentTimeMillis();
+		synchronized (lock) {
+			if (terminated) {
+				return;
+			}
+
+			final Request request = pending.computeIfAbsent(key, k -> new Request(now));
+			request.last = now;
+			if (!running.contains(key)) {
+				scheduleDispatch(request.getDueTime(), now);
+			}
+		}
+	}
+
+	/** Makes sure a dispatch runs no later than the given time, must be called while holding the lock */
+	private void scheduleDispatch(final long dueTime, final long now) {
+		if (nonNull(dispatch) && dispatchTime <= dueTime) {
+			return;
+		}
+
+		if (nonNull(dispatch)) {
+			dispatch.cancel(false);
+		}
+
+		dispatchTime = dueTime;
+		dispatch = scheduler.schedule(this::dispatch, Math.max(0, dueTime - now), TimeUnit.MILLISECONDS);
+	}
+
+	private void dispatch() {
+		final long now = System.currentTimeMillis();
+		final List<Set<Argument>> batches = new ArrayList<>();
+		synchronized (lock) {
+			dispatch = null;
+			dispatchTime = Long.MAX_VALUE;
+			if (terminated) {
+				return;
+			}
+
+			int idleWorkers = workersCount - busyWorkers;
+			Set<Argument> batch = new LinkedHashSet<>();
+			long nextDueTime = Long.MAX_VALUE;
+			final Iterator<Map.Entry<Argument, Request>> iterator = pending.entrySet().iterator();
+			while (idleWorkers > 0 && iterator.hasNext()) {
+				final Map.Entry<Argument, Request> entry = iterator.next();
+				final Argument key = entry.getKey();
+				if (running.contains(key)) {
+					// will be looked at again once the running batch has finished
+					continue;
+				}
+
+				final Request request = entry.getValue();
+				final long dueTime = request.getDueTime();
+				if (dueTime > now) {
+					nextDueTime = Math.min(nextDueTime, dueTime);
+					continue;
+				}
+
+				lastLag = now - request.first;
+				iterator.remove();
+				running.add(key);
+				batch.add(key);
+				if (batch.size() >= maxBatchSize) {
+					batches.add(batch);
+					batch = new LinkedHashSet<>();
+					idleWorkers--;
+				}
+			}
+
+			if (!batch.isEmpty()) {
+				batches.add(batch);
+			}
+
+			busyWorkers += batches.size();
+			// with all workers busy the rest is dispatched as soon as one of them is done
+			if (idleWorkers > 0 && nextDueTime < Long.MAX_VALUE) {
+				scheduleDispatch(nextDueTime, now);
+			}
+		}
+
+		for (final Set<Argument> batch : batches) {
+			try {
+				workers.execute(() -> run(batch));
+			} catch (final RejectedExecutionException e) {
+				// terminated in the meantime
+				synchronized (lock) {
+					running.removeAll(batch);
+					busyWorkers--;
+				}
+			}
+		}
+	}
+
+	private void run(final Set<Argument> batch) {
+		try {
+			callback.call(batch);
+		} catch (final RuntimeException e) {
+			logger.error("Callback failed for {}", batch, e);
+		} finally {
+			synchronized (lock) {
+				running.removeAll(batch);
+				busyWorkers--;
+				long nextDueTime = Long.MAX_VALUE;
+				for (final Map.Entry<Argument, Request> entry : pending.entrySet()) {
+					if (!running.contains(entry.getKey())) {
+						nextDueTime = Math.min(nextDueTime, entry.getValue().getDueTime());
+					}
+				}
+
+				if (!terminated && nextDueTime < Long.MAX_VALUE) {
+					scheduleDispatch(nextDueTime, System.currentTimeMillis());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of arguments waiting to be handed to the callback
+	 */
+	public int getQueueDepth() {
+		synchronized (lock) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * @return the number of arguments the callback is processing right now
+	 */
+	public int getRunningCount() {
+		synchronized (lock) {
+			return running.size();
+		}
+	}
+
+	/**
+	 * @return milliseconds since the first call of the longest waiting argument, 0 if nothing is waiting
+	 */
+	public long getLag() {
+		final long now = System.currentTimeMillis();
+		synchronized (lock) {
+			return pending.values().stream()
+					.mapToLong(request -> now - request.first)
+					.max()
+					.orElse(0);
+		}
+	}
+
+	/**
+	 * @return milliseconds between the first call and the dispatch of the most recently dispatched argument
+	 */
+	public long getLastDispatchLag() {
+		return lastLag;
+	}
+
+	public Set<Argument> terminate() {
+		synchronized (lock) {
+			terminated = true;
+		}
+
+		scheduler.shutdownNow();
+		workers.shutdownNow();
+		synchronized (lock) {
+			return new HashSet<>(pending.keySet());
+		}
+	}
+
+	private final class Request {
+
+		private final long first;
+		private long last;
+
+		private Request(final long first) {
+			this.first = first;
+			last = first;
+		}
+
+		private long getDueTime() {
+			return Math.min(last + quietPeriod, first + maxDelay);
+		}
+
+	}
+
+}
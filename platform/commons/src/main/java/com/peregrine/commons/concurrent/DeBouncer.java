@@ -10,7 +10,11 @@ import java.util.concurrent.TimeUnit;
  * Found at <a href=
  * "https://stackoverflow.com/questions/4742210/implementing-debounce-in-java">Stack
  * Overflow</a>
+ *
+ * @deprecated every call postpones the callback again, so a steady stream of calls starves it.
+ * Use {@link CoalescingScheduler} which also bounds the delay.
  */
+@Deprecated
 public final class DeBouncer<Argument> implements Callback<Argument> {
 
 	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
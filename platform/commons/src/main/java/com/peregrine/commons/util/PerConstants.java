@@ -86,6 +86,7 @@ public class PerConstants {
     public static final String JPEG_MIME_TYPE = "image/jpeg";
     public static final String WEBP_MIME_TYPE = "image/webp";
     public static final String SVG_MIME_TYPE = "image/svg+xml";
+    public static final String BINARY_MIME_TYPE = "application/octet-stream";
     public static final String JPG_MIME_TYPE = "image/jpg";
 
     public static final String PACKAGES = "packages";
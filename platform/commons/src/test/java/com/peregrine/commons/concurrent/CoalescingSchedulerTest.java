@@ -0,0 +1,157 @@
+package com.peregrine.commons.concurrent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public final class CoalescingSchedulerTest {
+
+    private static final String A = "a";
+    private static final String B = "b";
+    private static final String C = "c";
+
+    private final BlockingQueue<Set<String>> batches = new LinkedBlockingQueue<>();
+    private CoalescingScheduler<String> scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.terminate();
+        }
+    }
+
+    private Set<String> nextBatch() throws InterruptedException {
+        return batches.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void coalescesRepeatedCalls() throws InterruptedException {
+        scheduler = new CoalescingScheduler<>(batches::add, 50, 1000);
+        scheduler.call(A);
+        scheduler.call(B);
+        scheduler.call(A);
+        scheduler.call(B);
+
+        final Set<String> called = new HashSet<>(nextBatch());
+        if (called.size() < 2) {
+            called.addAll(nextBatch());
+        }
+
+        assertEquals(new HashSet<>(Arrays.asList(A, B)), called);
+        assertNull(batches.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void maxDelayBoundsTheLatency() throws InterruptedException {
+        scheduler = new CoalescingScheduler<>(batches::add, 200, 300);
+        final long start = System.currentTimeMillis();
+        while (batches.isEmpty() && System.currentTimeMillis() - start < 3000) {
+            scheduler.call(A);
+            Thread.sleep(20);
+        }
+
+        assertEquals(Arrays.asList(A), new ArrayList<>(nextBatch()));
+        assertTrue(System.currentTimeMillis() - start < 3000);
+        assertTrue(scheduler.getLastDispatchLag() >= 300);
+    }
+
+    @Test
+    public void batchesDueArguments() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        scheduler = new CoalescingScheduler<>(batch -> {
+            if (batch.contains(A)) {
+                try {
+                    blocked.await(5, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            batches.add(batch);
+        }, 0, 0, TimeUnit.MILLISECONDS, 1, 2);
+        scheduler.call(A);
+        Thread.sleep(100);
+        // the only worker is busy, so B and C are due at the same time and end up in one batch
+        scheduler.call(B);
+        scheduler.call(C);
+        Thread.sleep(100);
+        blocked.countDown();
+
+        assertEquals(new HashSet<>(Arrays.asList(A)), nextBatch());
+        assertEquals(new HashSet<>(Arrays.asList(B, C)), nextBatch());
+    }
+
+    @Test
+    public void neverRunsTheSameArgumentTwiceAtOnce() throws InterruptedException {
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+        scheduler = new CoalescingScheduler<>(batch -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            concurrent.decrementAndGet();
+            calls.incrementAndGet();
+        }, 0, 0, TimeUnit.MILLISECONDS, 4, 0);
+        for (int i = 0; i < 20; i++) {
+            scheduler.call(A);
+            Thread.sleep(10);
+        }
+
+        final long start = System.currentTimeMillis();
+        while ((scheduler.getQueueDepth() > 0 || scheduler.getRunningCount() > 0)
+                && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, maxConcurrent.get());
+        assertTrue(calls.get() > 1);
+        assertTrue(calls.get() < 20);
+    }
+
+    @Test
+    public void metricsAndTerminate() throws InterruptedException {
+        scheduler = new CoalescingScheduler<>(batches::add, 10_000, 20_000);
+        scheduler.call(A);
+        scheduler.call(B);
+        Thread.sleep(20);
+        assertEquals(2, scheduler.getQueueDepth());
+        assertEquals(0, scheduler.getRunningCount());
+        assertTrue(scheduler.getLag() >= 20);
+
+        final List<String> pending = new ArrayList<>(scheduler.terminate());
+        pending.sort(String::compareTo);
+        assertEquals(Arrays.asList(A, B), pending);
+        scheduler.call(C);
+        assertEquals(2, scheduler.getQueueDepth());
+        assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    public void workersAreNamedDaemons() throws InterruptedException {
+        final BlockingQueue<Thread> threads = new LinkedBlockingQueue<>();
+        scheduler = new CoalescingScheduler<>(arguments -> threads.add(Thread.currentThread()), 0, 0);
+        scheduler.call(A);
+        final Thread thread = threads.poll(5, TimeUnit.SECONDS);
+        assertNotNull(thread);
+        assertTrue(thread.isDaemon());
+        assertTrue(thread.getName().startsWith("peregrine-coalescing-scheduler-"));
+    }
+
+}
@@ -20,6 +20,7 @@ public final class SlingHttpServletRequestMock extends SlingHttpServletRequestWr
     private final SlingHttpServletRequest mock;
     private final RequestPathInfo requestPathInfo = Mockito.mock(RequestPathInfo.class);
     private final Map<String, String[]> parameters = new HashMap<>();
+    private final Map<String, Object> attributes = new HashMap<>();
 
     public SlingHttpServletRequestMock(final SlingHttpServletRequest mock) {
         super(mock);
@@ -90,4 +91,19 @@ public final class SlingHttpServletRequestMock extends SlingHttpServletRequestWr
         return putParameter(key, String.valueOf(value));
     }
 
+    @Override
+    public Object getAttribute(final String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(final String name, final Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void removeAttribute(final String name) {
+        attributes.remove(name);
+    }
+
 }
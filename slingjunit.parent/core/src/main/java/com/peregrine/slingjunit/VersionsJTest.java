@@ -53,6 +53,7 @@ import javax.jcr.version.VersionHistory;
 import javax.jcr.version.VersionIterator;
 import javax.jcr.version.VersionManager;
 
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
 
@@ -214,6 +215,26 @@ public class VersionsJTest {
         }
     }
 
+    @Test
+    public void makeLabeledVersionsInBulk() {
+        try {
+            final String label = "bulk";
+            final List<String> paths = Arrays.asList(indexRes.getPath(), aboutRes.getPath());
+            Assert.assertTrue(resourceManagement.createVersions(resourceResolver, paths, label).isEmpty());
+            for (final String path : paths) {
+                Assert.assertTrue(vmPage.getVersionHistory(path).hasVersionLabel(label));
+                Assert.assertTrue(vmPage.isCheckedOut(path));
+            }
+
+            Assert.assertTrue(resourceManagement.deleteVersionLabels(resourceResolver, paths, label).isEmpty());
+            for (final String path : paths) {
+                Assert.assertFalse(vmPage.getVersionHistory(path).hasVersionLabel(label));
+            }
+        } catch (Exception e) {
+            Assert.fail("could not create versions");
+        }
+    }
+
     @Test
     public void restoreFirstPageVersion() {
         try {